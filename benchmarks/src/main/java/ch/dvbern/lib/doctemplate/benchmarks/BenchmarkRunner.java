@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Startet die Benchmarks mit den ueblichen JMH-Kommandozeilenoptionen. Ohne Angabe von <code>-prof</code> wird der
+ * GC-Profiler verwendet, damit neben der Laufzeit auch die Allokationen pro Aufruf (<code>gc.alloc.rate.norm</code>)
+ * ausgewiesen werden.
+ * <p>
+ * Beispiel: <code>java -jar target/benchmarks.jar EngineBenchmark.docx -p rows=1000</code>
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+		// nur main
+	}
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+			return;
+		}
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (cmd.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+		Runner runner = new Runner(options.build());
+		if (cmd.shouldList()) {
+			runner.list();
+			return;
+		}
+		runner.run();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.docx.DOCXMergeEngine;
+import ch.dvbern.lib.doctemplate.odt.ODTMergeEngine;
+import ch.dvbern.lib.doctemplate.pdf.CompiledPDFTemplate;
+import ch.dvbern.lib.doctemplate.pdf.PDFMergeEngine;
+import ch.dvbern.lib.doctemplate.rtf.CompiledRTFTemplate;
+import ch.dvbern.lib.doctemplate.rtf.RTFMergeEngine;
+import ch.dvbern.lib.doctemplate.xml.XmlMergeEngine;
+
+/**
+ * Ganzer Merge-Vorgang pro Engine fuer kleine und grosse Vorlagen und unterschiedlich grosse Iterationen. Die Engines
+ * werden wie in den Anwendungen pro Dokument neu erstellt; RTF- und PDF-Vorlagen werden zusaetzlich vorkompiliert
+ * gemessen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Duser.language=de", "-Duser.country=CH" })
+public class EngineBenchmark {
+
+	/**
+	 * Groesse der Vorlage (Anzahl Absaetze Fliesstext mit je einem Feld).
+	 */
+	public enum TemplateSize {
+		SMALL(5),
+		LARGE(500);
+
+		private final int paragraphs;
+
+		TemplateSize(int paragraphs) {
+			this.paragraphs = paragraphs;
+		}
+	}
+
+	@Param({ "SMALL", "LARGE" })
+	private TemplateSize template;
+
+	@Param({ "10", "1000" })
+	private int rows;
+
+	private MergeSource mergeSource;
+	private byte[] odtTemplate;
+	private byte[] docxTemplate;
+	private byte[] xmlTemplate;
+	private String rtfTemplate;
+	private byte[] pdfTemplate;
+	private CompiledRTFTemplate rtfCompiled;
+	private PDFMergeEngine pdfEngine;
+	private CompiledPDFTemplate pdfCompiled;
+
+	@Setup
+	public void setUp() throws DocTemplateException {
+
+		this.mergeSource = new BeanMergeSource(SyntheticData.brief(this.rows), "brief.");
+		this.odtTemplate = SyntheticTemplates.odt(this.template.paragraphs);
+		this.docxTemplate = SyntheticTemplates.docx(this.template.paragraphs);
+		this.xmlTemplate = SyntheticTemplates.xml(this.template.paragraphs);
+		this.rtfTemplate = SyntheticTemplates.rtf(this.template.paragraphs);
+		this.rtfCompiled = new RTFMergeEngine("benchmark").compile(new StringReader(this.rtfTemplate), null);
+		this.pdfTemplate = SyntheticTemplates.pdf(this.template.paragraphs, this.rows);
+		this.pdfEngine = new PDFMergeEngine("benchmark");
+		this.pdfCompiled = this.pdfEngine.compile(new ByteArrayInputStream(this.pdfTemplate), null);
+	}
+
+	@Benchmark
+	public byte[] odt() throws DocTemplateException {
+
+		return new ODTMergeEngine("benchmark").getDocument(new ByteArrayInputStream(this.odtTemplate), this.mergeSource);
+	}
+
+	@Benchmark
+	public byte[] docx() throws DocTemplateException {
+
+		return new DOCXMergeEngine("benchmark").getDocument(new ByteArrayInputStream(this.docxTemplate), this.mergeSource);
+	}
+
+	@Benchmark
+	public byte[] xml() throws DocTemplateException {
+
+		return new XmlMergeEngine("benchmark").getXml(this.mergeSource, new ByteArrayInputStream(this.xmlTemplate));
+	}
+
+	@Benchmark
+	public byte[] rtf() throws DocTemplateException {
+
+		return new RTFMergeEngine("benchmark").getDocument(new StringReader(this.rtfTemplate), this.mergeSource);
+	}
+
+	@Benchmark
+	public byte[] rtfCompiled() throws DocTemplateException {
+
+		return new RTFMergeEngine("benchmark").getDocument(this.rtfCompiled, this.mergeSource);
+	}
+
+	@Benchmark
+	public byte[] pdf() throws DocTemplateException {
+
+		return new PDFMergeEngine("benchmark").getDocument(new ByteArrayInputStream(this.pdfTemplate), this.mergeSource);
+	}
+
+	@Benchmark
+	public int pdfCompiled() throws DocTemplateException {
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		this.pdfEngine.getDocument(this.pdfCompiled, this.mergeSource, output);
+		return output.size();
+	}
+}
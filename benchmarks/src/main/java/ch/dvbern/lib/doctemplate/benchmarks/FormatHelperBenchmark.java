@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.dvbern.lib.doctemplate.util.FormatHelper;
+import ch.dvbern.lib.doctemplate.util.LdtConstants;
+
+/**
+ * {@link FormatHelper#getDataAsString(Object, String)} fuer die in Vorlagen ueblichen Datentypen und Formate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Duser.language=de", "-Duser.country=CH" })
+public class FormatHelperBenchmark {
+
+	private final Date date = new Date(1328745600000L);
+	private final BigDecimal decimal = new BigDecimal("-12345.675");
+	private final Double floatingPoint = Double.valueOf(54321.12345);
+	private final Long integer = Long.valueOf(123456789L);
+	private final String text = "Ihre Zahlung vom 31.12.2009";
+
+	@Benchmark
+	public String datePattern() {
+
+		return FormatHelper.getDataAsString(this.date, "dd.MM.yyyy");
+	}
+
+	@Benchmark
+	public String dateTimePattern() {
+
+		return FormatHelper.getDataAsString(this.date, "dd.MM.yyyy HH:mm");
+	}
+
+	@Benchmark
+	public String dateLocale() {
+
+		return FormatHelper.getDataAsString(this.date, "dd. MMMM yyyy_fr");
+	}
+
+	@Benchmark
+	public String decimalPattern() {
+
+		return FormatHelper.getDataAsString(this.decimal, "#,##0.00");
+	}
+
+	@Benchmark
+	public String doublePattern() {
+
+		return FormatHelper.getDataAsString(this.floatingPoint, LdtConstants.DEFAULT_FLOAT_FORMAT);
+	}
+
+	@Benchmark
+	public String integerPattern() {
+
+		return FormatHelper.getDataAsString(this.integer, "#,##0");
+	}
+
+	@Benchmark
+	public String textWithoutPattern() {
+
+		return FormatHelper.getDataAsString(this.text, null);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.dvbern.lib.doctemplate.common.Image;
+import ch.dvbern.lib.doctemplate.common.ImageRegistry;
+
+/**
+ * Erkennen von Bild-Doubletten: Ein Dokument fuegt {@value #IMAGES_PER_DOCUMENT} Bilder ein, davon sind nur
+ * <code>distinct</code> verschieden. Jedes Einfuegen liefert (wie aus einer MergeSource) eine neue {@link Image}-Instanz.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ImageDedupBenchmark {
+
+	private static final int IMAGES_PER_DOCUMENT = 200;
+
+	@Param({ "1", "20", "200" })
+	private int distinct;
+
+	@Param({ "32", "256" })
+	private int size;
+
+	private byte[][] contents;
+
+	@Setup
+	public void setUp() {
+
+		this.contents = new byte[this.distinct][];
+		for (int i = 0; i < this.distinct; i++) {
+			this.contents[i] = SyntheticData.png(i, this.size);
+		}
+	}
+
+	@Benchmark
+	public int register() {
+
+		ImageRegistry<Image> images = new ImageRegistry<>();
+		for (int i = 0; i < IMAGES_PER_DOCUMENT; i++) {
+			Image image = new Image(this.contents[i % this.distinct], this.size, this.size, Image.Format.PNG);
+			if (images.indexOf(image) < 0) {
+				images.register("Pictures/image" + images.size() + ".png", image);
+			}
+		}
+		return images.size();
+	}
+
+	@Benchmark
+	public String digest() {
+
+		return new Image(this.contents[0], this.size, this.size, Image.Format.PNG).getDigest();
+	}
+}
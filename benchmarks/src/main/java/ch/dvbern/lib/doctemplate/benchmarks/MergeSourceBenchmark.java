@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.IterationMergeSource;
+import ch.dvbern.lib.doctemplate.common.MergeContext;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.util.IterationMergeHelper;
+
+/**
+ * Zugriffe auf {@link BeanMergeSource} und {@link IterationMergeSource}, wie sie die Engines pro Feld ausfuehren, sowie
+ * die Sortierung einer Iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MergeSourceBenchmark {
+
+	private static final String ITERATION_KEY = "brief.positionen";
+	private static final List<String> SORT_KEYS = Arrays.asList("brief.positionen.betrag_DESC", "brief.positionen.nummer");
+
+	@Param({ "10", "1000" })
+	private int rows;
+
+	private MergeSource mergeSource;
+	private MergeContext ctx;
+
+	@Setup
+	public void setUp() {
+
+		this.mergeSource = new BeanMergeSource(SyntheticData.brief(this.rows), "brief.");
+		this.ctx = new MergeContext(this.mergeSource);
+	}
+
+	@Benchmark
+	public Object beanGetData() throws DocTemplateException {
+
+		return this.mergeSource.getData(this.ctx, "brief.titel");
+	}
+
+	@Benchmark
+	public Object beanGetDataNested() throws DocTemplateException {
+
+		return this.mergeSource.getData(this.ctx, "brief.empfaenger.ort");
+	}
+
+	@Benchmark
+	public List<MergeSource> beanWhileStatement() throws DocTemplateException {
+
+		return this.mergeSource.whileStatement(this.ctx, ITERATION_KEY);
+	}
+
+	/**
+	 * Pro Eintrag drei Felder des Eintrags, ein Feld der uebergeordneten Quelle und <code>hasNext</code>.
+	 */
+	@Benchmark
+	public void iterationLookup(Blackhole bh) throws DocTemplateException {
+
+		IterationMergeSource ims = IterationMergeHelper.getIterationMergeSource(this.ctx, this.mergeSource, ITERATION_KEY, null);
+		while (ims.hasNext()) {
+			ims.next();
+			bh.consume(ims.getData(this.ctx, "brief.positionen.nummer"));
+			bh.consume(ims.getData(this.ctx, "brief.positionen.text"));
+			bh.consume(ims.getData(this.ctx, "brief.positionen.betrag"));
+			bh.consume(ims.getData(this.ctx, "brief.titel"));
+			bh.consume(ims.ifStatement(this.ctx, "hasNext"));
+		}
+	}
+
+	/**
+	 * Indizierte Keys (<code>_[n]</code>): zwei Eintraege pro Durchlauf.
+	 */
+	@Benchmark
+	public void iterationIndexedLookup(Blackhole bh) throws DocTemplateException {
+
+		IterationMergeSource ims = IterationMergeHelper.getIterationMergeSource(this.ctx, this.mergeSource, ITERATION_KEY, null);
+		while (ims.hasNext()) {
+			ims.next();
+			bh.consume(ims.getData(this.ctx, "brief.positionen.text_[0]"));
+			bh.consume(ims.getData(this.ctx, "brief.positionen.text_[1]"));
+		}
+	}
+
+	@Benchmark
+	public IterationMergeSource iterationSort() throws DocTemplateException {
+
+		return IterationMergeHelper.getIterationMergeSource(this.ctx, this.mergeSource, ITERATION_KEY, SORT_KEYS);
+	}
+}
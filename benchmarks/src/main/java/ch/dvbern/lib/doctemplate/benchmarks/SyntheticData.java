@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Erzeugt reproduzierbare Testdaten (gleicher Seed, gleiche Daten) fuer die Benchmarks.
+ */
+public final class SyntheticData {
+
+	/** fester Seed, damit alle Durchlaeufe mit denselben Daten arbeiten */
+	public static final long SEED = 4711L;
+
+	private static final String[] WORDS = { "Steuer", "Rechnung", "Zahlung", "Rueckzahlung", "Verguetungszins", "Saldo", "Gemeinde",
+			"Abrechnung", "Gebuehr", "Mahnung" };
+
+	private SyntheticData() {
+		// nur statische Methoden
+	}
+
+	/**
+	 * @param positions Anzahl Positionen (Groesse der Iteration)
+	 * @return Brief mit <code>positions</code> Positionen
+	 */
+	public static Brief brief(int positions) {
+
+		Random random = new Random(SEED);
+		Brief brief = new Brief();
+		brief.setTitel("Rechnung " + random.nextInt(100000));
+		brief.setDatum(new Date(1328745600000L));
+		brief.setBetrag(new BigDecimal(random.nextInt(10000000)).movePointLeft(2));
+		brief.setEmpfaenger(new Adresse("Muster AG", "Alte Strasse " + random.nextInt(100), "3715 Adelboden"));
+		List<Position> list = new ArrayList<>(positions);
+		for (int i = 0; i < positions; i++) {
+			Position p = new Position();
+			p.setNummer(i + 1);
+			p.setText(text(random, 3 + random.nextInt(6)));
+			p.setDatum(new Date(1262304000000L + random.nextInt(1000) * 86400000L));
+			p.setBetrag(new BigDecimal(random.nextInt(2000000) - 1000000).movePointLeft(2));
+			p.setMenge(random.nextDouble() * 100);
+			list.add(p);
+		}
+		brief.setPositionen(list);
+		return brief;
+	}
+
+	/**
+	 * @param random Zufallsgenerator
+	 * @param words Anzahl Woerter
+	 * @return Text aus <code>words</code> Woertern
+	 */
+	public static String text(Random random, int words) {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param variant unterschiedliche Varianten ergeben unterschiedliche Bildinhalte
+	 * @param size Breite und Hoehe in Pixeln
+	 * @return PNG-Bild
+	 */
+	public static byte[] png(int variant, int size) {
+
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, size, size);
+			g.setColor(new Color(new Random(SEED + variant).nextInt(0xFFFFFF)));
+			g.fillOval(size / 4, size / 4, size / 2, size / 2);
+		} finally {
+			g.dispose();
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "png", baos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Wurzel der Testdaten (Key-Praefix <code>brief.</code>).
+	 */
+	public static class Brief {
+
+		private String titel;
+		private Date datum;
+		private BigDecimal betrag;
+		private Adresse empfaenger;
+		private List<Position> positionen;
+
+		public String getTitel() {
+			return titel;
+		}
+
+		public void setTitel(String titel) {
+			this.titel = titel;
+		}
+
+		public Date getDatum() {
+			return datum;
+		}
+
+		public void setDatum(Date datum) {
+			this.datum = datum;
+		}
+
+		public BigDecimal getBetrag() {
+			return betrag;
+		}
+
+		public void setBetrag(BigDecimal betrag) {
+			this.betrag = betrag;
+		}
+
+		public Adresse getEmpfaenger() {
+			return empfaenger;
+		}
+
+		public void setEmpfaenger(Adresse empfaenger) {
+			this.empfaenger = empfaenger;
+		}
+
+		public List<Position> getPositionen() {
+			return positionen;
+		}
+
+		public void setPositionen(List<Position> positionen) {
+			this.positionen = positionen;
+		}
+	}
+
+	/**
+	 * Position eines Briefes (Eintrag der Iteration <code>brief.positionen</code>).
+	 */
+	public static class Position {
+
+		private int nummer;
+		private String text;
+		private Date datum;
+		private BigDecimal betrag;
+		private double menge;
+
+		public int getNummer() {
+			return nummer;
+		}
+
+		public void setNummer(int nummer) {
+			this.nummer = nummer;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		public Date getDatum() {
+			return datum;
+		}
+
+		public void setDatum(Date datum) {
+			this.datum = datum;
+		}
+
+		public BigDecimal getBetrag() {
+			return betrag;
+		}
+
+		public void setBetrag(BigDecimal betrag) {
+			this.betrag = betrag;
+		}
+
+		public double getMenge() {
+			return menge;
+		}
+
+		public void setMenge(double menge) {
+			this.menge = menge;
+		}
+	}
+
+	/**
+	 * Adresse mit drei Zeilen.
+	 */
+	public static class Adresse {
+
+		private final String name;
+		private final String strasse;
+		private final String ort;
+
+		public Adresse(String name, String strasse, String ort) {
+			this.name = name;
+			this.strasse = strasse;
+			this.ort = ort;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getStrasse() {
+			return strasse;
+		}
+
+		public String getOrt() {
+			return ort;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.PageSize;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PdfWriter;
+import com.lowagie.text.pdf.TextField;
+
+/**
+ * Erzeugt Vorlagen fuer alle Engines mit derselben Struktur: Kopf mit Feldern des Briefes, <code>paragraphs</code>
+ * Absaetze Fliesstext mit je einem Feld, eine Iteration ueber <code>brief.positionen</code> (mit <code>hasNext</code>
+ * Bedingung) und ein Abschluss. Die Daten dazu liefert {@link SyntheticData#brief(int)}.
+ */
+public final class SyntheticTemplates {
+
+	private static final int WORDS_PER_PARAGRAPH = 40;
+	private static final int PDF_ROWS_PER_PAGE = 40;
+
+	private SyntheticTemplates() {
+		// nur statische Methoden
+	}
+
+	/**
+	 * @param paragraphs Anzahl Absaetze Fliesstext
+	 * @return ODT-Vorlage
+	 */
+	public static byte[] odt(int paragraphs) {
+
+		String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<office:document-content xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+				+ " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\" office:version=\"1.2\">"
+				+ "<office:body><office:text>" + body(new OdtMarkup(), paragraphs) + "</office:text></office:body></office:document-content>";
+		String manifest = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<manifest:manifest xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\">"
+				+ "<manifest:file-entry manifest:media-type=\"application/vnd.oasis.opendocument.text\" manifest:full-path=\"/\"/>"
+				+ "<manifest:file-entry manifest:media-type=\"text/xml\" manifest:full-path=\"content.xml\"/>"
+				+ "</manifest:manifest>";
+		return zip("mimetype", "application/vnd.oasis.opendocument.text", "content.xml", content, "META-INF/manifest.xml", manifest);
+	}
+
+	/**
+	 * @param paragraphs Anzahl Absaetze Fliesstext
+	 * @return DOCX-Vorlage
+	 */
+	public static byte[] docx(int paragraphs) {
+
+		String contentTypes = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+				+ "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+				+ "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+				+ "<Override PartName=\"/word/document.xml\""
+				+ " ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+				+ "</Types>";
+		String rels = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+				+ "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\""
+				+ " Target=\"word/document.xml\"/></Relationships>";
+		String documentRels = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\"></Relationships>";
+		String document = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body>"
+				+ body(new DocxMarkup(), paragraphs) + "</w:body></w:document>";
+		return zip("[Content_Types].xml", contentTypes, "_rels/.rels", rels, "word/_rels/document.xml.rels", documentRels,
+				"word/document.xml", document);
+	}
+
+	/**
+	 * @param paragraphs Anzahl Absaetze Fliesstext
+	 * @return Vorlage fuer die XmlMergeEngine
+	 */
+	public static byte[] xml(int paragraphs) {
+
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<brief xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">" + body(new XmlMarkup(), paragraphs) + "</brief>";
+		return xml.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param paragraphs Anzahl Absaetze Fliesstext
+	 * @return RTF-Vorlage
+	 */
+	public static String rtf(int paragraphs) {
+
+		return "{\\rtf1\\ansi\\ansicpg1252\\deff0{\\fonttbl{\\f0\\fswiss Arial;}}\r\n" + body(new RtfMarkup(), paragraphs) + "}\r\n";
+	}
+
+	/**
+	 * PDF-Formulare kennen keine Iteration: Pro Position werden Formularfelder <code>brief.positionen_[i].*</code>
+	 * angelegt.
+	 *
+	 * @param paragraphs Anzahl Absaetze Fliesstext (statischer Seiteninhalt)
+	 * @param rows Anzahl Positionen
+	 * @return PDF-Formular
+	 */
+	public static byte[] pdf(int paragraphs, int rows) {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Document document = new Document(PageSize.A4);
+		try {
+			PdfWriter writer = PdfWriter.getInstance(document, baos);
+			document.open();
+			addPdfField(writer, "brief.titel", 50, 800, 300);
+			addPdfField(writer, "brief.datum_FMTdd.MM.yyyy", 400, 800, 150);
+			addPdfField(writer, "brief.empfaenger.name", 50, 780, 300);
+			addPdfField(writer, "brief.empfaenger.ort", 50, 760, 300);
+			addPdfField(writer, "brief.betrag_FMT#,##0.00", 400, 760, 150);
+			document.add(new Paragraph("\n\n\n\n\n"));
+			Random random = new Random(SyntheticData.SEED);
+			for (int i = 0; i < paragraphs; i++) {
+				document.add(new Paragraph(SyntheticData.text(random, WORDS_PER_PARAGRAPH)));
+			}
+			for (int i = 0; i < rows; i++) {
+				if (i % PDF_ROWS_PER_PAGE == 0) {
+					writer.setPageEmpty(false);
+					document.newPage();
+				}
+				float y = 800 - (i % PDF_ROWS_PER_PAGE) * 19;
+				String prefix = "brief.positionen_[" + i + "].";
+				addPdfField(writer, prefix + "nummer", 50, y, 40);
+				addPdfField(writer, prefix + "text", 95, y, 250);
+				addPdfField(writer, prefix + "datum_FMTdd.MM.yyyy", 350, y, 90);
+				addPdfField(writer, prefix + "betrag_FMT#,##0.00", 445, y, 100);
+			}
+			document.close();
+		} catch (DocumentException | IOException e) {
+			throw new IllegalStateException("error creating pdf template", e);
+		}
+		return baos.toByteArray();
+	}
+
+	private static void addPdfField(PdfWriter writer, String name, float x, float y, float width) throws DocumentException, IOException {
+
+		TextField field = new TextField(writer, new Rectangle(x, y, x + width, y + 16), name);
+		field.setFontSize(9);
+		writer.addAnnotation(field.getTextField());
+	}
+
+	private static String body(Markup m, int paragraphs) {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(m.paragraph(m.field("brief.titel", null) + m.text(" ") + m.field("brief.datum", "dd.MM.yyyy")));
+		sb.append(m.paragraph(m.field("brief.empfaenger.name", null)));
+		sb.append(m.paragraph(m.field("brief.empfaenger.strasse", null)));
+		sb.append(m.paragraph(m.field("brief.empfaenger.ort", null)));
+		Random random = new Random(SyntheticData.SEED);
+		for (int i = 0; i < paragraphs; i++) {
+			sb.append(m.paragraph(m.text(SyntheticData.text(random, WORDS_PER_PARAGRAPH) + " ") + m.field("brief.titel", null)));
+		}
+		String row = m.field("brief.positionen.nummer", null) + m.text(" ") + m.field("brief.positionen.text", null) + m.text(" ")
+				+ m.field("brief.positionen.datum", "dd.MM.yyyy") + m.text(" ") + m.field("brief.positionen.betrag", "#,##0.00") + m.text(" ")
+				+ m.field("brief.positionen.menge", "0.00") + m.block("IF", "hasNext", m.text(";"));
+		sb.append(m.block("WHILE", "brief.positionen", m.paragraph(row)));
+		sb.append(m.paragraph(m.text("Total ") + m.field("brief.betrag", "#,##0.00")));
+		return sb.toString();
+	}
+
+	private static String formatKey(String key, String format) {
+
+		return format == null ? key : key + "_FMT" + format;
+	}
+
+	private static byte[] zip(String... namesAndContents) {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream zipout = new ZipOutputStream(baos)) {
+			for (int i = 0; i < namesAndContents.length; i += 2) {
+				zipout.putNextEntry(new ZipEntry(namesAndContents[i]));
+				zipout.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Auszeichnung der Vorlagenelemente im jeweiligen Format.
+	 */
+	private interface Markup {
+
+		String paragraph(String content);
+
+		String text(String text);
+
+		String field(String key, String format);
+
+		/**
+		 * @param kind <code>IF</code> oder <code>WHILE</code>
+		 */
+		String block(String kind, String key, String content);
+	}
+
+	/**
+	 * Formate mit Textmarken fuer Bloecke: Eine Iteration steht in eigenen Absaetzen, damit jeder Durchlauf ganze
+	 * Absaetze erzeugt.
+	 */
+	private abstract static class MarkerMarkup implements Markup {
+
+		abstract String marker(String name);
+
+		@Override
+		public String field(String key, String format) {
+
+			return marker("FIELD_" + formatKey(key, format));
+		}
+
+		@Override
+		public String block(String kind, String key, String content) {
+
+			if ("WHILE".equals(kind)) {
+				return paragraph(marker(kind + "_" + key)) + content + paragraph(marker("END" + kind + "_" + key));
+			}
+			return marker(kind + "_" + key) + content + marker("END" + kind + "_" + key);
+		}
+	}
+
+	private static class OdtMarkup extends MarkerMarkup {
+
+		@Override
+		public String paragraph(String content) {
+
+			return "<text:p>" + content + "</text:p>";
+		}
+
+		@Override
+		public String text(String text) {
+
+			return StringEscapeUtils.escapeXml(text);
+		}
+
+		@Override
+		String marker(String name) {
+
+			return "<text:bookmark text:name=\"" + StringEscapeUtils.escapeXml(name) + "\"/>";
+		}
+	}
+
+	private static class DocxMarkup extends MarkerMarkup {
+
+		@Override
+		public String paragraph(String content) {
+
+			return "<w:p>" + content + "</w:p>";
+		}
+
+		@Override
+		public String text(String text) {
+
+			return "<w:r><w:t xml:space=\"preserve\">" + StringEscapeUtils.escapeXml(text) + "</w:t></w:r>";
+		}
+
+		@Override
+		String marker(String name) {
+
+			return "<w:r><w:fldChar w:fldCharType=\"begin\"/></w:r><w:r><w:instrText xml:space=\"preserve\"> DOCVARIABLE  "
+					+ StringEscapeUtils.escapeXml(name) + "  \\* MERGEFORMAT </w:instrText></w:r><w:r><w:fldChar w:fldCharType=\"end\"/></w:r>";
+		}
+	}
+
+	private static class RtfMarkup extends MarkerMarkup {
+
+		@Override
+		public String paragraph(String content) {
+
+			return "{\\pard " + content + "\\par}\r\n";
+		}
+
+		@Override
+		public String text(String text) {
+
+			return text;
+		}
+
+		@Override
+		public String field(String key, String format) {
+
+			return "{\\field{\\*\\fldinst { MERGEFIELD " + formatKey(key, format) + " \\\\* MERGEFORMAT }}{\\fldrslt x}}";
+		}
+
+		@Override
+		String marker(String name) {
+
+			return "{\\*\\bkmkstart " + name + "}{\\*\\bkmkend " + name + "}";
+		}
+	}
+
+	private static class XmlMarkup implements Markup {
+
+		@Override
+		public String paragraph(String content) {
+
+			return "<absatz>" + content + "</absatz>";
+		}
+
+		@Override
+		public String text(String text) {
+
+			return StringEscapeUtils.escapeXml(text);
+		}
+
+		@Override
+		public String field(String key, String format) {
+
+			return "<ldt:field path=\"" + key + "\"" + (format == null ? "" : " formatter=\"" + StringEscapeUtils.escapeXml(format) + "\"") + "/>";
+		}
+
+		@Override
+		public String block(String kind, String key, String content) {
+
+			String tag = "ldt:" + kind.toLowerCase();
+			return "<" + tag + " path=\"" + key + "\">" + content + "</" + tag + ">";
+		}
+	}
+}
@@ -55,4 +55,10 @@ public abstract class AbstractMergeElement extends BasicMergeElement {
 		}
 	}
 
+	@Override
+	protected boolean usesIndexedKey() {
+
+		return isIndexedKey(this.key) || super.usesIndexedKey();
+	}
+
 }
@@ -19,9 +19,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -51,7 +53,9 @@ public abstract class AbstractMergeEngine<T extends Image> {
 
 	protected Stack<BasicMergeElement> parseStack;
 	protected Map<String, String> keyTranslationTable = null;
-	protected Map<String, T> images = new LinkedHashMap<>();
+	private final ImageRegistry<T> imageRegistry = new ImageRegistry<>();
+	/** eingefuegte Bilder nach Name, nur lesbare Sicht auf {@link #getImageRegistry()} */
+	protected Map<String, T> images = this.imageRegistry.asMapView();
 	protected static final String CONDITION = "IF_";
 	protected static final String ITERATION = "WHILE_";
 	protected static final String CONDITION_END = "ENDIF_";
@@ -66,6 +70,10 @@ public abstract class AbstractMergeEngine<T extends Image> {
 
 	protected String name;
 
+	private ExecutorService partExecutor = null;
+	private ForkJoinPool iterationPool = null;
+	private int iterationChunkSize = 0;
+
 	private static final Log LOG = LogFactory.getLog(AbstractMergeEngine.class);
 	/**
 	 * @param name
@@ -90,6 +98,61 @@ public abstract class AbstractMergeEngine<T extends Image> {
 		this.keyTranslationTable.put("_FMT2DP", "_FMT#,##0.00");
 	}
 
+	/**
+	 * @return Verzeichnis der eingefuegten Bilder, vergibt die Indizes der Bilder
+	 */
+	protected ImageRegistry<T> getImageRegistry() {
+		return imageRegistry;
+	}
+
+	/**
+	 * @return Executor fuer das parallele Rendern der Dokumentteile oder <code>null</code>
+	 */
+	public ExecutorService getPartExecutor() {
+		return partExecutor;
+	}
+
+	/**
+	 * Unabhaengige Teile eines Dokuments (z.B. Inhalt, Kopf- und Fusszeilen) werden ueber <code>partExecutor</code>
+	 * gleichzeitig in eigene Puffer gerendert und danach in der urspruenglichen Reihenfolge geschrieben. Die Vorlagen
+	 * werden weiterhin nacheinander geparst. Die {@link MergeSource} muss dafuer gleichzeitige Lesezugriffe erlauben.
+	 *
+	 * @param partExecutor Executor, <code>null</code> fuer sequentielles Rendern (Vorgabe)
+	 */
+	public void setPartExecutor(ExecutorService partExecutor) {
+		this.partExecutor = partExecutor;
+	}
+
+	/**
+	 * @return Pool fuer das parallele Rendern grosser Iterationen oder <code>null</code>
+	 */
+	public ForkJoinPool getIterationPool() {
+		return iterationPool;
+	}
+
+	/**
+	 * @return Anzahl Eintraege pro parallel gerendertem Abschnitt einer Iteration
+	 */
+	public int getIterationChunkSize() {
+		return iterationChunkSize;
+	}
+
+	/**
+	 * Iterationen (<code>WHILE_</code>) mit mehr als <code>chunkSize</code> Eintraegen werden abschnittsweise im
+	 * <code>pool</code> gerendert und in der urspruenglichen Reihenfolge zusammengesetzt, siehe
+	 * {@link IterationMergeElement#setChunking(ForkJoinPool, int)}. Die Einstellung gilt fuer danach gemergte Dokumente.
+	 *
+	 * @param pool Pool, <code>null</code> fuer sequentielles Rendern (Vorgabe)
+	 * @param chunkSize Anzahl Eintraege pro Abschnitt
+	 */
+	public void setIterationChunking(ForkJoinPool pool, int chunkSize) {
+		if (pool != null && chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.iterationPool = pool;
+		this.iterationChunkSize = chunkSize;
+	}
+
 	/**
 	 * @param mergeSource
 	 * @param input
@@ -99,6 +162,55 @@ public abstract class AbstractMergeEngine<T extends Image> {
 	protected void mergeContent(MergeSource mergeSource, InputStream input,
 			OutputStream output) throws DocTemplateException {
 
+		renderContent(parseContent(input), mergeSource, output);
+	}
+
+	/**
+	 * Erstellt das Ergebnis fuer eine mit {@link #parseContent(InputStream)} geparste Vorlage. Kann fuer verschiedene
+	 * Vorlagen gleichzeitig aufgerufen werden.
+	 *
+	 * @param bme geparste Vorlage
+	 * @param mergeSource
+	 * @param output
+	 * @throws DocTemplateException
+	 */
+	protected void renderContent(BasicMergeElement bme, MergeSource mergeSource,
+			OutputStream output) throws DocTemplateException {
+
+		renderContent(bme, mergeSource, output, null);
+	}
+
+	/**
+	 * Wie {@link #renderContent(BasicMergeElement, MergeSource, OutputStream)} fuer einen gleichzeitig gerenderten
+	 * Dokumentteil: neue Bilder werden erst registriert, wenn alle vorangehenden Teile gerendert sind, damit die
+	 * Nummerierung der Bilder der Dokumentreihenfolge entspricht.
+	 *
+	 * @param bme geparste Vorlage
+	 * @param mergeSource
+	 * @param output
+	 * @param previousParts abgeschlossen, sobald alle vorangehenden Teile gerendert sind, <code>null</code> falls
+	 *            sequentiell gerendert wird
+	 * @throws DocTemplateException
+	 */
+	protected void renderContent(BasicMergeElement bme, MergeSource mergeSource, OutputStream output,
+			CompletableFuture<Void> previousParts) throws DocTemplateException {
+
+		MergeContext ctx = new MergeContext(mergeSource);
+		if (previousParts != null) {
+			ctx = new MergeContext(ctx, mergeSource, previousParts);
+		}
+		bme.getContent(ctx, mergeSource, output);
+	}
+
+	/**
+	 * Parst eine XML-Vorlage in ihre Struktur.
+	 *
+	 * @param input
+	 * @return Wurzel der Struktur
+	 * @throws DocTemplateException
+	 */
+	protected BasicMergeElement parseContent(InputStream input) throws DocTemplateException {
+
 		try (InputStreamRemainingOpen is = new InputStreamRemainingOpen(input)) {
 			// XML Verarbeitung
 			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -122,8 +234,7 @@ public abstract class AbstractMergeEngine<T extends Image> {
 				LOG.error("There is an unmatched tag on the stack. The template has an invalid structure: " + errorMessage);
 				throw new DocTemplateException("error.template.invalid.structure", errorMessage);
 			}
-			// Ergebnis erstellen
-			bme.getContent(new MergeContext(mergeSource), mergeSource, output);
+			return bme;
 		}
 		catch (DocTemplateException sfe) {
 			throw sfe;
@@ -168,6 +279,7 @@ public abstract class AbstractMergeEngine<T extends Image> {
 				key = key.substring(ITERATION.length());
 				IterationMergeElement ime = new IterationMergeElement(this.name,
 						translate(key));
+				ime.setChunking(this.iterationPool, this.iterationChunkSize);
 				this.parseStack.peek().addMergeElement(ime);
 				this.parseStack.push(ime);
 			}
@@ -247,7 +359,7 @@ public abstract class AbstractMergeEngine<T extends Image> {
 	 */
 	protected XmlBasedFieldMergeElement<T> getFieldMergeElement(String key,
 			ImageHandler<T> imageHandler) {
-		return new XmlBasedFieldMergeElement<>(this.name, key, this.images, imageHandler);
+		return new XmlBasedFieldMergeElement<>(this.name, key, this.imageRegistry, imageHandler);
 	}
 
 	/**
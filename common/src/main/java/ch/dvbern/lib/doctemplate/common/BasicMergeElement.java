@@ -72,4 +72,31 @@ public class BasicMergeElement {
 		}
 	}
 
+	/**
+	 * Prueft, ob dieses Element oder eines seiner Unterelemente einen Key mit Index (<code>_[n]</code>) verwendet. Solche
+	 * Keys lesen innerhalb einer Iteration mehrere Eintraege pro Durchlauf.
+	 *
+	 * @return <code>true</code>, wenn ein indizierter Key verwendet wird
+	 */
+	protected boolean usesIndexedKey() {
+
+		if (this.mergeElements != null) {
+			for (BasicMergeElement bme : this.mergeElements) {
+				if (bme.usesIndexedKey()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param key zu pruefender Key
+	 * @return <code>true</code>, wenn <code>key</code> einen Index (<code>_[n]</code>) enthaelt
+	 */
+	protected static boolean isIndexedKey(String key) {
+
+		return key != null && key.contains("_[");
+	}
+
 }
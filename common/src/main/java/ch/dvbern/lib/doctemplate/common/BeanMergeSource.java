@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,7 +44,7 @@ public class BeanMergeSource implements MergeSource {
 
 	private final String alternativePrefix;
 
-	private static final Map<Class<?>, Map<String, Method>> beanAccessMethodCache = new HashMap<>();
+	private static final Map<Class<?>, Map<String, Method>> beanAccessMethodCache = new ConcurrentHashMap<>();
 
 	/**
 	 * Konstruktor.
@@ -174,9 +175,7 @@ public class BeanMergeSource implements MergeSource {
 			} catch (IntrospectionException e) {
 				log.warn("Introspection Exception", e);
 			}
-			synchronized (beanAccessMethodCache) {
-				beanAccessMethodCache.put(o.getClass(), methods);
-			}
+			beanAccessMethodCache.put(o.getClass(), methods);
 		}
 		return methods.get(name.toLowerCase());
 	}
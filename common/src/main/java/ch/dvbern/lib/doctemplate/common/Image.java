@@ -14,15 +14,36 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * Kapselt ein Bild im PNG Format als byte array. Wenn die Methode getData(...) einer {@link MergeSource} eine Instanz
  * dieses Typs liefert, wird ein Bild in das zu erstellende Dokument eingefuegt.
+ * <p>
+ * Alternativ zum byte array kann der Bildinhalt als {@link ByteBuffer}, als memory-mapped Datei oder als {@link Source}
+ * (erst beim Schreiben gelesen) uebergeben werden. Die Engines schreiben den Inhalt mit {@link #writeTo(OutputStream)}
+ * direkt in das Ergebnisdokument, ohne ihn als byte array zu materialisieren.
  */
 public class Image {
 
+	private static final int BUFFER_SIZE = 8192;
+
 	private final byte[] bytes;
+	private final ByteBuffer buffer;
+	private final Source source;
 	private final int width, height;
 	private final Format format;
+	private volatile String digest;
 
 	/**
 	 * @param bytes
@@ -31,19 +52,175 @@ public class Image {
 	 * @param format
 	 */
 	public Image(byte[] bytes, int width, int height, Format format) {
+		this(bytes, width, height, format, false);
+	}
+
+	/**
+	 * @param bytes
+	 * @param width
+	 * @param height
+	 * @param format
+	 * @param immutable <code>true</code>, wenn der Aufrufer zusichert, <code>bytes</code> nicht mehr zu veraendern; in
+	 *            diesem Fall wird auf die defensive Kopie verzichtet
+	 */
+	public Image(byte[] bytes, int width, int height, Format format, boolean immutable) {
+		super();
+		this.bytes = immutable ? bytes : java.util.Arrays.copyOf(bytes, bytes.length);
+		this.buffer = null;
+		this.source = null;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+	}
+
+	/**
+	 * Bild auf Basis eines {@link ByteBuffer}s. Es wird keine Kopie erstellt, der Inhalt zwischen position und limit
+	 * darf danach nicht mehr veraendert werden.
+	 *
+	 * @param buffer
+	 * @param width
+	 * @param height
+	 * @param format
+	 */
+	public Image(ByteBuffer buffer, int width, int height, Format format) {
 		super();
-		this.bytes = java.util.Arrays.copyOf(bytes, bytes.length);
+		this.bytes = null;
+		this.buffer = buffer.slice().asReadOnlyBuffer();
+		this.source = null;
 		this.width = width;
 		this.height = height;
 		this.format = format;
 	}
 
 	/**
+	 * Bild auf Basis einer Datei, die memory-mapped eingelesen wird.
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @param format
+	 * @throws IOException wenn die Datei nicht gelesen werden kann
+	 */
+	public Image(Path file, int width, int height, Format format) throws IOException {
+		this(map(file), width, height, format);
+	}
+
+	/**
+	 * Bild, dessen Inhalt erst beim Schreiben in das Ergebnisdokument aus <code>source</code> gelesen wird.
+	 *
+	 * @param source
+	 * @param width
+	 * @param height
+	 * @param format
+	 */
+	public Image(Source source, int width, int height, Format format) {
+		super();
+		this.bytes = null;
+		this.buffer = null;
+		this.source = source;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+	}
+
+	private static ByteBuffer map(Path file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Liefert den Bildinhalt als byte array. Ist das Bild nicht durch ein byte array hinterlegt, wird der Inhalt bei
+	 * jedem Aufruf neu gelesen; {@link #writeTo(OutputStream)} oder {@link #openStream()} sind dann vorzuziehen.
+	 * <p>
+	 * Bei einem durch ein byte array hinterlegten Bild wird aus Performancegruenden keine Kopie, sondern das interne
+	 * array geliefert. Es darf nicht veraendert werden, da sonst {@link #getDigest()} und {@link #equals(Object)} nicht
+	 * mehr zum Inhalt passen.
+	 *
 	 * @return Returns the bytes.
 	 */
 	public byte[] getBytes() {
 
-		return this.bytes;
+		if (this.bytes != null) {
+			return this.bytes;
+		}
+		if (this.buffer != null) {
+			byte[] result = new byte[this.buffer.remaining()];
+			this.buffer.duplicate().get(result);
+			return result;
+		}
+		try (InputStream is = this.source.openStream()) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			transfer(is, baos);
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException("error reading image source", e);
+		}
+	}
+
+	/**
+	 * @return Laenge des Bildinhalts in Bytes oder <code>-1</code>, wenn sie erst beim Lesen der {@link Source}
+	 *         feststeht
+	 */
+	public long getLength() {
+
+		if (this.bytes != null) {
+			return this.bytes.length;
+		}
+		if (this.buffer != null) {
+			return this.buffer.remaining();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return neuer {@link InputStream} ueber den Bildinhalt
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+
+		if (this.bytes != null) {
+			return new ByteArrayInputStream(this.bytes);
+		}
+		if (this.buffer != null) {
+			return new ByteBufferInputStream(this.buffer.duplicate());
+		}
+		return this.source.openStream();
+	}
+
+	/**
+	 * Schreibt den Bildinhalt nach <code>output</code>, ohne ihn als Ganzes zu materialisieren.
+	 *
+	 * @param output Ziel
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+
+		if (this.bytes != null) {
+			output.write(this.bytes);
+		} else if (this.buffer != null) {
+			ByteBuffer bb = this.buffer.duplicate();
+			byte[] chunk = new byte[Math.min(BUFFER_SIZE, bb.remaining())];
+			while (bb.hasRemaining()) {
+				int n = Math.min(chunk.length, bb.remaining());
+				bb.get(chunk, 0, n);
+				output.write(chunk, 0, n);
+			}
+		} else {
+			try (InputStream is = this.source.openStream()) {
+				transfer(is, output);
+			}
+		}
+	}
+
+	private static void transfer(InputStream input, OutputStream output) throws IOException {
+
+		byte[] buf = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = input.read(buf)) != -1) {
+			output.write(buf, 0, read);
+		}
 	}
 
 	/**
@@ -70,6 +247,100 @@ public class Image {
 		return this.format;
 	}
 
+	/**
+	 * Liefert einen Hashwert (SHA-256, hexadezimal) ueber den Bildinhalt. Der Wert wird beim ersten Zugriff berechnet
+	 * und danach wiederverwendet, damit gleiche Bilder ohne wiederholten Byte-Vergleich erkannt werden koennen.
+	 *
+	 * @return Hashwert des Bildinhalts
+	 */
+	public String getDigest() {
+
+		String result = this.digest;
+		if (result == null) {
+			result = computeDigest();
+			this.digest = result;
+		}
+		return result;
+	}
+
+	private String computeDigest() {
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			if (this.bytes != null) {
+				md.update(this.bytes);
+			} else if (this.buffer != null) {
+				md.update(this.buffer.duplicate());
+			} else {
+				try (InputStream is = this.source.openStream()) {
+					byte[] buf = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = is.read(buf)) != -1) {
+						md.update(buf, 0, read);
+					}
+				}
+			}
+			byte[] hash = md.digest();
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("error reading image source", e);
+		}
+	}
+
+	/**
+	 * Bezugsquelle fuer einen erst bei Bedarf gelesenen Bildinhalt. {@link #openStream()} kann mehrfach aufgerufen
+	 * werden und muss jedesmal den vollstaendigen, unveraenderten Inhalt liefern.
+	 */
+	public interface Source {
+
+		/**
+		 * @return neuer {@link InputStream} ueber den Bildinhalt
+		 * @throws IOException
+		 */
+		InputStream openStream() throws IOException;
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer bb;
+
+		ByteBufferInputStream(ByteBuffer bb) {
+			this.bb = bb;
+		}
+
+		@Override
+		public int read() {
+
+			return this.bb.hasRemaining() ? this.bb.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+
+			if (len == 0) {
+				return 0;
+			}
+			if (!this.bb.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, this.bb.remaining());
+			this.bb.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+
+			return this.bb.remaining();
+		}
+	}
+
 	/**
 	 * Bildformat
 	 */
@@ -90,7 +361,7 @@ public class Image {
 
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + java.util.Arrays.hashCode(this.bytes);
+		result = prime * result + getDigest().hashCode();
 		result = prime * result + (this.format == null ? 0 : this.format.hashCode());
 		result = prime * result + this.height;
 		result = prime * result + this.width;
@@ -110,9 +381,6 @@ public class Image {
 			return false;
 		}
 		Image other = (Image) obj;
-		if (!java.util.Arrays.equals(this.bytes, other.bytes)) {
-			return false;
-		}
 		if (this.format != other.format) {
 			return false;
 		}
@@ -122,7 +390,7 @@ public class Image {
 		if (this.width != other.width) {
 			return false;
 		}
-		return true;
+		return getDigest().equals(other.getDigest());
 	}
 
 }
\ No newline at end of file
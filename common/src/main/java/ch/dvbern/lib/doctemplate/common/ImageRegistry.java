@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verzeichnis der in ein Dokument eingefuegten Bilder. Jedes Bild erhaelt beim ersten Einfuegen einen fortlaufenden
+ * Index, der fuer alle Doubletten (gleicher {@link Image#getDigest()}) wiederverwendet wird.
+ * <p>
+ * Das Verzeichnis ist threadsicher, damit mehrere Teile eines Dokuments parallel gerendert werden koennen. Wer
+ * {@link #indexOf(Image)} und {@link #register(String, Image)} zusammen ausfuehren muss, synchronisiert dafuer auf dem
+ * Verzeichnis selbst.
+ *
+ * @param <T> Bildtyp der Engine
+ */
+public class ImageRegistry<T extends Image> {
+
+	/** Einzelzugriffe auch ueber {@link #asMapView()} synchronisiert */
+	private final Map<String, T> imagesByName = Collections.synchronizedMap(new LinkedHashMap<>());
+	private final Map<T, Integer> indexByImage = new HashMap<>();
+	private final List<T> imagesByIndex = new ArrayList<>();
+
+	/**
+	 * @param image gesuchtes Bild
+	 * @return Index des bereits registrierten Bildes oder <code>-1</code>, wenn das Bild noch nicht registriert ist
+	 */
+	public synchronized int indexOf(T image) {
+
+		Integer index = this.indexByImage.get(image);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * @param index Index gemaess {@link #indexOf(Image)}
+	 * @return die beim ersten Einfuegen registrierte Bildinstanz
+	 */
+	public synchronized T get(int index) {
+
+		return this.imagesByIndex.get(index);
+	}
+
+	/**
+	 * Registriert ein neues Bild unter dem Index {@link #size()}.
+	 *
+	 * @param name Name (Pfad) des Bildes im Ergebnisdokument
+	 * @param image zu registrierendes Bild
+	 */
+	public synchronized void register(String name, T image) {
+
+		this.indexByImage.put(image, Integer.valueOf(this.imagesByIndex.size()));
+		this.imagesByIndex.add(image);
+		this.imagesByName.put(name, image);
+	}
+
+	/**
+	 * @return Anzahl registrierter Bilder
+	 */
+	public synchronized int size() {
+
+		return this.imagesByIndex.size();
+	}
+
+	/**
+	 * @return <code>true</code>, wenn keine Bilder registriert sind
+	 */
+	public synchronized boolean isEmpty() {
+
+		return this.imagesByIndex.isEmpty();
+	}
+
+	/**
+	 * @return Kopie der registrierten Bilder in der Reihenfolge ihrer Indizes
+	 */
+	public synchronized Collection<T> values() {
+
+		return Collections.unmodifiableList(new ArrayList<>(this.imagesByIndex));
+	}
+
+	/**
+	 * @return Kopie der registrierten Bilder nach Name in der Reihenfolge ihrer Indizes
+	 */
+	public synchronized Map<String, T> asMap() {
+
+		return Collections.unmodifiableMap(new LinkedHashMap<>(this.imagesByName));
+	}
+
+	/**
+	 * @return nur lesbare, laufend aktualisierte Sicht auf die registrierten Bilder nach Name in der Reihenfolge ihrer
+	 *         Indizes; iteriert werden darf erst, wenn keine Teile des Dokuments mehr gerendert werden
+	 */
+	public Map<String, T> asMapView() {
+
+		return Collections.unmodifiableMap(this.imagesByName);
+	}
+}
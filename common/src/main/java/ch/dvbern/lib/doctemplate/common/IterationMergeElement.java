@@ -14,9 +14,16 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.logging.Log;
@@ -31,6 +38,8 @@ public class IterationMergeElement extends AbstractMergeElement {
 
 	private static final Log log = LogFactory.getLog(IterationMergeElement.class);
 	private List<String> sortFieldKeys;
+	private ForkJoinPool chunkPool = null;
+	private int chunkSize = 0;
 
 	/**
 	 * Konstruktor eines MergeElements, dessen Ausgabe iterativ erfolgen kann.
@@ -53,6 +62,29 @@ public class IterationMergeElement extends AbstractMergeElement {
 		this.sortFieldKeys.add(key1);
 	}
 
+	/**
+	 * Aktiviert das parallele Rendern grosser Iterationen: Die Eintraege werden in zusammenhaengende Abschnitte zu
+	 * <code>chunkSize</code> Eintraegen aufgeteilt, jeder Abschnitt wird im <code>chunkPool</code> mit eigenem
+	 * {@link MergeContext} in einen eigenen Puffer gerendert und die Puffer werden in der urspruenglichen Reihenfolge
+	 * geschrieben. Iterationen mit hoechstens <code>chunkSize</code> Eintraegen sowie Iterationen mit indizierten Keys
+	 * (<code>_[n]</code>) werden weiterhin sequentiell gerendert.
+	 * <p>
+	 * Die {@link MergeSource} muss dafuer gleichzeitige Lesezugriffe erlauben; Kontext-Attribute, die innerhalb der
+	 * Iteration gesetzt werden, sind nur im jeweiligen Abschnitt sichtbar. Neue Bilder werden erst registriert, wenn alle
+	 * vorangehenden Abschnitte fertig sind, damit die Bildindizes gleich wie beim sequentiellen Rendern vergeben werden.
+	 *
+	 * @param chunkPool Pool fuer die Abschnitte, <code>null</code> fuer sequentielles Rendern (Vorgabe)
+	 * @param chunkSize Anzahl Eintraege pro Abschnitt
+	 */
+	public void setChunking(ForkJoinPool chunkPool, int chunkSize) {
+
+		if (chunkPool != null && chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.chunkPool = chunkPool;
+		this.chunkSize = chunkSize;
+	}
+
 	@Override
 	public String getContent(MergeContext ctx, MergeSource mergeSource) throws DocTemplateException {
 
@@ -78,7 +110,9 @@ public class IterationMergeElement extends AbstractMergeElement {
 
 		IterationMergeSource ims = IterationMergeHelper.getIterationMergeSource(ctx, mergeSource, this.key, this.sortFieldKeys);
 		log.debug(this.name + ": iterative output with key " + this.key);
-		if (ims != null) {
+		if (ims != null && isChunked(ims)) {
+			getChunkedContent(ctx, ims, output);
+		} else if (ims != null) {
 			MergeSource previousMergeSource = ctx.getCurrentMergeSource();
 			ctx.setCurrentMergeSource(ims);
 			while (ims.hasNext()) {
@@ -91,6 +125,63 @@ public class IterationMergeElement extends AbstractMergeElement {
 		}
 	}
 
+	private boolean isChunked(IterationMergeSource ims) {
+
+		// mit indizierten Keys liest ein Durchlauf mehrere Eintraege, die Abschnittsgrenzen waeren nicht bekannt
+		return this.chunkPool != null && ims.getMergeSources().size() > this.chunkSize && !usesIndexedKey();
+	}
+
+	private void getChunkedContent(MergeContext ctx, IterationMergeSource ims, OutputStream output) throws DocTemplateException {
+
+		List<MergeSource> sources = ims.getMergeSources();
+		int size = sources.size();
+		log.debug(this.name + ": rendering " + size + " iterations in chunks of " + this.chunkSize);
+		List<CompletableFuture<ByteArrayOutputStream>> chunks = new ArrayList<>();
+		// Abschnitte einer aeusseren parallelen Iteration gehen auch diesem Abschnitt voran
+		CompletableFuture<Void> previousChunks = ctx.getPreviousChunks();
+		for (int from = 0; from < size; from += this.chunkSize) {
+			int to = Math.min(from + this.chunkSize, size);
+			IterationMergeSource chunkSource = new IterationMergeSource(sources.subList(from, to), ims.getBasicSource(), to < size);
+			MergeContext chunkCtx = new MergeContext(ctx, chunkSource, previousChunks);
+			CompletableFuture<ByteArrayOutputStream> chunk = CompletableFuture.supplyAsync(() -> renderChunk(chunkCtx, chunkSource), this.chunkPool);
+			chunks.add(chunk);
+			previousChunks = previousChunks == null ? CompletableFuture.allOf(chunk) : CompletableFuture.allOf(previousChunks, chunk);
+		}
+		try {
+			for (CompletableFuture<ByteArrayOutputStream> chunk : chunks) {
+				chunk.get().writeTo(output);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocTemplateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DocTemplateException) {
+				throw (DocTemplateException) e.getCause();
+			}
+			throw new DocTemplateException(e.getCause());
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		} finally {
+			for (CompletableFuture<ByteArrayOutputStream> chunk : chunks) {
+				chunk.cancel(false);
+			}
+		}
+	}
+
+	private ByteArrayOutputStream renderChunk(MergeContext chunkCtx, IterationMergeSource chunkSource) {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			while (chunkSource.hasNext()) {
+				chunkSource.next();
+				super.getContent(chunkCtx, chunkSource, buffer);
+			}
+		} catch (DocTemplateException e) {
+			throw new CompletionException(e);
+		}
+		return buffer;
+	}
+
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this)
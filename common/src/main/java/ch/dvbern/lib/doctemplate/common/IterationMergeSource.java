@@ -37,6 +37,8 @@ public class IterationMergeSource implements MergeSource {
 	private final MergeSource basicSource;
 	private Iterator<MergeSource> sourceIterator;
 	private final List<MergeSource> currentSources = new ArrayList<>();
+	/** <code>true</code> fuer einen Abschnitt einer parallelen Iteration, auf den weitere Eintraege folgen */
+	private final boolean continued;
 
 	/**
 	 * @param mergeSources ueber diese MergeSourcen wird iteriert
@@ -70,6 +72,37 @@ public class IterationMergeSource implements MergeSource {
 		}
 
 		this.basicSource = basicSource;
+		this.continued = false;
+	}
+
+	/**
+	 * Abschnitt einer parallel gerenderten Iteration.
+	 *
+	 * @param mergeSources die Eintraege des Abschnitts
+	 * @param basicSource die uebergeordnete MergeSource
+	 * @param continued <code>true</code>, wenn nach dem Abschnitt weitere Eintraege folgen (fuer <code>hasNext</code>)
+	 */
+	IterationMergeSource(List<MergeSource> mergeSources, MergeSource basicSource, boolean continued) {
+
+		this.mergeSources = mergeSources;
+		this.basicSource = basicSource;
+		this.continued = continued;
+	}
+
+	/**
+	 * @return die Eintraege, ueber die iteriert wird (nach Anwendung des von-/bis-Bereichs)
+	 */
+	List<MergeSource> getMergeSources() {
+
+		return this.mergeSources;
+	}
+
+	/**
+	 * @return die uebergeordnete MergeSource
+	 */
+	MergeSource getBasicSource() {
+
+		return this.basicSource;
 	}
 
 	/**
@@ -124,7 +157,7 @@ public class IterationMergeSource implements MergeSource {
 		}
 
 		if (key.endsWith("hasNext")) {
-			return Boolean.valueOf(this.sourceIterator.hasNext());
+			return Boolean.valueOf(this.sourceIterator.hasNext() || this.continued);
 		}
 		StringBuffer sbKey = new StringBuffer(key);
 		int index = initCurrentSource(sbKey);
@@ -16,6 +16,9 @@ package ch.dvbern.lib.doctemplate.common;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Ermoeglich den Austausch von Informationen zwischen verschiedenen {@link MergeSource}-Instanzen.
@@ -24,6 +27,8 @@ public class MergeContext {
 
 	MergeSource currentMergeSource;
 	private Map<Object, Object> attributes;
+	/** bei paralleler Iteration: abgeschlossen, sobald alle vorangehenden Abschnitte gerendert sind */
+	private CompletableFuture<Void> previousChunks;
 
 	/**
 	 * Konstruktor
@@ -35,6 +40,48 @@ public class MergeContext {
 		this.currentMergeSource = currentMergeSource;
 	}
 
+	/**
+	 * Kontext fuer einen parallel gerenderten Abschnitt einer Iteration. Die Attribute werden kopiert, Aenderungen
+	 * bleiben auf den Abschnitt beschraenkt.
+	 *
+	 * @param parent Kontext der Iteration
+	 * @param currentMergeSource Merge-Quelle des Abschnitts
+	 * @param previousChunks abgeschlossen, sobald alle vorangehenden Abschnitte gerendert sind
+	 */
+	MergeContext(MergeContext parent, MergeSource currentMergeSource, CompletableFuture<Void> previousChunks) {
+
+		this.currentMergeSource = currentMergeSource;
+		if (parent.attributes != null) {
+			this.attributes = new HashMap<>(parent.attributes);
+		}
+		this.previousChunks = previousChunks;
+	}
+
+	/**
+	 * @return abgeschlossen, sobald alle vorangehenden Abschnitte gerendert sind, <code>null</code> ausserhalb einer
+	 *         parallelen Iteration
+	 */
+	CompletableFuture<Void> getPreviousChunks() {
+
+		return this.previousChunks;
+	}
+
+	/**
+	 * Wartet innerhalb einer parallelen Iteration, bis alle vorangehenden Abschnitte gerendert sind.
+	 *
+	 * @throws DocTemplateException falls ein vorangehender Abschnitt fehlgeschlagen ist
+	 */
+	void awaitPreviousChunks() throws DocTemplateException {
+
+		if (this.previousChunks != null) {
+			try {
+				this.previousChunks.join();
+			} catch (CompletionException | CancellationException e) {
+				throw new DocTemplateException(e);
+			}
+		}
+	}
+
 	/**
 	 * @return Returns the currentMergeSource.
 	 */
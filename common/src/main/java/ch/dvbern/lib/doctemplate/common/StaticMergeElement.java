@@ -16,6 +16,7 @@ package ch.dvbern.lib.doctemplate.common;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -24,6 +25,9 @@ import java.nio.charset.StandardCharsets;
 public class StaticMergeElement extends BasicMergeElement {
 
 	private final String staticContent;
+	private final Charset charset;
+	/** kodierter Inhalt, wird beim ersten Schreiben ermittelt und danach wiederverwendet */
+	private volatile byte[] encodedContent;
 
 	/**
 	 * Konstruktor fuer ein MergeElement mit statischem Inhalt.
@@ -32,7 +36,19 @@ public class StaticMergeElement extends BasicMergeElement {
 	 */
 	public StaticMergeElement(String staticContent) {
 
+		this(staticContent, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Konstruktor fuer ein MergeElement mit statischem Inhalt.
+	 *
+	 * @param staticContent statischer Bestandteil der Vorlage
+	 * @param charset Kodierung fuer die Ausgabe in einen {@link OutputStream}
+	 */
+	public StaticMergeElement(String staticContent, Charset charset) {
+
 		this.staticContent = staticContent;
+		this.charset = charset;
 	}
 
 	/*
@@ -51,7 +67,12 @@ public class StaticMergeElement extends BasicMergeElement {
 	public void getContent(MergeContext ctx, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
 
 		try {
-			output.write(this.staticContent.getBytes(StandardCharsets.UTF_8));
+			byte[] encoded = this.encodedContent;
+			if (encoded == null) {
+				encoded = this.staticContent.getBytes(this.charset);
+				this.encodedContent = encoded;
+			}
+			output.write(encoded);
 		} catch (IOException e) {
 			throw new DocTemplateException(e);
 		}
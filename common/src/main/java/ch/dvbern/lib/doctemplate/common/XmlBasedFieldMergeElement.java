@@ -21,7 +21,6 @@ import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.Map;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
@@ -40,7 +39,7 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 	private static final Log log = LogFactory.getLog(XmlBasedFieldMergeElement.class);
 	private final String key;
 	private final String name;
-	private Map<String, T> images = null;
+	private ImageRegistry<T> images = null;
 	private ImageHandler<T> imageHandler = null;
 
 	/**
@@ -51,7 +50,7 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 	 * @param images
 	 * @param imageHandler
 	 */
-	public XmlBasedFieldMergeElement(String name, String key, Map<String, T> images, ImageHandler<T> imageHandler) {
+	public XmlBasedFieldMergeElement(String name, String key, ImageRegistry<T> images, ImageHandler<T> imageHandler) {
 
 		this.key = key;
 		this.name = name;
@@ -76,7 +75,7 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 
 		Object data = mergeSource.getData(ctx, keyWithoutFormatSuffix);
 		if (data instanceof Image) {
-			addImage((T) data, formatSuffix, output);
+			addImage(ctx, (T) data, formatSuffix, output);
 		} else if (data != null) {
 			String dataAsString = FormatHelper.getDataAsString(data, StringUtils.isEmpty(formatSuffix) ? getDefaultFormatter(data) : formatSuffix);
 			dataAsString = StringEscapeUtils.escapeXml(dataAsString);
@@ -146,21 +145,27 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 		}
 	}
 
-	private void addImage(T image, String formatSuffix, OutputStream output) throws DocTemplateException {
+	@Override
+	protected boolean usesIndexedKey() {
+
+		return isIndexedKey(this.key);
+	}
+
+	private void addImage(MergeContext ctx, T image, String formatSuffix, OutputStream output) throws DocTemplateException {
 
 		if (this.imageHandler != null) {
-			boolean doublette = true;
-			if (!(doublette = this.images.containsValue(image))) {
-				this.images.put(this.imageHandler.addImage(image, formatSuffix, output, this.images.size(), doublette), image);
-				return;
+			if (this.images.indexOf(image) < 0) {
+				// neue Bilder erst nach den vorangehenden Abschnitten einer parallelen Iteration registrieren
+				ctx.awaitPreviousChunks();
 			}
-			int counter = 0;
-			for (T imItem : this.images.values()) {
-				if (imItem.equals(image)) {
-					this.imageHandler.addImage(imItem, formatSuffix, output, counter, doublette);
-					break;
+			// Indexvergabe und Image-Handler gegen parallel gerenderte Dokumentteile schuetzen
+			synchronized (this.images) {
+				int index = this.images.indexOf(image);
+				if (index < 0) {
+					this.images.register(this.imageHandler.addImage(image, formatSuffix, output, this.images.size(), false), image);
+				} else {
+					this.imageHandler.addImage(this.images.get(index), formatSuffix, output, index, true);
 				}
-				counter++;
 			}
 		}
 	}
@@ -37,16 +37,20 @@ import org.apache.commons.logging.LogFactory;
  */
 public class FormatHelper {
 
-	private static final DecimalFormat defaultIntDF = getDecimalFormat(LdtConstants.DEFAULT_INT_FORMAT, null);
-	private static final DecimalFormat defaultFloatDF = getDecimalFormat(LdtConstants.DEFAULT_FLOAT_FORMAT, null);
-	private static final SimpleDateFormat defaultSDF = new SimpleDateFormat(LdtConstants.DEFAULT_DATE_FORMAT);
+	// DecimalFormat und SimpleDateFormat sind nicht Thread-Safe, deshalb eine Instanz pro Thread
+	private static final ThreadLocal<DecimalFormat> defaultIntDF =
+		ThreadLocal.withInitial(() -> getDecimalFormat(LdtConstants.DEFAULT_INT_FORMAT, null));
+	private static final ThreadLocal<DecimalFormat> defaultFloatDF =
+		ThreadLocal.withInitial(() -> getDecimalFormat(LdtConstants.DEFAULT_FLOAT_FORMAT, null));
+	private static final ThreadLocal<SimpleDateFormat> defaultSDF =
+		ThreadLocal.withInitial(() -> new SimpleDateFormat(LdtConstants.DEFAULT_DATE_FORMAT));
 
 	/**
 	 * @param o das in ein {@link String} zu konvertierende Objekt
 	 * @param formatPattern {@link SimpleDateFormat} oder {@link DecimalFormat} Pattern
 	 * @return <code>o</code> als String
 	 */
-	public synchronized static String getDataAsString(Object o, String formatPattern) {
+	public static String getDataAsString(Object o, String formatPattern) {
 
 		if (o == null) {
 			return "";
@@ -69,12 +73,12 @@ public class FormatHelper {
 				}
 				if (o instanceof Float || o instanceof Double || o instanceof BigDecimal) {
 					if (df == null) {
-						df = defaultFloatDF;
+						df = defaultFloatDF.get();
 					}
 					return df.format(n.doubleValue());
 				}
 				if (df == null) {
-					df = defaultIntDF;
+					df = defaultIntDF.get();
 				}
 				return df.format(n.longValue());
 			} else if (o instanceof Date) {
@@ -91,7 +95,7 @@ public class FormatHelper {
 					sdf = getSimpleDateFormat(formatPattern, locale);
 				}
 				if (sdf == null) {
-					sdf = defaultSDF;
+					sdf = defaultSDF.get();
 				}
 				return sdf.format(d);
 			} else if (o instanceof Boolean) {
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+
+/**
+ * Schreibt die Eintraege eines Zip-Dokuments in der Reihenfolge ihres Aufrufs. Ohne Executor werden alle Eintraege sofort
+ * geschrieben. Mit Executor werden die zu rendernden Teile gleichzeitig in eigene Puffer gerendert; alle folgenden
+ * Eintraege werden zwischengespeichert und mit {@link #finish()} in der urspruenglichen Reihenfolge geschrieben. Jeder Teil
+ * erhaelt die Fertigstellung aller vorangehenden Teile, damit z.B. Bilder in Dokumentreihenfolge nummeriert werden.
+ * {@link #close()} bricht nach einem Fehler die noch nicht geschriebenen Teile ab.
+ */
+public class OrderedZipWriter implements AutoCloseable {
+
+	/**
+	 * Rendert einen Teil des Dokuments.
+	 */
+	@FunctionalInterface
+	public interface Part {
+
+		/**
+		 * @param output Ziel fuer den Inhalt des Eintrags
+		 * @param previousParts abgeschlossen, sobald alle vorangehenden Teile gerendert sind, <code>null</code> beim
+		 *            sequentiellen Rendern
+		 * @throws DocTemplateException
+		 */
+		void render(OutputStream output, CompletableFuture<Void> previousParts) throws DocTemplateException;
+	}
+
+	private final ZipOutputStream zipout;
+	private final ExecutorService executor;
+	private final List<PendingEntry> pending = new ArrayList<>();
+	private CompletableFuture<Void> previousParts = null;
+
+	/**
+	 * @param zipout Ziel
+	 * @param executor Executor fuer das Rendern der Teile, <code>null</code> fuer sequentielles Rendern
+	 */
+	public OrderedZipWriter(ZipOutputStream zipout, ExecutorService executor) {
+
+		this.zipout = zipout;
+		this.executor = executor;
+	}
+
+	/**
+	 * Uebernimmt einen Eintrag unveraendert.
+	 *
+	 * @param name Name des Eintrags
+	 * @param input Inhalt, wird nicht geschlossen
+	 * @throws IOException
+	 */
+	public void copy(String name, InputStream input) throws IOException {
+
+		if (this.pending.isEmpty()) {
+			this.zipout.putNextEntry(new ZipEntry(name));
+			transfer(input, this.zipout);
+		} else {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			transfer(input, baos);
+			this.pending.add(new PendingEntry(name, CompletableFuture.completedFuture(baos)));
+		}
+	}
+
+	/**
+	 * Rendert einen Eintrag, mit Executor nebenlaeufig.
+	 *
+	 * @param name Name des Eintrags
+	 * @param part rendert den Inhalt
+	 * @throws IOException
+	 * @throws DocTemplateException
+	 */
+	public void render(String name, Part part) throws IOException, DocTemplateException {
+
+		if (this.executor == null) {
+			this.zipout.putNextEntry(new ZipEntry(name));
+			part.render(this.zipout, null);
+		} else {
+			CompletableFuture<Void> previous = this.previousParts;
+			PendingEntry entry = new PendingEntry(name, new CompletableFuture<>());
+			entry.task = this.executor.submit(() -> entry.render(part, previous));
+			this.pending.add(entry);
+			this.previousParts = previous == null ? CompletableFuture.allOf(entry.content) : CompletableFuture.allOf(previous, entry.content);
+		}
+	}
+
+	/**
+	 * Wartet auf alle gerenderten Teile und schreibt die zwischengespeicherten Eintraege. Danach koennen weitere Eintraege
+	 * hinzugefuegt werden.
+	 *
+	 * @throws IOException
+	 * @throws DocTemplateException Fehler beim Rendern eines Teils
+	 */
+	public void finish() throws IOException, DocTemplateException {
+
+		try {
+			for (PendingEntry entry : this.pending) {
+				ByteArrayOutputStream content = get(entry.content);
+				this.zipout.putNextEntry(new ZipEntry(entry.name));
+				content.writeTo(this.zipout);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Bricht alle noch nicht geschriebenen Teile ab und wartet, bis bereits laufende Teile beendet sind, damit nach
+	 * einem Fehler keine Teile des Dokuments mehr gerendert werden. Der Zip-Stream wird nicht geschlossen.
+	 */
+	@Override
+	public void close() {
+
+		if (this.pending.isEmpty()) {
+			return;
+		}
+		for (PendingEntry entry : this.pending) {
+			entry.cancel();
+		}
+		boolean interrupted = false;
+		for (PendingEntry entry : this.pending) {
+			while (true) {
+				try {
+					entry.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		this.pending.clear();
+		this.previousParts = null;
+	}
+
+	private static ByteArrayOutputStream get(Future<ByteArrayOutputStream> content) throws DocTemplateException {
+
+		try {
+			return content.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocTemplateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DocTemplateException) {
+				throw (DocTemplateException) e.getCause();
+			}
+			throw new DocTemplateException(e.getCause());
+		}
+	}
+
+	private static void transfer(InputStream input, OutputStream output) throws IOException {
+
+		int read = 0;
+		byte[] buf = new byte[1024];
+		while ((read = input.read(buf, 0, 1024)) != -1) {
+			output.write(buf, 0, read);
+		}
+	}
+
+	private static final class PendingEntry {
+
+		private final String name;
+		private final CompletableFuture<ByteArrayOutputStream> content;
+		/** gesetzt, sobald der Teil gerendert wird oder nicht mehr gerendert werden darf */
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		/** Auftrag im Executor, <code>null</code> fuer uebernommene Eintraege */
+		private Future<?> task;
+
+		PendingEntry(String name, CompletableFuture<ByteArrayOutputStream> content) {
+
+			this.name = name;
+			this.content = content;
+		}
+
+		void render(Part part, CompletableFuture<Void> previousParts) {
+
+			if (!this.started.compareAndSet(false, true)) {
+				// vor dem Start abgebrochen
+				return;
+			}
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				part.render(baos, previousParts);
+				this.content.complete(baos);
+			} catch (Throwable t) {
+				this.content.completeExceptionally(t);
+			} finally {
+				this.finished.countDown();
+			}
+		}
+
+		void cancel() {
+
+			// auch Teile, die auf vorangehende Teile warten, brechen damit ab
+			this.content.cancel(false);
+			if (this.task != null) {
+				this.task.cancel(true);
+			}
+		}
+
+		void await() throws InterruptedException {
+
+			if (this.task != null && !this.started.compareAndSet(false, true)) {
+				this.finished.await();
+			}
+		}
+	}
+}
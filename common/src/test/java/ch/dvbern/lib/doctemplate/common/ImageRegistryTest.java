@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Tests fuer das Bildverzeichnis.
+ */
+public class ImageRegistryTest extends Assert {
+
+	private static Image image(int seed) {
+
+		byte[] data = new byte[256];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * seed);
+		}
+		return new Image(data, 10, 20, Image.Format.PNG);
+	}
+
+	/**
+	 * Verschiedene Instanzen mit gleichem Inhalt werden als dasselbe Bild erkannt.
+	 */
+	@Test
+	public void testDuplicates() {
+
+		ImageRegistry<Image> registry = new ImageRegistry<>();
+		Image first = image(3);
+		Image copy = image(3);
+		assertNotSame(first, copy);
+		assertEquals(-1, registry.indexOf(first));
+
+		registry.register("Pictures/0.png", first);
+		assertEquals(0, registry.indexOf(first));
+		assertEquals(0, registry.indexOf(copy));
+		assertSame(first, registry.get(registry.indexOf(copy)));
+		assertEquals(-1, registry.indexOf(new Image(first.getBytes(), 10, 21, Image.Format.PNG)));
+		assertEquals(-1, registry.indexOf(new Image(first.getBytes(), 10, 20, Image.Format.JPEG)));
+	}
+
+	/**
+	 * Einmal vergebene Indizes bleiben beim Registrieren weiterer Bilder unveraendert.
+	 */
+	@Test
+	public void testIndexStability() {
+
+		ImageRegistry<Image> registry = new ImageRegistry<>();
+		Image[] images = new Image[10];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = image(i + 1);
+			registry.register("Pictures/" + i + ".png", images[i]);
+			for (int j = 0; j <= i; j++) {
+				assertEquals(j, registry.indexOf(images[j]));
+				assertEquals(j, registry.indexOf(image(j + 1)));
+				assertSame(images[j], registry.get(j));
+			}
+		}
+		assertEquals(images.length, registry.size());
+		assertFalse(registry.isEmpty());
+		assertEquals(Arrays.asList(images), new ArrayList<>(registry.values()));
+	}
+
+	/**
+	 * {@link ImageRegistry#asMap()} liefert die Bilder in der Reihenfolge der Registrierung und ist vom Verzeichnis
+	 * entkoppelt.
+	 */
+	@Test
+	public void testAsMapOrder() {
+
+		ImageRegistry<Image> registry = new ImageRegistry<>();
+		assertTrue(registry.isEmpty());
+		String[] names = { "Pictures/z.png", "Pictures/a.png", "Pictures/m.png" };
+		for (int i = 0; i < names.length; i++) {
+			registry.register(names[i], image(i + 5));
+		}
+		Map<String, Image> map = registry.asMap();
+		assertEquals(Arrays.asList(names), new ArrayList<>(map.keySet()));
+		for (int i = 0; i < names.length; i++) {
+			assertSame(registry.get(i), map.get(names[i]));
+		}
+
+		registry.register("Pictures/b.png", image(9));
+		assertEquals(names.length, map.size());
+		try {
+			map.put("Pictures/x.png", image(11));
+			fail("map must be unmodifiable");
+		} catch (UnsupportedOperationException e) {
+			// erwartet
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Tests fuer die verschiedenen Arten, einen Bildinhalt zu hinterlegen.
+ */
+public class ImageTest extends Assert {
+
+	private static byte[] data() {
+
+		byte[] data = new byte[20000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7 + i / 256);
+		}
+		return data;
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[1000];
+			int read;
+			while ((read = is.read(buf)) != -1) {
+				baos.write(buf, 0, read);
+			}
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	private static List<Image> variants(byte[] data, Path file) throws IOException {
+
+		List<Image> result = new ArrayList<>();
+		result.add(new Image(data, 10, 20, Image.Format.PNG));
+		result.add(new Image(data.clone(), 10, 20, Image.Format.PNG, true));
+		// Inhalt nur zwischen position und limit eines groesseren Buffers
+		ByteBuffer bb = ByteBuffer.allocate(data.length + 10);
+		bb.position(5);
+		bb.put(data);
+		bb.position(5);
+		bb.limit(5 + data.length);
+		result.add(new Image(bb, 10, 20, Image.Format.PNG));
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		result.add(new Image(direct, 10, 20, Image.Format.PNG));
+		result.add(new Image(file, 10, 20, Image.Format.PNG));
+		result.add(new Image(() -> new ByteArrayInputStream(data), 10, 20, Image.Format.PNG));
+		return result;
+	}
+
+	/**
+	 * Alle Varianten liefern ueber {@link Image#getBytes()}, {@link Image#openStream()} und
+	 * {@link Image#writeTo(java.io.OutputStream)} denselben Inhalt, auch bei wiederholtem Zugriff.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testContent() throws Exception {
+
+		byte[] data = data();
+		Path file = Files.createTempFile("image", ".png");
+		try {
+			Files.write(file, data);
+			for (Image image : variants(data, file)) {
+				for (int i = 0; i < 2; i++) {
+					assertTrue(Arrays.equals(data, image.getBytes()));
+					assertTrue(Arrays.equals(data, read(image.openStream())));
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					image.writeTo(baos);
+					assertTrue(Arrays.equals(data, baos.toByteArray()));
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Alle Varianten haben denselben Hashwert und sind untereinander gleich; ein abweichendes Byte, Format oder Mass
+	 * ergibt ein anderes Bild.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDigestAndEquals() throws Exception {
+
+		byte[] data = data();
+		Path file = Files.createTempFile("image", ".png");
+		try {
+			Files.write(file, data);
+			List<Image> variants = variants(data, file);
+			String digest = variants.get(0).getDigest();
+			assertEquals(64, digest.length());
+			for (Image image : variants) {
+				assertEquals(digest, image.getDigest());
+				for (Image other : variants) {
+					assertEquals(image, other);
+					assertEquals(image.hashCode(), other.hashCode());
+				}
+			}
+
+			Image image = variants.get(0);
+			byte[] changed = data.clone();
+			changed[changed.length - 1]++;
+			assertFalse(digest.equals(new Image(changed, 10, 20, Image.Format.PNG).getDigest()));
+			assertFalse(image.equals(new Image(changed, 10, 20, Image.Format.PNG)));
+			assertFalse(image.equals(new Image(data, 10, 20, Image.Format.JPEG)));
+			assertFalse(image.equals(new Image(data, 11, 20, Image.Format.PNG)));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Ohne <code>immutable</code> wird das uebergebene array kopiert, mit <code>immutable</code> direkt verwendet.
+	 */
+	@Test
+	public void testImmutable() {
+
+		byte[] data = data();
+		Image copied = new Image(data, 10, 20, Image.Format.PNG);
+		Image shared = new Image(data, 10, 20, Image.Format.PNG, true);
+		assertNotSame(data, copied.getBytes());
+		assertSame(data, shared.getBytes());
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import junit.framework.Assert;
+
+/**
+ * Tests fuer das geordnete Schreiben gleichzeitig gerenderter Zip-Eintraege.
+ */
+public class OrderedZipWriterTest extends Assert {
+
+	/**
+	 * Gleichzeitig gerenderte und uebernommene Eintraege werden in der Reihenfolge ihres Aufrufs geschrieben.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOrder() throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (ZipOutputStream zipout = new ZipOutputStream(baos); OrderedZipWriter writer = new OrderedZipWriter(zipout, executor)) {
+				writer.copy("a", new ByteArrayInputStream(new byte[] { 1 }));
+				writer.render("b", (out, previousParts) -> {
+					assertNull(previousParts);
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						throw new DocTemplateException(e);
+					}
+				});
+				// wartet auf b
+				writer.render("c", (out, previousParts) -> previousParts.join());
+				writer.copy("d", new ByteArrayInputStream(new byte[] { 2 }));
+				writer.finish();
+			}
+			List<String> names = new ArrayList<>();
+			try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+				ZipEntry ze;
+				while ((ze = zipin.getNextEntry()) != null) {
+					names.add(ze.getName());
+				}
+			}
+			assertEquals(Arrays.asList("a", "b", "c", "d"), names);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Ohne {@link OrderedZipWriter#finish()} bricht {@link OrderedZipWriter#close()} laufende Teile ab und wartet auf
+	 * sie; noch nicht gestartete Teile werden nicht mehr gerendert.
+	 *
+	 * @throws Exception
+	 */
+	@Test(timeout = 10000)
+	public void testClose() throws Exception {
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean firstFinished = new AtomicBoolean();
+		AtomicBoolean secondStarted = new AtomicBoolean();
+		try {
+			OrderedZipWriter writer = new OrderedZipWriter(new ZipOutputStream(new ByteArrayOutputStream()), executor);
+			writer.render("first", (out, previousParts) -> {
+				started.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					throw new DocTemplateException(e);
+				} finally {
+					firstFinished.set(true);
+				}
+			});
+			writer.render("second", (out, previousParts) -> secondStarted.set(true));
+			started.await();
+			writer.close();
+			assertTrue(firstFinished.get());
+		} finally {
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+		assertFalse(secondStarted.get());
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive Begrenzung der gleichzeitigen Konvertierungen nach dem AIMD-Verfahren (additive increase, multiplicative
+ * decrease): solange die gemessene Dauer einer Konvertierung nahe an der kleinsten beobachteten Dauer liegt, wird das
+ * Limit langsam erhoeht. Steigt sie ueber {@link #setLatencyTolerance(double) Toleranz} mal diese Basis oder meldet
+ * der Aufrufer eine Ueberlast (Verbindungsfehler, Timeout), wird das Limit um den {@link #setBackoffRatio(double)
+ * Backoff-Faktor} gesenkt. So pendelt sich das Limit knapp unter dem Punkt ein, an dem die Office-Prozesse saturiert
+ * sind. Konvertierungen, die aus anderen Gruenden fehlschlagen oder abgebrochen werden, sind mit {@link #release()} ohne
+ * Messung zu beenden.
+ * <p>
+ * Die Basis wird alle {@link #setProbeInterval(int) n} Messungen neu bestimmt, damit sie Aenderungen der Umgebung folgt.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+
+	private double latencyTolerance = 2.0;
+	private double backoffRatio = 0.9;
+	private int probeInterval = 1000;
+
+	/** geschuetzt durch lock */
+	private double limit;
+	private int inFlight = 0;
+	private long minLatencyNanos = Long.MAX_VALUE;
+	private int samples = 0;
+
+	/**
+	 * @param initialLimit Anfangslimit
+	 * @param minLimit kleinstes Limit
+	 * @param maxLimit groesstes Limit
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("1 <= minLimit <= initialLimit <= maxLimit required");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * @param latencyTolerance Vielfaches der Basisdauer, ab dem das Limit gesenkt wird (Vorgabe 2.0)
+	 */
+	public void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	/**
+	 * @param backoffRatio Faktor, mit dem das Limit bei Ueberlast multipliziert wird (Vorgabe 0.9)
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * @param probeInterval Anzahl Messungen, nach denen die Basisdauer neu bestimmt wird (Vorgabe 1000)
+	 */
+	public void setProbeInterval(int probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * @return aktuelles Limit
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Anzahl laufender Konvertierungen
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code>, wenn das Limit ausgeschoepft ist
+	 */
+	public boolean isSaturated() {
+		lock.lock();
+		try {
+			return inFlight >= (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code>, wenn eine Konvertierung gestartet werden darf; diese muss mit
+	 *         {@link #release(long, boolean)} beendet werden
+	 */
+	public boolean tryAcquire() {
+		lock.lock();
+		try {
+			if (inFlight >= (int) limit) {
+				return false;
+			}
+			inFlight++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wartet, bis eine Konvertierung gestartet werden darf; diese muss mit {@link #release(long, boolean)} beendet
+	 * werden.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (inFlight >= (int) limit) {
+				released.await();
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Beendet eine Konvertierung und passt das Limit an.
+	 *
+	 * @param latencyNanos Dauer der Konvertierung
+	 * @param overloaded <code>true</code>, wenn die Konvertierung wegen Ueberlast fehlgeschlagen ist (Server nicht
+	 *        erreichbar, Timeout)
+	 */
+	public void release(long latencyNanos, boolean overloaded) {
+		lock.lock();
+		try {
+			int running = inFlight--;
+			if (++samples >= probeInterval) {
+				samples = 0;
+				minLatencyNanos = Long.MAX_VALUE;
+			}
+			if (!overloaded) {
+				minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+			}
+			if (overloaded || latencyNanos > latencyTolerance * minLatencyNanos) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+			} else if (running >= (int) limit) {
+				// nur erhoehen, wenn das Limit tatsaechlich ausgeschoepft wurde, ca. +1 pro Runde
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		fireReleased();
+	}
+
+	/**
+	 * Beendet eine Konvertierung ohne Messung, z.B. nach einem Abbruch oder einem fehlerhaften Dokument. Das Limit bleibt
+	 * unveraendert.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		fireReleased();
+	}
+
+	/**
+	 * @param listener wird nach jedem {@link #release(long, boolean)} bzw. {@link #release()} ausserhalb des Locks
+	 *        aufgerufen
+	 */
+	void addReleaseListener(Runnable listener) {
+		releaseListeners.add(listener);
+	}
+
+	void removeReleaseListener(Runnable listener) {
+		releaseListeners.remove(listener);
+	}
+
+	private void fireReleased() {
+		for (Runnable listener : releaseListeners) {
+			listener.run();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "AdaptiveConcurrencyLimiter[limit=" + (int) limit + ", inFlight=" + inFlight + ", minLatency="
+					+ (minLatencyNanos == Long.MAX_VALUE ? "-" : TimeUnit.NANOSECONDS.toMillis(minLatencyNanos) + "ms") + ']';
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Asynchrone Konvertierung ueber einen {@link DocumentConverterPool}: Auftraege werden in eine beschraenkte
+ * Warteschlange gestellt und von einer festen Anzahl Worker-Threads abgearbeitet, der Aufrufer erhaelt sofort ein
+ * {@link CompletableFuture}. Ist die Warteschlange voll, wird der Auftrag gemaess {@link OverloadPolicy} sofort
+ * abgelehnt oder im aufrufenden Thread ausgefuehrt. Auftraege koennen mit einem Timeout versehen und ueber
+ * {@link CompletableFuture#cancel(boolean)} abgebrochen werden: wartende Auftraege werden aus der Warteschlange entfernt,
+ * laufende unterbrochen.
+ * <p>
+ * Mit {@link #setLimiter(AdaptiveConcurrencyLimiter)} wird die Anzahl gleichzeitiger Konvertierungen anhand der
+ * gemessenen Dauer begrenzt, die Anzahl Worker-Threads ist dann nur noch die Obergrenze. Ein Auftrag bleibt in der
+ * Warteschlange, bis das Limit seine Ausfuehrung zulaesst; nur Verbindungsfehler und Timeouts senken das Limit, nicht
+ * aber fehlerhafte Dokumente oder abgebrochene Auftraege. Ist das Limit ausgeschoepft und
+ * warten mindestens {@link #setShedThreshold(int) n} Auftraege, werden Auftraege mit {@link Priority#BULK} abgelehnt,
+ * damit Einzeldokumente auch waehrend eines Batch-Laufs schnell konvertiert werden.
+ * <p>
+ * Die Warteschlange ist ein {@link PriorityExecutor}: jede {@link Priority} hat eigene Warteplaetze, freie Worker werden
+ * gewichtet reihum verteilt und lange wartende Auftraege vorgezogen.
+ */
+public class AsyncDocumentConverter {
+
+	/**
+	 * Verhalten bei voller Warteschlange.
+	 */
+	public enum OverloadPolicy {
+		/**
+		 * Das Future wird sofort mit einer {@link RejectedExecutionException} abgeschlossen.
+		 */
+		REJECT,
+		/**
+		 * Der Auftrag wird im aufrufenden Thread ausgefuehrt (Gegendruck auf den Aufrufer).
+		 */
+		CALLER_RUNS
+	}
+
+	/** Logger */
+	private static final Log LOG = LogFactory.getLog(AsyncDocumentConverter.class);
+
+	private final DocumentConverterPool pool;
+	private final OverloadPolicy overloadPolicy;
+	private final PriorityExecutor executor;
+	private final ScheduledExecutorService timer;
+	private final Runnable admissionListener;
+
+	private volatile long timeoutMillis = 0;
+	private volatile AdaptiveConcurrencyLimiter limiter = null;
+	private volatile int shedThreshold = 0;
+
+	/**
+	 * @param pool Pool fuer die eigentliche Konvertierung
+	 * @param concurrency Anzahl gleichzeitiger Konvertierungen
+	 * @param queueCapacity maximale Anzahl wartender Auftraege pro {@link Priority}
+	 * @param overloadPolicy Verhalten bei voller Warteschlange
+	 */
+	public AsyncDocumentConverter(DocumentConverterPool pool, int concurrency, int queueCapacity, OverloadPolicy overloadPolicy) {
+		this.pool = pool;
+		this.overloadPolicy = overloadPolicy;
+		this.executor = new PriorityExecutor(concurrency, queueCapacity, "document-converter");
+		this.timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("document-converter-timeout"));
+		this.admissionListener = executor::admissionChanged;
+	}
+
+	/**
+	 * Create an async converter with one worker per server of the pool, a queue of 100 jobs per priority and
+	 * {@link OverloadPolicy#REJECT}.
+	 */
+	public static AsyncDocumentConverter create(DocumentConverterPool pool) {
+		return new AsyncDocumentConverter(pool, pool.size(), 100, OverloadPolicy.REJECT);
+	}
+
+	/**
+	 * @param timeout Standard-Timeout pro Auftrag ab Einreihung, 0 fuer keinen
+	 * @param unit Einheit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @param limiter adaptive Begrenzung der gleichzeitigen Konvertierungen, <code>null</code> fuer keine (Vorgabe)
+	 */
+	public synchronized void setLimiter(AdaptiveConcurrencyLimiter limiter) {
+		AdaptiveConcurrencyLimiter previous = this.limiter;
+		if (previous != null) {
+			previous.removeReleaseListener(admissionListener);
+		}
+		this.limiter = limiter;
+		if (limiter != null) {
+			limiter.addReleaseListener(admissionListener);
+		}
+		executor.setAdmission(limiter != null ? new LimiterAdmission(limiter) : null);
+	}
+
+	/**
+	 * @return adaptive Begrenzung oder <code>null</code>
+	 */
+	public AdaptiveConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * @param shedThreshold Anzahl wartender Auftraege, ab der bei ausgeschoepftem Limit {@link Priority#BULK}-Auftraege
+	 *        abgelehnt werden, 0 fuer nie (Vorgabe)
+	 */
+	public void setShedThreshold(int shedThreshold) {
+		this.shedThreshold = shedThreshold;
+	}
+
+	/**
+	 * @return aktuelles Limit gleichzeitiger Konvertierungen
+	 */
+	public int getLimit() {
+		AdaptiveConcurrencyLimiter current = limiter;
+		return current != null ? Math.min(current.getLimit(), executor.getMaximumPoolSize()) : executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @param weight Anteil der freien Worker, wenn alle Prioritaeten warten (Vorgabe 8:3:1)
+	 * @see PriorityExecutor#setWeight(Priority, int)
+	 */
+	public void setWeight(Priority priority, int weight) {
+		executor.setWeight(priority, weight);
+	}
+
+	/**
+	 * @param maxWait Wartezeit, nach der ein Auftrag unabhaengig von seiner Prioritaet vorgezogen wird (Vorgabe 30
+	 *        Sekunden)
+	 * @param unit Einheit
+	 */
+	public void setMaxWait(long maxWait, TimeUnit unit) {
+		executor.setMaxWait(maxWait, unit);
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @return Anzahl wartender Auftraege dieser Prioritaet
+	 */
+	public int getQueueSize(Priority priority) {
+		return executor.getQueueSize(priority);
+	}
+
+	/**
+	 * @return <code>true</code>, wenn {@link #shutdown()} aufgerufen wurde
+	 */
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	DocumentConverterPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return Anzahl wartender Auftraege
+	 */
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stellt die Konvertierung mit dem Standard-Timeout in die Warteschlange.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @return PDF-Dokument, sobald konvertiert
+	 */
+	public CompletableFuture<ByteArrayOutputStream> convertToPdfAsync(InputStream inputStream) {
+		return convertToPdfAsync(inputStream, Priority.NORMAL, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stellt die Konvertierung mit dem Standard-Timeout in die Warteschlange.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param priority Dringlichkeit
+	 * @return PDF-Dokument, sobald konvertiert
+	 */
+	public CompletableFuture<ByteArrayOutputStream> convertToPdfAsync(InputStream inputStream, Priority priority) {
+		return convertToPdfAsync(inputStream, priority, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stellt die Konvertierung in die Warteschlange. Nach Ablauf des Timeouts wird das Future mit einer
+	 * {@link TimeoutException} abgeschlossen und der Auftrag abgebrochen.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param timeout Timeout ab Einreihung, 0 fuer keinen
+	 * @param unit Einheit
+	 * @return PDF-Dokument, sobald konvertiert
+	 */
+	public CompletableFuture<ByteArrayOutputStream> convertToPdfAsync(InputStream inputStream, long timeout, TimeUnit unit) {
+		return convertToPdfAsync(inputStream, Priority.NORMAL, timeout, unit);
+	}
+
+	/**
+	 * Stellt die Konvertierung in die Warteschlange. Nach Ablauf des Timeouts wird das Future mit einer
+	 * {@link TimeoutException} abgeschlossen und der Auftrag abgebrochen.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param priority Dringlichkeit
+	 * @param timeout Timeout ab Einreihung, 0 fuer keinen
+	 * @param unit Einheit
+	 * @return PDF-Dokument, sobald konvertiert
+	 */
+	public CompletableFuture<ByteArrayOutputStream> convertToPdfAsync(InputStream inputStream, Priority priority, long timeout, TimeUnit unit) {
+		if (inputStream == null) {
+			throw new RuntimeException("inputFile is null");
+		}
+		return submit(new Job<>(inputStream, priority, () -> pool.convertToPdf(inputStream)), timeout, unit);
+	}
+
+	/**
+	 * Wie {@link #convertToPdfAsync(InputStream, Priority)}, das PDF wird aber direkt nach <code>outputStream</code>
+	 * geschrieben.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param outputStream Ziel fuer das PDF, wird nicht geschlossen
+	 * @param priority Dringlichkeit
+	 * @return abgeschlossen, sobald konvertiert
+	 */
+	public CompletableFuture<Void> convertToPdfAsync(InputStream inputStream, OutputStream outputStream, Priority priority) {
+		return convertToPdfAsync(inputStream, outputStream, priority, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wie {@link #convertToPdfAsync(InputStream, Priority, long, TimeUnit)}, das PDF wird aber direkt nach
+	 * <code>outputStream</code> geschrieben. Nach einem Abbruch kann <code>outputStream</code> ein unvollstaendiges PDF
+	 * enthalten.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param outputStream Ziel fuer das PDF, wird nicht geschlossen
+	 * @param priority Dringlichkeit
+	 * @param timeout Timeout ab Einreihung, 0 fuer keinen
+	 * @param unit Einheit
+	 * @return abgeschlossen, sobald konvertiert
+	 */
+	public CompletableFuture<Void> convertToPdfAsync(InputStream inputStream, OutputStream outputStream, Priority priority, long timeout,
+			TimeUnit unit) {
+		if (inputStream == null) {
+			throw new RuntimeException("inputFile is null");
+		}
+		return submit(new Job<Void>(inputStream, priority, () -> {
+			pool.convertToPdf(inputStream, outputStream);
+			return null;
+		}), timeout, unit);
+	}
+
+	/**
+	 * Stellt die Konvertierung einer ODT-Datei mit dem Standard-Timeout in die Warteschlange, siehe
+	 * {@link DocumentConverterPool#convertToPdf(Path, Path)}.
+	 *
+	 * @param odt ODT-Datei
+	 * @param pdf Ziel-Datei, wird ueberschrieben
+	 * @param priority Dringlichkeit
+	 * @return <code>pdf</code>, sobald konvertiert
+	 */
+	public CompletableFuture<Path> convertToPdfAsync(Path odt, Path pdf, Priority priority) {
+		return convertToPdfAsync(odt, pdf, priority, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stellt die Konvertierung einer ODT-Datei in die Warteschlange, siehe
+	 * {@link DocumentConverterPool#convertToPdf(Path, Path)}. Nach einem Abbruch kann <code>pdf</code> unvollstaendig
+	 * sein.
+	 *
+	 * @param odt ODT-Datei
+	 * @param pdf Ziel-Datei, wird ueberschrieben
+	 * @param priority Dringlichkeit
+	 * @param timeout Timeout ab Einreihung, 0 fuer keinen
+	 * @param unit Einheit
+	 * @return <code>pdf</code>, sobald konvertiert
+	 */
+	public CompletableFuture<Path> convertToPdfAsync(Path odt, Path pdf, Priority priority, long timeout, TimeUnit unit) {
+		requireNonNull(odt, "odt is null");
+		requireNonNull(pdf, "pdf is null");
+		return submit(new Job<Path>(null, priority, () -> {
+			pool.convertToPdf(odt, pdf);
+			return pdf;
+		}), timeout, unit);
+	}
+
+	private <R> CompletableFuture<R> submit(Job<R> job, long timeout, TimeUnit unit) {
+		if (job.priority == Priority.BULK && isOverloaded()) {
+			LOG.debug("bulk conversion shed, limit reached");
+			job.closeInput();
+			job.result.completeExceptionally(new RejectedExecutionException("conversion shed, converter overloaded"));
+			return job.result;
+		}
+		job.result.whenComplete((r, t) -> {
+			if (t instanceof CancellationException || t instanceof TimeoutException) {
+				job.abort();
+			}
+		});
+		if (timeout > 0) {
+			job.timeout = timer.schedule(() -> {
+				job.timedOut = true;
+				job.result.completeExceptionally(new TimeoutException("conversion timed out after " + unit.toMillis(timeout) + " ms"));
+			}, timeout, unit);
+		}
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			if (overloadPolicy == OverloadPolicy.CALLER_RUNS && !executor.isShutdown()) {
+				job.run();
+			} else {
+				LOG.debug("conversion rejected, queue full");
+				job.result.completeExceptionally(e);
+			}
+		}
+		return job.result;
+	}
+
+	private boolean isOverloaded() {
+		AdaptiveConcurrencyLimiter current = limiter;
+		int threshold = shedThreshold;
+		return current != null && threshold > 0 && current.isSaturated() && getQueueSize() >= threshold;
+	}
+
+	/**
+	 * Beendet die Worker-Threads. Laufende Konvertierungen werden unterbrochen, wartende Auftraege abgebrochen und ihre
+	 * Eingabe geschlossen. Der Pool wird nicht getrennt.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+		for (Runnable pending : executor.shutdownNow()) {
+			Job<?> job = (Job<?>) pending;
+			job.closeInput();
+			job.result.completeExceptionally(new CancellationException("converter shut down"));
+		}
+	}
+
+	/**
+	 * Zulassung durch den {@link AdaptiveConcurrencyLimiter}: ein Worker entnimmt erst dann einen Auftrag, wenn das Limit
+	 * eine weitere Konvertierung erlaubt.
+	 */
+	private static final class LimiterAdmission implements PriorityJobQueue.Admission {
+
+		private final AdaptiveConcurrencyLimiter limiter;
+
+		LimiterAdmission(AdaptiveConcurrencyLimiter limiter) {
+			this.limiter = limiter;
+		}
+
+		@Override
+		public boolean tryAdmit() {
+			return limiter.tryAcquire();
+		}
+
+		@Override
+		public void admitted(Runnable job) {
+			((Job<?>) job).admittedBy = limiter;
+		}
+	}
+
+	/**
+	 * Konvertierung eines Auftrags.
+	 */
+	@FunctionalInterface
+	private interface Conversion<R> {
+
+		R convert() throws Exception;
+	}
+
+	/**
+	 * Ein Konvertierungsauftrag.
+	 */
+	private final class Job<R> implements Runnable, PriorityJobQueue.Prioritized {
+
+		/** wird geschlossen, wenn der Auftrag nie konvertiert wird */
+		private final InputStream input;
+		private final Priority priority;
+		private final Conversion<R> conversion;
+		private final CompletableFuture<R> result = new CompletableFuture<>();
+		private volatile ScheduledFuture<?> timeout;
+		private volatile boolean timedOut;
+		/** Limiter, der die Ausfuehrung bereits zugelassen hat; gesetzt vom Worker bei der Entnahme */
+		private AdaptiveConcurrencyLimiter admittedBy;
+		/** ausfuehrender Thread, geschuetzt durch this */
+		private Thread runner;
+
+		Job(InputStream input, Priority priority, Conversion<R> conversion) {
+			this.input = input;
+			this.priority = priority;
+			this.conversion = conversion;
+		}
+
+		@Override
+		public Priority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void run() {
+			AdaptiveConcurrencyLimiter admitted = admittedBy;
+			admittedBy = null;
+			synchronized (this) {
+				if (result.isDone()) {
+					// abgebrochen nach der Entnahme: abort() konnte den Auftrag nicht mehr entfernen
+					closeInput();
+					if (admitted != null) {
+						admitted.release();
+					}
+					return;
+				}
+				runner = Thread.currentThread();
+			}
+			try {
+				if (admitted != null) {
+					result.complete(convertLimited(admitted));
+				} else {
+					// ohne Zulassung durch die Warteschlange, z.B. im aufrufenden Thread
+					AdaptiveConcurrencyLimiter current = limiter;
+					if (current == null) {
+						result.complete(conversion.convert());
+					} else {
+						acquire(current);
+						result.complete(convertLimited(current));
+					}
+				}
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			} finally {
+				synchronized (this) {
+					runner = null;
+					// eine Unterbrechung gilt nur diesem Auftrag
+					Thread.interrupted();
+				}
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+		}
+
+		private void acquire(AdaptiveConcurrencyLimiter current) throws InterruptedException {
+			try {
+				current.acquire();
+			} catch (InterruptedException e) {
+				closeInput();
+				throw e;
+			}
+		}
+
+		/**
+		 * Konvertiert mit bereits erteilter Zulassung. Nur Verbindungsfehler und Timeouts gelten als Ueberlast, andere
+		 * Fehler und Abbrueche beenden die Konvertierung ohne Messung.
+		 */
+		private R convertLimited(AdaptiveConcurrencyLimiter current) throws Exception {
+			long start = System.nanoTime();
+			R converted;
+			try {
+				converted = conversion.convert();
+			} catch (Throwable t) {
+				if (t instanceof ConnectException || timedOut) {
+					current.release(System.nanoTime() - start, true);
+				} else {
+					current.release();
+				}
+				throw t;
+			}
+			current.release(System.nanoTime() - start, false);
+			return converted;
+		}
+
+		void closeInput() {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					LOG.warn("Could not close the FileInputStream.", e);
+				}
+			}
+		}
+
+		/**
+		 * Abbruch nach Timeout oder {@link CompletableFuture#cancel(boolean)}.
+		 */
+		void abort() {
+			if (executor.remove(this)) {
+				closeInput();
+			}
+			synchronized (this) {
+				if (runner != null) {
+					runner.interrupt();
+				}
+			}
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache fuer Konvertierungsergebnisse, adressiert ueber den SHA-256 Digest des Eingabedokuments. Ergebnisse werden in
+ * einem groessenbeschraenkten LRU-Cache im Speicher und optional in einem ebenfalls beschraenkten Verzeichnis gehalten.
+ * Gleichzeitige Konvertierungen desselben Dokuments werden nur einmal ausgefuehrt, alle Aufrufer erhalten dasselbe
+ * Ergebnis.
+ */
+public class ConversionCache {
+
+	/**
+	 * Die eigentliche Konvertierung bei einem Cache-Miss.
+	 */
+	public interface Loader {
+
+		/**
+		 * @param input Eingabedokument
+		 * @return Ergebnisdokument
+		 * @throws ConnectException
+		 */
+		byte[] convert(byte[] input) throws ConnectException;
+	}
+
+	private static final String SUFFIX = ".pdf";
+
+	/** Logger */
+	private static final Log LOG = LogFactory.getLog(ConversionCache.class);
+
+	private final long maxMemoryBytes;
+	private final Map<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes = 0;
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+	private volatile Path directory = null;
+	private long maxDiskBytes = 0;
+	private final AtomicLong diskBytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxMemoryBytes maximale Groesse aller Ergebnisse im Speicher in Bytes
+	 */
+	public ConversionCache(long maxMemoryBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	/**
+	 * Aktiviert die zweite Stufe im Verzeichnis <code>directory</code>. Bereits vorhandene Ergebnisse werden
+	 * weiterverwendet.
+	 *
+	 * @param directory Verzeichnis, wird bei Bedarf erstellt
+	 * @param maxDiskBytes maximale Groesse aller Ergebnisse im Verzeichnis in Bytes
+	 * @throws IOException Verzeichnis nicht lesbar
+	 */
+	public synchronized void setDiskCache(Path directory, long maxDiskBytes) throws IOException {
+		Files.createDirectories(directory);
+		long size = 0;
+		for (Path file : list(directory)) {
+			size += Files.size(file);
+		}
+		this.maxDiskBytes = maxDiskBytes;
+		this.diskBytes.set(size);
+		this.directory = directory;
+		trimDisk();
+	}
+
+	/**
+	 * Liefert das Ergebnis aus dem Cache oder konvertiert das Dokument mit <code>loader</code>. Laeuft die Konvertierung
+	 * desselben Dokuments bereits, wird auf deren Ergebnis gewartet.
+	 *
+	 * @param input Eingabedokument
+	 * @param loader Konvertierung bei einem Cache-Miss
+	 * @return Ergebnisdokument, darf nicht veraendert werden
+	 * @throws ConnectException Fehler der Konvertierung
+	 */
+	public byte[] get(byte[] input, Loader loader) throws ConnectException {
+		String key = digest(input);
+		byte[] result = getCached(key);
+		if (result != null) {
+			hits.incrementAndGet();
+			return result;
+		}
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			hits.incrementAndGet();
+			return await(running);
+		}
+		misses.incrementAndGet();
+		try {
+			result = loader.convert(input);
+			put(key, result);
+			future.complete(result);
+			return result;
+		} catch (ConnectException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * @return Anzahl Aufrufe ohne eigene Konvertierung (inkl. mitgenutzte laufende Konvertierungen)
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Anzahl Konvertierungen
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Leert den Speicher-Cache, das Verzeichnis bleibt erhalten.
+	 */
+	public void clearMemory() {
+		synchronized (memory) {
+			memory.clear();
+			memoryBytes = 0;
+		}
+	}
+
+	private byte[] getCached(String key) {
+		synchronized (memory) {
+			byte[] result = memory.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+		Path dir = directory;
+		if (dir != null) {
+			Path file = dir.resolve(key + SUFFIX);
+			try {
+				byte[] result = Files.readAllBytes(file);
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+				putMemory(key, result);
+				return result;
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				LOG.warn("could not read cached conversion " + file, e);
+			}
+		}
+		return null;
+	}
+
+	private void put(String key, byte[] result) {
+		putMemory(key, result);
+		Path dir = directory;
+		if (dir != null) {
+			Path file = dir.resolve(key + SUFFIX);
+			Path tmp = null;
+			try {
+				tmp = Files.createTempFile(dir, key, ".tmp");
+				Files.write(tmp, result);
+				synchronized (this) {
+					// ein bereits vorhandenes Ergebnis (z.B. von einem anderen Prozess) wird ersetzt
+					long previous = sizeIfExists(file);
+					Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					diskBytes.addAndGet(result.length - previous);
+				}
+				trimDisk();
+			} catch (IOException e) {
+				LOG.warn("could not write cached conversion " + file, e);
+			} finally {
+				deleteTemp(tmp);
+			}
+		}
+	}
+
+	private static long sizeIfExists(Path file) throws IOException {
+		try {
+			return Files.size(file);
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	private static void deleteTemp(Path tmp) {
+		if (tmp != null) {
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				LOG.warn("could not delete " + tmp, e);
+			}
+		}
+	}
+
+	private void putMemory(String key, byte[] result) {
+		if (result.length > maxMemoryBytes) {
+			return;
+		}
+		synchronized (memory) {
+			byte[] previous = memory.put(key, result);
+			if (previous != null) {
+				memoryBytes -= previous.length;
+			}
+			memoryBytes += result.length;
+			Iterator<byte[]> it = memory.values().iterator();
+			while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+				memoryBytes -= it.next().length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Entfernt die am laengsten nicht mehr verwendeten Ergebnisse, bis das Verzeichnis die Maximalgroesse einhaelt.
+	 */
+	private synchronized void trimDisk() throws IOException {
+		if (diskBytes.get() <= maxDiskBytes) {
+			return;
+		}
+		Map<Path, FileTime> times = new HashMap<>();
+		long size = 0;
+		for (Path file : list(directory)) {
+			try {
+				times.put(file, Files.getLastModifiedTime(file));
+				size += Files.size(file);
+			} catch (NoSuchFileException e) {
+				// bereits entfernt
+			}
+		}
+		List<Path> files = new ArrayList<>(times.keySet());
+		files.sort(Comparator.comparing(times::get));
+		for (Path file : files) {
+			if (size <= maxDiskBytes) {
+				break;
+			}
+			long length = Files.size(file);
+			if (Files.deleteIfExists(file)) {
+				size -= length;
+			}
+		}
+		diskBytes.set(size);
+	}
+
+	private static List<Path> list(Path directory) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static byte[] await(CompletableFuture<byte[]> running) throws ConnectException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectException("interrupted while waiting for a running conversion");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ConnectException) {
+				throw (ConnectException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * @param input Eingabedokument
+	 * @return SHA-256 Digest als Hex-String
+	 */
+	static String digest(byte[] input) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(input);
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Anbindung an einen Konvertierungsdienst (z.B. einen Libreoffice Headless-Server). Standard ist der
+ * {@link JodConverterBackend}, fuer Lasttests ohne Office-Installation steht der {@link FakeConverterBackend} zur
+ * Verfuegung.
+ */
+public interface ConverterBackend {
+
+	/**
+	 * @return Bezeichnung fuer Logs, z.B. <code>host:port</code>
+	 */
+	String getName();
+
+	/**
+	 * Baut die Verbindung auf.
+	 *
+	 * @throws ConnectException Dienst nicht erreichbar
+	 */
+	void connect() throws ConnectException;
+
+	/**
+	 * @return <code>true</code>, solange die Verbindung besteht
+	 */
+	boolean isConnected();
+
+	/**
+	 * Trennt die Verbindung.
+	 */
+	void disconnect();
+
+	/**
+	 * Konvertiert ein ODT-Dokument in ein PDF. Ist die Verbindung nach einem Fehler getrennt ({@link #isConnected()}),
+	 * wird sie vom Aufrufer neu aufgebaut.
+	 *
+	 * @param odt ODT-Dokument, wird nicht geschlossen
+	 * @param pdf Ziel fuer das PDF, wird nicht geschlossen
+	 * @throws ConnectException Dienst nicht erreichbar
+	 */
+	void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException;
+
+	/**
+	 * Konvertiert eine ODT-Datei in eine PDF-Datei. Backends, die Dateien direkt verarbeiten koennen, ueberschreiben
+	 * diese Methode; standardmaessig werden die Dateien ueber {@link #convertToPdf(InputStream, OutputStream)} gestreamt.
+	 *
+	 * @param odt ODT-Datei
+	 * @param pdf Ziel-Datei, wird ueberschrieben
+	 * @throws ConnectException Dienst nicht erreichbar
+	 */
+	default void convertToPdf(Path odt, Path pdf) throws ConnectException {
+		try (InputStream input = Files.newInputStream(odt); OutputStream output = Files.newOutputStream(pdf)) {
+			convertToPdf(input, output);
+		} catch (ConnectException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not convert " + odt + " to " + pdf, e);
+		}
+	}
+}
@@ -17,18 +17,14 @@ package ch.dvbern.lib.doctemplate.converter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
+import java.nio.file.Path;
 import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.artofsolving.jodconverter.DefaultDocumentFormatRegistry;
-import com.artofsolving.jodconverter.DocumentFormat;
-import com.artofsolving.jodconverter.openoffice.connection.OpenOfficeConnection;
-import com.artofsolving.jodconverter.openoffice.connection.SocketOpenOfficeConnection;
-import com.artofsolving.jodconverter.openoffice.converter.OpenOfficeDocumentConverter;
-
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -39,12 +35,6 @@ import static java.util.Objects.requireNonNull;
  */
 public class DocumentConverter {
 
-	// Converter properties
-	private static final String PDF = "pdf";
-	private static final String ODT = "odt";
-	private static final DocumentFormat ODT_FORMAT;
-	private static final DocumentFormat PDF_FORMAT;
-
 	private static final String PATH_TO_PROPERTIES = "/document_converter.properties";
 
 	private static final String SERVER_HOST = "server.host";
@@ -60,18 +50,11 @@ public class DocumentConverter {
 	/** Logger */
 	private static final Log LOG = LogFactory.getLog(DocumentConverter.class);
 
-	private final String host;
-	private final int port;
-
-	private OpenOfficeConnection connection = null;
+	private final ConverterBackend backend;
 
 	private static final Properties PROPERTIES = new Properties();
 
 	static {
-		DefaultDocumentFormatRegistry registry = new DefaultDocumentFormatRegistry();
-		ODT_FORMAT = registry.getFormatByFileExtension(ODT);
-		PDF_FORMAT = registry.getFormatByFileExtension(PDF);
-
 		InputStream is = Thread.currentThread().getContextClassLoader()
 						.getResourceAsStream(PATH_TO_PROPERTIES);
 		try {
@@ -102,10 +85,30 @@ public class DocumentConverter {
 		throw new IllegalArgumentException("One arg must be != null");
 	}
 
+	/**
+	 * @param key Name der Einstellung, z.B. {@value #SERVER_HOST}
+	 * @param defaultValue Vorgabe
+	 * @return Wert aus der System-Property <code>documentconverter.&lt;key&gt;</code>, dem Properties-File oder die Vorgabe
+	 */
+	static String getSetting(String key, String defaultValue) {
+		return coalesce(System.getProperty("documentconverter." + key), PROPERTIES.getProperty(key), defaultValue);
+	}
+
 	private DocumentConverter(ConnectionStrategy connectionStrategy) throws ConnectException {
+		this(connectionStrategy, createDefaultBackend());
+	}
+
+	private DocumentConverter(ConnectionStrategy connectionStrategy, ConverterBackend backend) throws ConnectException {
 		this.connectionStrategy = requireNonNull(connectionStrategy);
+		this.backend = requireNonNull(backend);
 
-		String portStr = coalesce(System.getProperty(SYSPROP_SERVER_PORT), PROPERTIES.getProperty(SERVER_PORT), String.valueOf(DEFAULT_PORT));
+		if (connectionStrategy.isConnectOnInit()) {
+			connect();
+		}
+	}
+
+	private static ConverterBackend createDefaultBackend() {
+		String portStr = getSetting(SERVER_PORT, String.valueOf(DEFAULT_PORT));
 		int newPort;
 		try {
 			newPort = Integer.parseInt(portStr);
@@ -114,12 +117,7 @@ public class DocumentConverter {
 							+ " Trying to use the default port: " + DEFAULT_PORT);
 			newPort = DEFAULT_PORT;
 		}
-		port = newPort;
-		host = coalesce(System.getProperty(SYSPROP_SERVER_HOST), PROPERTIES.getProperty(SERVER_HOST), DEFAULT_HOST);
-
-		if (connectionStrategy.isConnectOnInit()) {
-			connect();
-		}
+		return new JodConverterBackend(getSetting(SERVER_HOST, DEFAULT_HOST), newPort);
 	}
 
 	/**
@@ -131,6 +129,14 @@ public class DocumentConverter {
 	}
 
 
+	/**
+	 * Create a DocumentConverter for the given backend that establishes a connection immediately.
+	 * @throws ConnectException Connection to the backend could not be established
+	 */
+	public static DocumentConverter createConnectImmediately(ConverterBackend backend) throws ConnectException {
+		return new DocumentConverter(ConnectionStrategy.ON_INIT, backend);
+	}
+
 	/**
 	 * Create a DocumentConverter that establishes a connection to the libreoffice server only for the duration
 	 * of the {@link #convertToPdf(InputStream)} call
@@ -143,19 +149,40 @@ public class DocumentConverter {
 		}
 	}
 
+	/**
+	 * Create a DocumentConverter for the given backend that establishes a connection only for the duration
+	 * of the {@link #convertToPdf(InputStream)} call
+	 */
+	public static DocumentConverter createConnectPerRequest(ConverterBackend backend) {
+		try {
+			return new DocumentConverter(ConnectionStrategy.PER_REQUEST, backend);
+		} catch (ConnectException e) {
+			throw new IllegalStateException("ConnectException not expected while calling the constructor for PER_REQUEST connection!", e);
+		}
+	}
+
 	public synchronized ByteArrayOutputStream convertToPdf(InputStream inputStream) throws ConnectException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		convertToPdf(inputStream, baos);
+		return baos;
+	}
+
+	/**
+	 * Wie {@link #convertToPdf(InputStream)}, das PDF wird aber direkt nach <code>outputStream</code> geschrieben.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param outputStream Ziel fuer das PDF, wird nicht geschlossen
+	 * @throws ConnectException Server nicht erreichbar
+	 */
+	public synchronized void convertToPdf(InputStream inputStream, OutputStream outputStream) throws ConnectException {
 		if (inputStream == null) {
 			throw new RuntimeException("inputFile is null");
 		}
-		ByteArrayOutputStream baos;
 
 		try {
 			connect();
 
-			OpenOfficeDocumentConverter converter = new OpenOfficeDocumentConverter(connection);
-			baos = new ByteArrayOutputStream();
-			//noinspection AccessToStaticFieldLockedOnInstance
-			converter.convert(inputStream, ODT_FORMAT, baos, PDF_FORMAT);
+			backend.convertToPdf(inputStream, outputStream);
 		} finally {
 			try {
 				inputStream.close();
@@ -167,16 +194,33 @@ public class DocumentConverter {
 				disconnect();
 			}
 		}
-		return baos;
 	}
 
-	private synchronized void connect() throws ConnectException {
-		if (connection == null) {
-			connection = new SocketOpenOfficeConnection(host, port);
+	/**
+	 * Konvertiert eine ODT-Datei in eine PDF-Datei. Der Server liest und schreibt die Dateien direkt, ohne Kopie im Heap;
+	 * die Pfade muessen deshalb auch fuer den Server erreichbar sein.
+	 *
+	 * @param odt ODT-Datei
+	 * @param pdf Ziel-Datei, wird ueberschrieben
+	 * @throws ConnectException Server nicht erreichbar
+	 */
+	public synchronized void convertToPdf(Path odt, Path pdf) throws ConnectException {
+		requireNonNull(odt, "odt is null");
+		requireNonNull(pdf, "pdf is null");
+		try {
+			connect();
+
+			backend.convertToPdf(odt, pdf);
+		} finally {
+			if (connectionStrategy.isDisconnectAfterRequest()) {
+				disconnect();
+			}
 		}
+	}
 
-		if (!connection.isConnected()) {
-			connection.connect();
+	private synchronized void connect() throws ConnectException {
+		if (!backend.isConnected()) {
+			backend.connect();
 		}
 	}
 
@@ -184,9 +228,7 @@ public class DocumentConverter {
 	 *
 	 */
 	public synchronized void disconnect() {
-		if (connection != null) {
-			connection.disconnect();
-		}
+		backend.disconnect();
 	}
 
 	@Override
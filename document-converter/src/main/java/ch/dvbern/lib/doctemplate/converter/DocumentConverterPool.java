@@ -0,0 +1,453 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Konvertiert OpenOffice/LibreOffice Dokumente (Writer/.odt) in PDFs ueber mehrere Libreoffice Headless-Server. Im
+ * Gegensatz zum {@link DocumentConverter} (eine Verbindung, eine Konvertierung gleichzeitig) haelt der Pool je Server
+ * eine Verbindung und verteilt die Konvertierungen auf den am wenigsten ausgelasteten Server.
+ *
+ * Vor jeder Konvertierung wird die Verbindung geprueft und bei Bedarf neu aufgebaut. Schlaegt der Verbindungsaufbau oder
+ * eine Konvertierung wegen der Verbindung fehl, wird die Verbindung verworfen und der Server fuer
+ * {@link #setRetryDelay(long, TimeUnit)} nicht mehr verwendet. Da eine haengende Verbindung weiterhin als verbunden gilt,
+ * kann mit {@link #setConversionTimeout(long, TimeUnit)} eine maximale Dauer pro Konvertierung gesetzt werden; wird
+ * sie ueberschritten, wird die Verbindung ebenfalls verworfen.
+ *
+ * Die Server werden ueber {@link ConverterBackend}s angesprochen, standardmaessig ueber den {@link JodConverterBackend}.
+ *
+ * Mit {@link #setCache(ConversionCache)} werden Ergebnisse fuer identische Dokumente wiederverwendet.
+ *
+ * Die Server koennen via System-Property {@link #SYSPROP_SERVER_HOSTS} oder Properties-File als
+ * <code>host:port,host:port</code> angegeben werden, sonst wird der Server des {@link DocumentConverter} verwendet.
+ */
+public class DocumentConverterPool {
+
+	private static final String SERVER_HOSTS = "server.hosts";
+	public static final String SYSPROP_SERVER_HOSTS = "documentconverter." + SERVER_HOSTS;
+
+	/** Logger */
+	private static final Log LOG = LogFactory.getLog(DocumentConverterPool.class);
+
+	/** bricht zu lange laufende Konvertierungen ab, gemeinsam fuer alle Pools */
+	private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("document-converter-watchdog"));
+
+	static {
+		WATCHDOG.setRemoveOnCancelPolicy(true);
+	}
+
+	private final List<PooledConnection> connections;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	private int maxConversionsPerConnection = 1;
+	private long checkoutTimeoutMillis = TimeUnit.MINUTES.toMillis(1);
+	private long retryDelayMillis = TimeUnit.SECONDS.toMillis(5);
+	private long conversionTimeoutMillis = 0;
+	private volatile ConversionCache cache = null;
+
+	/**
+	 * @param servers Libreoffice-Server als <code>host:port</code>
+	 */
+	public DocumentConverterPool(List<String> servers) {
+		this(toBackends(servers));
+	}
+
+	/**
+	 * @param backends Backends, je eines pro Server
+	 */
+	public DocumentConverterPool(ConverterBackend... backends) {
+		if (backends.length == 0) {
+			throw new IllegalArgumentException("at least one server required");
+		}
+		List<PooledConnection> list = new ArrayList<>();
+		for (ConverterBackend backend : backends) {
+			list.add(new PooledConnection(backend));
+		}
+		this.connections = Collections.unmodifiableList(list);
+	}
+
+	private static ConverterBackend[] toBackends(List<String> servers) {
+		ConverterBackend[] backends = new ConverterBackend[servers.size()];
+		for (int i = 0; i < backends.length; i++) {
+			String server = servers.get(i);
+			int pos = server.lastIndexOf(':');
+			if (pos <= 0) {
+				throw new IllegalArgumentException("invalid server (host:port expected): " + server);
+			}
+			backends[i] = new JodConverterBackend(server.substring(0, pos).trim(), Integer.parseInt(server.substring(pos + 1).trim()));
+		}
+		return backends;
+	}
+
+	/**
+	 * Create a pool for the servers configured in {@link #SYSPROP_SERVER_HOSTS} (or the single server of the
+	 * {@link DocumentConverter}). Connections are established on first use.
+	 */
+	public static DocumentConverterPool create() {
+		String hosts = DocumentConverter.getSetting(SERVER_HOSTS, "");
+		List<String> servers = new ArrayList<>();
+		for (String server : hosts.split(",")) {
+			if (!server.trim().isEmpty()) {
+				servers.add(server.trim());
+			}
+		}
+		if (servers.isEmpty()) {
+			servers.add(DocumentConverter.getSetting("server.host", "localhost") + ':'
+					+ DocumentConverter.getSetting("server.port", "8100"));
+		}
+		return new DocumentConverterPool(servers);
+	}
+
+	/**
+	 * @param maxConversionsPerConnection Anzahl gleichzeitiger Konvertierungen pro Server (Vorgabe 1)
+	 */
+	public void setMaxConversionsPerConnection(int maxConversionsPerConnection) {
+		if (maxConversionsPerConnection < 1) {
+			throw new IllegalArgumentException("maxConversionsPerConnection must be >= 1");
+		}
+		this.maxConversionsPerConnection = maxConversionsPerConnection;
+	}
+
+	/**
+	 * @param timeout maximale Wartezeit auf einen freien Server (Vorgabe 1 Minute)
+	 * @param unit Einheit
+	 */
+	public void setCheckoutTimeout(long timeout, TimeUnit unit) {
+		this.checkoutTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @param delay Wartezeit, bevor ein fehlerhafter Server erneut verwendet wird (Vorgabe 5 Sekunden)
+	 * @param unit Einheit
+	 */
+	public void setRetryDelay(long delay, TimeUnit unit) {
+		this.retryDelayMillis = unit.toMillis(delay);
+	}
+
+	/**
+	 * @param timeout maximale Dauer einer Konvertierung, danach wird die Verbindung getrennt und der Server fuer die
+	 *            Retry-Wartezeit nicht mehr verwendet; <code>0</code> fuer unbeschraenkt (Vorgabe)
+	 * @param unit Einheit
+	 */
+	public void setConversionTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must be >= 0");
+		}
+		this.conversionTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @param cache Cache fuer Konvertierungsergebnisse, <code>null</code> fuer keinen (Vorgabe)
+	 */
+	public void setCache(ConversionCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return Anzahl Server im Pool
+	 */
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * @return Anzahl laufender Konvertierungen
+	 */
+	public int getActiveCount() {
+		lock.lock();
+		try {
+			int active = 0;
+			for (PooledConnection connection : connections) {
+				active += connection.active;
+			}
+			return active;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Konvertiert das Dokument auf dem am wenigsten ausgelasteten Server. Sind alle Server ausgelastet, wird bis zum
+	 * Checkout-Timeout gewartet.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @return PDF-Dokument
+	 * @throws ConnectException kein Server erreichbar oder Timeout
+	 */
+	public ByteArrayOutputStream convertToPdf(InputStream inputStream) throws ConnectException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		convertToPdf(inputStream, baos);
+		return baos;
+	}
+
+	/**
+	 * Wie {@link #convertToPdf(InputStream)}, das PDF wird aber direkt nach <code>outputStream</code> geschrieben.
+	 *
+	 * @param inputStream ODT-Dokument, wird geschlossen
+	 * @param outputStream Ziel fuer das PDF, wird nicht geschlossen
+	 * @throws ConnectException kein Server erreichbar oder Timeout
+	 */
+	public void convertToPdf(InputStream inputStream, OutputStream outputStream) throws ConnectException {
+		if (inputStream == null) {
+			throw new RuntimeException("inputFile is null");
+		}
+		try {
+			ConversionCache conversionCache = cache;
+			if (conversionCache == null) {
+				convert(backend -> backend.convertToPdf(inputStream, outputStream));
+				return;
+			}
+			outputStream.write(conversionCache.get(readFully(inputStream), this::convert));
+		} catch (ConnectException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the input document.", e);
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				LOG.warn("Could not close the FileInputStream.", e);
+			}
+		}
+	}
+
+	/**
+	 * Konvertiert eine ODT-Datei in eine PDF-Datei. Ohne {@link #setCache(ConversionCache) Cache} liest und schreibt der
+	 * Server die Dateien direkt (siehe {@link ConverterBackend#convertToPdf(Path, Path)}), das Dokument wird also nicht
+	 * in den Heap geladen.
+	 *
+	 * @param odt ODT-Datei
+	 * @param pdf Ziel-Datei, wird ueberschrieben
+	 * @throws ConnectException kein Server erreichbar oder Timeout
+	 */
+	public void convertToPdf(Path odt, Path pdf) throws ConnectException {
+		ConversionCache conversionCache = cache;
+		if (conversionCache == null) {
+			convert(backend -> backend.convertToPdf(odt, pdf));
+			return;
+		}
+		try {
+			Files.write(pdf, conversionCache.get(Files.readAllBytes(odt), this::convert));
+		} catch (ConnectException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not convert " + odt + " to " + pdf, e);
+		}
+	}
+
+	private byte[] convert(byte[] odt) throws ConnectException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		convert(backend -> backend.convertToPdf(new ByteArrayInputStream(odt), baos));
+		return baos.toByteArray();
+	}
+
+	private void convert(Conversion conversion) throws ConnectException {
+		PooledConnection connection = checkout();
+		long timeoutMillis = conversionTimeoutMillis;
+		AtomicBoolean finished = new AtomicBoolean();
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = null;
+		if (timeoutMillis > 0) {
+			// das Trennen der Verbindung beendet auch eine haengende Konvertierung
+			watchdog = WATCHDOG.schedule(() -> {
+				if (finished.compareAndSet(false, true)) {
+					timedOut.set(true);
+					evict(connection, new ConnectException("conversion timed out after " + timeoutMillis + " ms"));
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		try {
+			conversion.convert(connection.backend);
+		} catch (ConnectException | RuntimeException e) {
+			if (timedOut.get()) {
+				ConnectException timeout = new ConnectException("conversion on " + connection.name + " timed out after " + timeoutMillis + " ms");
+				timeout.initCause(e);
+				throw timeout;
+			}
+			if (!connection.backend.isConnected()) {
+				evict(connection, e);
+			}
+			throw e;
+		} finally {
+			finished.set(true);
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			release(connection);
+		}
+	}
+
+	private static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = inputStream.read(buf)) != -1) {
+			baos.write(buf, 0, read);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Trennt alle Verbindungen.
+	 */
+	public void disconnect() {
+		for (PooledConnection connection : connections) {
+			connection.backend.disconnect();
+		}
+	}
+
+	/**
+	 * Reserviert den am wenigsten ausgelasteten, verfuegbaren Server und stellt sicher, dass dieser verbunden ist.
+	 */
+	private PooledConnection checkout() throws ConnectException {
+		long deadline = System.currentTimeMillis() + checkoutTimeoutMillis;
+		ConnectException lastFailure = null;
+		while (true) {
+			PooledConnection candidate = reserve(deadline);
+			if (candidate == null) {
+				if (lastFailure != null) {
+					throw lastFailure;
+				}
+				throw new ConnectException("no office server available");
+			}
+			try {
+				// Health-Check: getrennte Verbindungen werden neu aufgebaut
+				if (!candidate.backend.isConnected()) {
+					LOG.info("connecting to office server " + candidate.name);
+					candidate.backend.connect();
+					lock.lock();
+					try {
+						candidate.failedAt = 0;
+					} finally {
+						lock.unlock();
+					}
+				}
+				return candidate;
+			} catch (ConnectException e) {
+				lastFailure = e;
+				evict(candidate, e);
+				release(candidate);
+			}
+		}
+	}
+
+	private PooledConnection reserve(long deadline) throws ConnectException {
+		lock.lock();
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				PooledConnection best = null;
+				boolean available = false;
+				for (PooledConnection connection : connections) {
+					if (connection.failedAt > 0 && now - connection.failedAt < retryDelayMillis) {
+						continue;
+					}
+					available = true;
+					if (connection.active < maxConversionsPerConnection && (best == null || connection.active < best.active)) {
+						best = connection;
+					}
+				}
+				if (best != null) {
+					best.active++;
+					return best;
+				}
+				long wait = deadline - now;
+				if (!available || wait <= 0) {
+					// alle Server fehlerhaft: sofort abbrechen statt zu warten
+					return null;
+				}
+				released.await(wait, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectException("interrupted while waiting for an office server");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(PooledConnection connection) {
+		lock.lock();
+		try {
+			connection.active--;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void evict(PooledConnection connection, Exception cause) {
+		LOG.warn("office server " + connection.name + " not available, connection evicted", cause);
+		try {
+			connection.backend.disconnect();
+		} catch (RuntimeException e) {
+			LOG.debug("disconnect failed", e);
+		}
+		lock.lock();
+		try {
+			connection.failedAt = System.currentTimeMillis();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Konvertierung auf einem reservierten Backend.
+	 */
+	@FunctionalInterface
+	private interface Conversion {
+
+		void convert(ConverterBackend backend) throws ConnectException;
+	}
+
+	/**
+	 * Verbindung zu einem Server mit ihrer Auslastung.
+	 */
+	private static final class PooledConnection {
+
+		private final String name;
+		private final ConverterBackend backend;
+		/** laufende Konvertierungen, geschuetzt durch den Pool-Lock */
+		private int active;
+		/** Zeitpunkt des letzten Verbindungsfehlers, 0 wenn verfuegbar */
+		private long failedAt;
+
+		PooledConnection(ConverterBackend backend) {
+			this.name = backend.getName();
+			this.backend = backend;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backend ohne Office-Installation fuer Last- und Durchsatztests: jede Konvertierung dauert eine konfigurierbare Zeit,
+ * schlaegt mit einer konfigurierbaren Rate fehl und liefert ein kleines, vom Eingabedokument abhaengiges Pseudo-PDF.
+ * Mehr gleichzeitige Konvertierungen als {@link #setMaxConcurrency(int)} werden wie von einem ueberlasteten Server
+ * mit einer {@link ConnectException} abgewiesen, damit ein {@link AdaptiveConcurrencyLimiter} zurueckschaltet; mit {@link #setAvailable(boolean)} laesst sich ein abgestuerzter Server simulieren.
+ */
+public class FakeConverterBackend implements ConverterBackend {
+
+	private final String name;
+
+	private volatile long minLatencyMicros = 0;
+	private volatile long maxLatencyMicros = 0;
+	private volatile double failureRate = 0;
+	private volatile int maxConcurrency = Integer.MAX_VALUE;
+	private volatile boolean available = true;
+	private volatile boolean connected = false;
+
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger maxRunning = new AtomicInteger();
+	private final AtomicLong conversions = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param name Bezeichnung fuer Logs
+	 */
+	public FakeConverterBackend(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param min minimale Dauer einer Konvertierung
+	 * @param max maximale Dauer einer Konvertierung, gleichverteilt zwischen min und max
+	 * @param unit Einheit
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		this.minLatencyMicros = unit.toMicros(min);
+		this.maxLatencyMicros = Math.max(unit.toMicros(max), minLatencyMicros);
+	}
+
+	/**
+	 * @param failureRate Anteil fehlschlagender Konvertierungen zwischen 0 und 1
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * @param maxConcurrency maximale Anzahl gleichzeitiger Konvertierungen, weitere schlagen mit einer
+	 *            {@link ConnectException} fehl
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * @param available <code>false</code> trennt die Verbindung und laesst weitere Verbindungsversuche fehlschlagen
+	 */
+	public void setAvailable(boolean available) {
+		this.available = available;
+		if (!available) {
+			connected = false;
+		}
+	}
+
+	/**
+	 * @return Anzahl erfolgreicher Konvertierungen
+	 */
+	public long getConversionCount() {
+		return conversions.get();
+	}
+
+	/**
+	 * @return Anzahl fehlgeschlagener Konvertierungen
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * @return hoechste beobachtete Anzahl gleichzeitiger Konvertierungen
+	 */
+	public int getMaxObservedConcurrency() {
+		return maxRunning.get();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void connect() throws ConnectException {
+		if (!available) {
+			throw new ConnectException("fake backend " + name + " not available");
+		}
+		connected = true;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public void disconnect() {
+		connected = false;
+	}
+
+	@Override
+	public void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException {
+		if (!connected) {
+			throw new ConnectException("fake backend " + name + " not connected");
+		}
+		int current = running.incrementAndGet();
+		try {
+			maxRunning.accumulateAndGet(current, Math::max);
+			if (current > maxConcurrency) {
+				failures.incrementAndGet();
+				throw new ConnectException("fake backend " + name + " overloaded");
+			}
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = odt.read(buf)) != -1) {
+				digest.update(buf, 0, read);
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long latency = minLatencyMicros + (maxLatencyMicros > minLatencyMicros ? random.nextLong(maxLatencyMicros - minLatencyMicros) : 0);
+			if (latency > 0) {
+				TimeUnit.MICROSECONDS.sleep(latency);
+			}
+			if (!connected) {
+				throw new IllegalStateException("fake backend " + name + " disconnected");
+			}
+			if (random.nextDouble() < failureRate) {
+				failures.incrementAndGet();
+				throw new IllegalStateException("fake backend " + name + ": simulated failure");
+			}
+			StringBuilder sb = new StringBuilder("%PDF-1.4\n%");
+			for (byte b : digest.digest()) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			sb.append("\n%%EOF\n");
+			pdf.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+			conversions.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("fake conversion interrupted", e);
+		} catch (ConnectException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException("fake conversion failed", e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+}
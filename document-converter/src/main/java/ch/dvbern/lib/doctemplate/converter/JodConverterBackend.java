@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.file.Path;
+
+import com.artofsolving.jodconverter.DefaultDocumentFormatRegistry;
+import com.artofsolving.jodconverter.DocumentFormat;
+import com.artofsolving.jodconverter.openoffice.connection.OpenOfficeConnection;
+import com.artofsolving.jodconverter.openoffice.connection.SocketOpenOfficeConnection;
+import com.artofsolving.jodconverter.openoffice.converter.OpenOfficeDocumentConverter;
+
+/**
+ * Konvertierung ueber einen Libreoffice Headless-Server mit jodconverter ({@link SocketOpenOfficeConnection}).
+ */
+public class JodConverterBackend implements ConverterBackend {
+
+	private static final DocumentFormat ODT_FORMAT;
+	private static final DocumentFormat PDF_FORMAT;
+
+	private final String name;
+	private final OpenOfficeConnection connection;
+
+	static {
+		DefaultDocumentFormatRegistry registry = new DefaultDocumentFormatRegistry();
+		ODT_FORMAT = registry.getFormatByFileExtension("odt");
+		PDF_FORMAT = registry.getFormatByFileExtension("pdf");
+	}
+
+	/**
+	 * @param host Libreoffice-Server
+	 * @param port Port des Servers
+	 */
+	public JodConverterBackend(String host, int port) {
+		this.name = host + ':' + port;
+		this.connection = new SocketOpenOfficeConnection(host, port);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void connect() throws ConnectException {
+		connection.connect();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connection.isConnected();
+	}
+
+	@Override
+	public void disconnect() {
+		// ohne Verbindung gibt es keine Bridge mehr, die geschlossen werden muss
+		if (connection.isConnected()) {
+			connection.disconnect();
+		}
+	}
+
+	@Override
+	public void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException {
+		new OpenOfficeDocumentConverter(connection).convert(odt, ODT_FORMAT, pdf, PDF_FORMAT);
+	}
+
+	/**
+	 * Der Server liest und schreibt die Dateien direkt, ohne Umweg ueber den Heap und temporaere Dateien. Die Pfade muessen
+	 * deshalb auch fuer den Server erreichbar sein (gleicher Host oder gemeinsames Dateisystem).
+	 */
+	@Override
+	public void convertToPdf(Path odt, Path pdf) throws ConnectException {
+		new OpenOfficeDocumentConverter(connection).convert(odt.toAbsolutePath().toFile(), ODT_FORMAT, pdf.toAbsolutePath().toFile(), PDF_FORMAT);
+	}
+}
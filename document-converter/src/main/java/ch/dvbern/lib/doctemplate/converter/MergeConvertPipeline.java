@@ -0,0 +1,402 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pipeline fuer die Serienproduktion von PDF-Dokumenten: Merge-Threads erzeugen die ODT-Dokumente, Konvertierungs-Threads
+ * wandeln sie ueber einen {@link DocumentConverterPool} nach PDF. Beide Stufen laufen ueberlappend, d.h. der naechste
+ * Datensatz wird gemerged, waehrend der vorherige konvertiert wird. Zwischen den Stufen liegt ein beschraenkter Puffer,
+ * in dem jeder Merge vor dem Einreihen einen Platz reserviert: ist er voll, werden keine weiteren Merges eingereiht, bis
+ * die Konvertierung nachkommt. Die Merge-Threads selbst warten nie auf den Puffer, ein gemeinsamer Pool bleibt also fuer
+ * andere Auftraege frei. Die gemergten Bytes werden ohne weitere Kopie an den Converter uebergeben.
+ * <p>
+ * Die Ergebnisse werden dem {@link Callback} in der Reihenfolge ihrer Fertigstellung gemeldet, nicht in der Reihenfolge
+ * der Datensaetze. Fehler eines Datensatzes brechen den Lauf nicht ab. Ein {@link Error} beim Mergen oder Konvertieren
+ * wird nicht an den Callback gemeldet; der Lauf wird dann fortgesetzt und endet mit einer Exception.
+ * <p>
+ * Alle Auftraege laufen mit der {@link #setPriority(Priority) Prioritaet} der Pipeline (Vorgabe {@link Priority#BULK}):
+ * ueber {@link #setMergeExecutor(PriorityExecutor)} teilen sich mehrere Pipelines und interaktive Merges einen
+ * Thread-Pool, mit {@link #MergeConvertPipeline(AsyncDocumentConverter, MergeStep)} laufen die Konvertierungen ueber die
+ * Warteschlange des {@link AsyncDocumentConverter}. Wird ein Auftrag dort wegen Ueberlast abgelehnt, wird er
+ * zurueckgestellt und spaeter erneut eingereiht.
+ *
+ * @param <T> Datensatz
+ */
+public class MergeConvertPipeline<T> {
+
+	/**
+	 * Merge-Schritt, z.B. <code>(item, out) -&gt; new ODTMergeEngine("...").getDocument(template, source(item), out)</code>.
+	 * Wird gleichzeitig aus mehreren Threads aufgerufen, nicht threadsichere Engines sind pro Aufruf zu erzeugen.
+	 *
+	 * @param <T> Datensatz
+	 */
+	@FunctionalInterface
+	public interface MergeStep<T> {
+
+		/**
+		 * @param item Datensatz
+		 * @param odt Ziel fuer das ODT-Dokument
+		 * @throws Exception Fehler beim Mergen, wird an {@link Callback#failed(Object, Exception)} gemeldet
+		 */
+		void merge(T item, OutputStream odt) throws Exception;
+	}
+
+	/**
+	 * Empfaenger der Ergebnisse, wird aus den Worker-Threads aufgerufen.
+	 *
+	 * @param <T> Datensatz
+	 */
+	public interface Callback<T> {
+
+		/**
+		 * @param item Datensatz
+		 * @param pdf konvertiertes Dokument
+		 */
+		void converted(T item, ByteArrayOutputStream pdf);
+
+		/**
+		 * @param item Datensatz
+		 * @param e Fehler beim Mergen oder Konvertieren
+		 */
+		void failed(T item, Exception e);
+	}
+
+	/** Logger */
+	private static final Log LOG = LogFactory.getLog(MergeConvertPipeline.class);
+
+	private static final long RETRY_DELAY_MILLIS = 100;
+
+	private final DocumentConverterPool pool;
+	private final AsyncDocumentConverter converter;
+	private final MergeStep<T> mergeStep;
+
+	private int mergeThreads = Runtime.getRuntime().availableProcessors();
+	private int convertThreads;
+	private int bufferSize;
+	private Priority priority = Priority.BULK;
+	private PriorityExecutor mergeExecutor = null;
+
+	/**
+	 * Standardmaessig ein Merge-Thread pro Prozessor, ein Konvertierungs-Thread pro Server und ein Puffer von zwei
+	 * Dokumenten pro Konvertierungs-Thread.
+	 *
+	 * @param pool Pool fuer die Konvertierung
+	 * @param mergeStep Merge-Schritt
+	 */
+	public MergeConvertPipeline(DocumentConverterPool pool, MergeStep<T> mergeStep) {
+		this(pool, null, mergeStep);
+	}
+
+	/**
+	 * Konvertiert ueber die Warteschlange des <code>converter</code>, sonst wie
+	 * {@link #MergeConvertPipeline(DocumentConverterPool, MergeStep)}.
+	 *
+	 * @param converter Converter fuer die Konvertierung
+	 * @param mergeStep Merge-Schritt
+	 */
+	public MergeConvertPipeline(AsyncDocumentConverter converter, MergeStep<T> mergeStep) {
+		this(converter.getPool(), converter, mergeStep);
+	}
+
+	private MergeConvertPipeline(DocumentConverterPool pool, AsyncDocumentConverter converter, MergeStep<T> mergeStep) {
+		this.pool = pool;
+		this.converter = converter;
+		this.mergeStep = mergeStep;
+		this.convertThreads = pool.size();
+		this.bufferSize = 2 * convertThreads;
+	}
+
+	/**
+	 * @param mergeThreads Anzahl gleichzeitiger Merges
+	 */
+	public void setMergeThreads(int mergeThreads) {
+		this.mergeThreads = mergeThreads;
+	}
+
+	/**
+	 * @param convertThreads Anzahl gleichzeitiger Konvertierungen
+	 */
+	public void setConvertThreads(int convertThreads) {
+		this.convertThreads = convertThreads;
+	}
+
+	/**
+	 * @param bufferSize maximale Anzahl laufender Merges und gemergter, noch nicht konvertierter Dokumente
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param priority Prioritaet der Merge- und Konvertierungsauftraege (Vorgabe {@link Priority#BULK})
+	 */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @param mergeExecutor gemeinsamer Thread-Pool fuer die Merges, <code>null</code> fuer einen eigenen Pool pro Lauf
+	 *        (Vorgabe). Pro Lauf werden hoechstens {@link #setMergeThreads(int) mergeThreads} Merges gleichzeitig
+	 *        eingereiht.
+	 */
+	public void setMergeExecutor(PriorityExecutor mergeExecutor) {
+		this.mergeExecutor = mergeExecutor;
+	}
+
+	/**
+	 * Verarbeitet alle Datensaetze und kehrt zurueck, sobald alle gemeldet sind.
+	 *
+	 * @param items Datensaetze, werden nur einmal durchlaufen
+	 * @param callback Empfaenger der Ergebnisse
+	 * @return Anzahl erfolgreich konvertierter Dokumente
+	 * @throws InterruptedException der aufrufende Thread wurde unterbrochen, laufende Auftraege werden abgebrochen
+	 * @throws RejectedExecutionException der gemeinsame Merge-Pool wurde waehrend des Laufs beendet
+	 */
+	public int process(Iterable<? extends T> items, Callback<? super T> callback) throws InterruptedException {
+		BlockingQueue<Merged<T>> handOff = new ArrayBlockingQueue<>(bufferSize);
+		// ein Platz im Puffer wird vor dem Einreihen des Merges reserviert, damit handOff.put nie blockiert
+		Semaphore bufferSlots = new Semaphore(bufferSize);
+		Semaphore mergeSlots = new Semaphore(mergeThreads);
+		AtomicInteger converted = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		PriorityExecutor merges = mergeExecutor != null ? mergeExecutor : new PriorityExecutor(mergeThreads, mergeThreads, "merge");
+		ExecutorService conversions = Executors.newFixedThreadPool(convertThreads, new NamedThreadFactory("convert"));
+		List<Future<?>> running = new ArrayList<>();
+		try {
+			for (int i = 0; i < convertThreads; i++) {
+				running.add(conversions.submit(() -> {
+					convert(handOff, bufferSlots, callback, converted, failure);
+					return null;
+				}));
+			}
+			for (T item : items) {
+				acquire(bufferSlots, 1, merges, running);
+				acquire(mergeSlots, 1, merges, running);
+				reap(running);
+				running.add(submit(merges, () -> {
+					boolean handedOff = false;
+					try {
+						handedOff = merge(item, handOff, callback, failure);
+					} finally {
+						if (!handedOff) {
+							bufferSlots.release();
+						}
+						mergeSlots.release();
+					}
+					return null;
+				}));
+			}
+			// alle Merges abgeschlossen
+			acquire(mergeSlots, mergeThreads, merges, running);
+			for (int i = 0; i < convertThreads; i++) {
+				handOff.put(Merged.<T> end());
+			}
+			for (Future<?> future : running) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			failure.compareAndSet(null, e.getCause());
+		} finally {
+			for (Future<?> future : running) {
+				future.cancel(true);
+			}
+			conversions.shutdownNow();
+			if (merges != mergeExecutor) {
+				merges.shutdownNow();
+			}
+		}
+		if (failure.get() != null) {
+			// Fehler der Datensaetze gehen an den Callback, hier landen nur Fehler des Callbacks selbst
+			throw new IllegalStateException("merge/convert pipeline failed", failure.get());
+		}
+		return converted.get();
+	}
+
+	/**
+	 * Entfernt abgeschlossene Auftraege. Ein unerwartet beendeter Worker bricht den Lauf ab, statt dass die anderen
+	 * Stufen auf ihn warten.
+	 */
+	private static void reap(List<Future<?>> running) throws InterruptedException, ExecutionException {
+		Iterator<Future<?>> it = running.iterator();
+		while (it.hasNext()) {
+			Future<?> future = it.next();
+			if (future.isDone()) {
+				future.get();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Wartet auf freie Plaetze. Verwirft ein beendeter gemeinsamer Pool eingereihte Merges, werden deren Plaetze nie
+	 * freigegeben; statt endlos zu warten, wird der Lauf abgebrochen.
+	 */
+	private static void acquire(Semaphore slots, int permits, PriorityExecutor merges, List<Future<?>> running)
+			throws InterruptedException, ExecutionException {
+		while (!slots.tryAcquire(permits, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)) {
+			reap(running);
+			if (merges.isTerminated()) {
+				if (slots.tryAcquire(permits)) {
+					return;
+				}
+				throw new RejectedExecutionException("merge executor terminated during the run");
+			}
+		}
+	}
+
+	/**
+	 * Reiht den Merge ein; ist der gemeinsame Pool ueberlastet, wird er zurueckgestellt.
+	 */
+	private Future<?> submit(PriorityExecutor merges, Callable<Void> task) throws InterruptedException {
+		while (true) {
+			try {
+				return merges.submit(priority, task);
+			} catch (RejectedExecutionException e) {
+				if (merges.isShutdown()) {
+					throw e;
+				}
+				Thread.sleep(RETRY_DELAY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code>, wenn das Dokument in den reservierten Platz im Puffer gestellt wurde
+	 */
+	private boolean merge(T item, BlockingQueue<Merged<T>> handOff, Callback<? super T> callback, AtomicReference<Throwable> failure)
+			throws InterruptedException {
+		HandOffBuffer odt = new HandOffBuffer();
+		try {
+			mergeStep.merge(item, odt);
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			LOG.debug("merge failed", e);
+			report(() -> callback.failed(item, e), failure);
+			return false;
+		} catch (Error e) {
+			LOG.error("merge failed", e);
+			failure.compareAndSet(null, e);
+			return false;
+		}
+		handOff.add(new Merged<T>(item, odt));
+		return true;
+	}
+
+	private void convert(BlockingQueue<Merged<T>> handOff, Semaphore bufferSlots, Callback<? super T> callback, AtomicInteger converted,
+			AtomicReference<Throwable> failure) throws InterruptedException {
+		Merged<T> merged;
+		while ((merged = handOff.take()).odt != null) {
+			bufferSlots.release();
+			T item = merged.item;
+			ByteArrayOutputStream pdf;
+			try {
+				pdf = convert(merged.odt);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				LOG.debug("conversion failed", e);
+				report(() -> callback.failed(item, e), failure);
+				continue;
+			} catch (Error e) {
+				// der Worker arbeitet weiter, sonst warten die Merges vergeblich auf den Puffer
+				LOG.error("conversion failed", e);
+				failure.compareAndSet(null, e);
+				continue;
+			}
+			converted.incrementAndGet();
+			report(() -> callback.converted(item, pdf), failure);
+		}
+	}
+
+	private ByteArrayOutputStream convert(HandOffBuffer odt) throws Exception {
+		if (converter == null) {
+			return pool.convertToPdf(odt.toInputStream());
+		}
+		while (true) {
+			try {
+				return converter.convertToPdfAsync(odt.toInputStream(), priority).get();
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof RejectedExecutionException) || converter.isShutdown()) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+				// Ueberlast: zurueckstellen und erneut einreihen
+				Thread.sleep(RETRY_DELAY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Ruft den Callback auf; ein Fehler darin beendet den Lauf erst am Ende, damit keine Stufe blockiert.
+	 */
+	private static void report(Runnable notification, AtomicReference<Throwable> failure) {
+		try {
+			notification.run();
+		} catch (RuntimeException | Error e) {
+			LOG.error("callback failed", e);
+			failure.compareAndSet(null, e);
+		}
+	}
+
+	/**
+	 * Gemergtes Dokument im Puffer, ohne Dokument als Endmarke.
+	 */
+	private static final class Merged<T> {
+
+		private final T item;
+		private final HandOffBuffer odt;
+
+		Merged(T item, HandOffBuffer odt) {
+			this.item = item;
+			this.odt = odt;
+		}
+
+		static <T> Merged<T> end() {
+			return new Merged<T>(null, null);
+		}
+	}
+
+	/**
+	 * Gibt den Inhalt ohne Kopie als {@link java.io.InputStream} weiter.
+	 */
+	private static final class HandOffBuffer extends ByteArrayOutputStream {
+
+		ByteArrayInputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
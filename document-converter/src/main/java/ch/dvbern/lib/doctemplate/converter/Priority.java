@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+/**
+ * Dringlichkeit eines Auftrags, siehe {@link PriorityExecutor}.
+ */
+public enum Priority {
+	/**
+	 * Ein Benutzer wartet auf das Dokument.
+	 */
+	INTERACTIVE,
+	/**
+	 * Vorgabe.
+	 */
+	NORMAL,
+	/**
+	 * Batch-Verarbeitung, wird bei Ueberlast zuerst zurueckgestellt oder abgelehnt.
+	 */
+	BULK
+}
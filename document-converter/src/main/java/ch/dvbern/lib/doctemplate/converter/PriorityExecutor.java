@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-Pool mit Prioritaetsklassen fuer Konvertierungs- und Merge-Auftraege: interaktive Anfragen und Batch-Laeufe
+ * koennen denselben Pool verwenden, ohne dass der Batch die Benutzer ausbremst. Die Warteschlange reserviert pro
+ * {@link Priority} eine eigene Kapazitaet, verteilt die freien Threads gewichtet reihum und zieht zu lange wartende
+ * Auftraege vor (siehe {@link #setWeight(Priority, int)} und {@link #setMaxWait(long, TimeUnit)}).
+ * <p>
+ * Auftraege ohne Prioritaet (z.B. ueber {@link #execute(Runnable)} oder {@link #submit(Callable)}) gelten als
+ * {@link Priority#NORMAL}.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+	private final PriorityJobQueue queue;
+
+	/**
+	 * @param threads Anzahl Worker-Threads
+	 * @param capacity Kapazitaet der Warteschlange pro Prioritaet
+	 * @param threadName Praefix der Thread-Namen
+	 */
+	public PriorityExecutor(int threads, int capacity, String threadName) {
+		this(threads, new PriorityJobQueue(capacity), threadName);
+	}
+
+	private PriorityExecutor(int threads, PriorityJobQueue queue, String threadName) {
+		super(threads, threads, 0, TimeUnit.MILLISECONDS, queue, new NamedThreadFactory(threadName));
+		this.queue = queue;
+		// alle Auftraege laufen ueber die Warteschlange, auch die ersten (sonst direkt an neue Threads uebergeben)
+		prestartAllCoreThreads();
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @param capacity Anzahl fuer diese Prioritaet reservierter Warteplaetze
+	 */
+	public void setCapacity(Priority priority, int capacity) {
+		queue.setCapacity(priority, capacity);
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @param weight Anteil der freien Threads, wenn alle Prioritaeten warten (Vorgabe 8:3:1)
+	 */
+	public void setWeight(Priority priority, int weight) {
+		queue.setWeight(priority, weight);
+	}
+
+	/**
+	 * @param maxWait Wartezeit, nach der ein Auftrag unabhaengig von seiner Prioritaet vorgezogen wird (Vorgabe 30
+	 *        Sekunden)
+	 * @param unit Einheit
+	 */
+	public void setMaxWait(long maxWait, TimeUnit unit) {
+		queue.setMaxWait(maxWait, unit);
+	}
+
+	/**
+	 * @param admission Zulassung, die vor der Entnahme eines Auftrags eingeholt wird, <code>null</code> fuer keine
+	 */
+	void setAdmission(PriorityJobQueue.Admission admission) {
+		queue.setAdmission(admission);
+	}
+
+	/**
+	 * Weckt die wartenden Worker, nachdem eine Zulassung frei geworden ist.
+	 */
+	void admissionChanged() {
+		queue.admissionChanged();
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @return Anzahl wartender Auftraege dieser Prioritaet
+	 */
+	public int getQueueSize(Priority priority) {
+		return queue.size(priority);
+	}
+
+	/**
+	 * @param priority Prioritaet
+	 * @param task Auftrag
+	 * @return Ergebnis des Auftrags
+	 */
+	public <T> Future<T> submit(Priority priority, Callable<T> task) {
+		PrioritizedTask<T> future = new PrioritizedTask<>(priority, task);
+		execute(future);
+		return future;
+	}
+
+	/**
+	 * {@link FutureTask} mit Prioritaet.
+	 */
+	private static final class PrioritizedTask<T> extends FutureTask<T> implements PriorityJobQueue.Prioritized {
+
+		private final Priority priority;
+
+		PrioritizedTask(Priority priority, Callable<T> callable) {
+			super(callable);
+			this.priority = priority;
+		}
+
+		@Override
+		public Priority getPriority() {
+			return priority;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Warteschlange fuer den {@link PriorityExecutor}: eine beschraenkte FIFO-Warteschlange pro {@link Priority}. Die
+ * Kapazitaet ist pro Prioritaet reserviert, ein Batch-Lauf kann also keine Plaetze fuer interaktive Auftraege belegen.
+ * Entnommen wird gewichtet reihum (Vorgabe 8:3:1), Auftraege die laenger als die maximale Wartezeit warten, werden
+ * unabhaengig von ihrer Prioritaet vorgezogen. Damit kommen auch {@link Priority#BULK}-Auftraege unter Dauerlast voran.
+ * <p>
+ * Mit einer {@link Admission} entnehmen die Worker ({@link #take()}, {@link #poll(long, TimeUnit)}) erst dann einen
+ * Auftrag, wenn dieser auch ausgefuehrt werden darf. Bis dahin bleibt er in der Warteschlange, zaehlt also zu deren
+ * Groesse und wird bei frei werdender Kapazitaet gemaess seiner Prioritaet beruecksichtigt.
+ */
+final class PriorityJobQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+	/**
+	 * Auftrag mit Prioritaet; andere Auftraege gelten als {@link Priority#NORMAL}.
+	 */
+	interface Prioritized {
+
+		Priority getPriority();
+	}
+
+	/**
+	 * Zulassung von Auftraegen vor der Entnahme durch einen Worker.
+	 */
+	interface Admission {
+
+		/**
+		 * @return <code>true</code>, wenn ein Auftrag entnommen werden darf
+		 */
+		boolean tryAdmit();
+
+		/**
+		 * Uebergibt die mit {@link #tryAdmit()} erteilte Zulassung an den entnommenen Auftrag.
+		 *
+		 * @param job entnommener Auftrag
+		 */
+		void admitted(Runnable job);
+	}
+
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Map<Priority, ArrayDeque<Entry>> queues = new EnumMap<>(Priority.class);
+	private final int[] capacities = new int[PRIORITIES.length];
+	private final int[] weights = { 8, 3, 1 };
+	private final int[] credits = new int[PRIORITIES.length];
+
+	private long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+	private int count = 0;
+	private Admission admission = null;
+
+	/**
+	 * @param capacity Kapazitaet pro Prioritaet
+	 */
+	PriorityJobQueue(int capacity) {
+		for (Priority priority : PRIORITIES) {
+			queues.put(priority, new ArrayDeque<Entry>());
+			capacities[priority.ordinal()] = capacity;
+		}
+	}
+
+	void setCapacity(Priority priority, int capacity) {
+		lock.lock();
+		try {
+			capacities[priority.ordinal()] = capacity;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void setWeight(Priority priority, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be >= 1");
+		}
+		lock.lock();
+		try {
+			weights[priority.ordinal()] = weight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void setMaxWait(long maxWait, TimeUnit unit) {
+		lock.lock();
+		try {
+			maxWaitNanos = unit.toNanos(maxWait);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void setAdmission(Admission admission) {
+		lock.lock();
+		try {
+			this.admission = admission;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Weckt die wartenden Worker, nachdem eine Zulassung frei geworden ist.
+	 */
+	void admissionChanged() {
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size(Priority priority) {
+		lock.lock();
+		try {
+			return queues.get(priority).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	static Priority priorityOf(Object job) {
+		return job instanceof Prioritized ? ((Prioritized) job).getPriority() : Priority.NORMAL;
+	}
+
+	@Override
+	public boolean offer(Runnable job) {
+		Priority priority = priorityOf(job);
+		lock.lock();
+		try {
+			if (isFull(priority)) {
+				return false;
+			}
+			enqueue(priority, job);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable job, long timeout, TimeUnit unit) throws InterruptedException {
+		Priority priority = priorityOf(job);
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (isFull(priority)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(priority, job);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable job) throws InterruptedException {
+		Priority priority = priorityOf(job);
+		lock.lockInterruptibly();
+		try {
+			while (isFull(priority)) {
+				notFull.await();
+			}
+			enqueue(priority, job);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0 || !tryAdmit()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeueAdmitted();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0 || !tryAdmit()) {
+				notEmpty.await();
+			}
+			return dequeueAdmitted();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			for (Priority priority : PRIORITIES) {
+				Entry head = queues.get(priority).peekFirst();
+				if (head != null) {
+					return head.job;
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object job) {
+		lock.lock();
+		try {
+			Iterator<Entry> it = queues.get(priorityOf(job)).iterator();
+			while (it.hasNext()) {
+				if (it.next().job == job) {
+					it.remove();
+					count--;
+					notFull.signalAll();
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			int remaining = 0;
+			for (Priority priority : PRIORITIES) {
+				remaining += Math.max(0, capacities[priority.ordinal()] - queues.get(priority).size());
+			}
+			return remaining;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		lock.lock();
+		try {
+			int drained = 0;
+			while (count > 0 && drained < maxElements) {
+				c.add(dequeue());
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Momentaufnahme in Prioritaetsreihenfolge, {@link Iterator#remove()} wird nicht unterstuetzt.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			List<Runnable> snapshot = new ArrayList<>(count);
+			for (Priority priority : PRIORITIES) {
+				for (Entry entry : queues.get(priority)) {
+					snapshot.add(entry.job);
+				}
+			}
+			return new Iterator<Runnable>() {
+
+				private final Iterator<Runnable> delegate = snapshot.iterator();
+
+				@Override
+				public boolean hasNext() {
+					return delegate.hasNext();
+				}
+
+				@Override
+				public Runnable next() {
+					return delegate.next();
+				}
+			};
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isFull(Priority priority) {
+		return queues.get(priority).size() >= capacities[priority.ordinal()];
+	}
+
+	private boolean tryAdmit() {
+		return admission == null || admission.tryAdmit();
+	}
+
+	private Runnable dequeueAdmitted() {
+		Runnable job = dequeue();
+		if (admission != null) {
+			admission.admitted(job);
+		}
+		return job;
+	}
+
+	private void enqueue(Priority priority, Runnable job) {
+		queues.get(priority).addLast(new Entry(job, System.nanoTime()));
+		count++;
+		notEmpty.signal();
+	}
+
+	/**
+	 * Entnimmt den naechsten Auftrag, Aufrufer haelt den Lock und <code>count &gt; 0</code>.
+	 */
+	private Runnable dequeue() {
+		ArrayDeque<Entry> next = null;
+		// Alterung: der am laengsten ueberfaellige Auftrag zuerst
+		long now = System.nanoTime();
+		long oldest = Long.MAX_VALUE;
+		for (Priority priority : PRIORITIES) {
+			Entry head = queues.get(priority).peekFirst();
+			if (head != null && now - head.enqueued > maxWaitNanos && head.enqueued < oldest) {
+				oldest = head.enqueued;
+				next = queues.get(priority);
+			}
+		}
+		// sonst gewichtet reihum, leere Prioritaeten verbrauchen kein Guthaben
+		while (next == null) {
+			for (Priority priority : PRIORITIES) {
+				if (credits[priority.ordinal()] > 0 && !queues.get(priority).isEmpty()) {
+					credits[priority.ordinal()]--;
+					next = queues.get(priority);
+					break;
+				}
+			}
+			if (next == null) {
+				System.arraycopy(weights, 0, credits, 0, weights.length);
+			}
+		}
+		count--;
+		notFull.signalAll();
+		return next.pollFirst().job;
+	}
+
+	private static final class Entry {
+
+		private final Runnable job;
+		private final long enqueued;
+
+		Entry(Runnable job, long enqueued) {
+			this.job = job;
+			this.enqueued = enqueued;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests fuer den {@link AdaptiveConcurrencyLimiter}.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+	/**
+	 * Das Limit steigt bei gleichbleibender Dauer und sinkt, sobald die Dauer steigt oder Konvertierungen fehlschlagen.
+	 */
+	@Test
+	public void testAimd() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 8);
+		long fast = TimeUnit.MILLISECONDS.toNanos(100);
+		for (int round = 0; round < 50; round++) {
+			int limit = limiter.getLimit();
+			for (int i = 0; i < limit; i++) {
+				Assert.assertTrue(limiter.tryAcquire());
+			}
+			Assert.assertFalse(limiter.tryAcquire());
+			Assert.assertTrue(limiter.isSaturated());
+			for (int i = 0; i < limit; i++) {
+				limiter.release(fast, false);
+			}
+		}
+		Assert.assertEquals(8, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(3 * fast, false);
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+		for (int i = 0; i < 50; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(fast, true);
+		}
+		Assert.assertEquals(1, limiter.getLimit());
+	}
+
+	/**
+	 * Ein Ende ohne Messung gibt die Konvertierung frei, ohne das Limit zu aendern, und benachrichtigt die Listener.
+	 */
+	@Test
+	public void testReleaseWithoutSample() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 2);
+		final int[] notified = { 0 };
+		limiter.addReleaseListener(() -> notified[0]++);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertFalse(limiter.tryAcquire());
+		for (int i = 0; i < 2; i++) {
+			limiter.release();
+		}
+		Assert.assertEquals(2, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+		Assert.assertEquals(2, notified[0]);
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests fuer den {@link AsyncDocumentConverter} mit einem {@link FakeConverterBackend}.
+ */
+public class AsyncDocumentConverterTest {
+
+	private FakeConverterBackend backend;
+	private DocumentConverterPool pool;
+	private AsyncDocumentConverter converter;
+
+	/**
+	 * Ein Server mit 100 ms pro Konvertierung.
+	 */
+	@Before
+	public void init() {
+		backend = new FakeConverterBackend("fake");
+		backend.setLatency(100, 100, TimeUnit.MILLISECONDS);
+		pool = new DocumentConverterPool(backend);
+	}
+
+	/**
+	 * Beendet den Converter.
+	 */
+	@After
+	public void shutdown() {
+		if (converter != null) {
+			converter.shutdown();
+		}
+	}
+
+	/**
+	 * Bei voller Warteschlange wird sofort abgelehnt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReject() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 1, 1, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		CompletableFuture<ByteArrayOutputStream> first = converter.convertToPdfAsync(input());
+		Thread.sleep(20);
+		CompletableFuture<ByteArrayOutputStream> second = converter.convertToPdfAsync(input());
+		CompletableFuture<ByteArrayOutputStream> third = converter.convertToPdfAsync(input());
+		Assert.assertTrue(third.isCompletedExceptionally());
+		assertCause(RejectedExecutionException.class, third);
+		Assert.assertTrue(first.get().size() > 0);
+		Assert.assertTrue(second.get().size() > 0);
+	}
+
+	/**
+	 * Bei voller Warteschlange konvertiert der aufrufende Thread selbst.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCallerRuns() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 1, 1, AsyncDocumentConverter.OverloadPolicy.CALLER_RUNS);
+		pool.setMaxConversionsPerConnection(2);
+		converter.convertToPdfAsync(input());
+		Thread.sleep(20);
+		converter.convertToPdfAsync(input());
+		CompletableFuture<ByteArrayOutputStream> third = converter.convertToPdfAsync(input());
+		Assert.assertTrue(third.isDone());
+		Assert.assertTrue(third.get().size() > 0);
+	}
+
+	/**
+	 * Timeouts und abgebrochene Auftraege geben den Worker fuer die naechsten Auftraege frei.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTimeoutAndCancel() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 1, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		CompletableFuture<ByteArrayOutputStream> timedOut = converter.convertToPdfAsync(input(), 30, TimeUnit.MILLISECONDS);
+		awaitRunning();
+		CompletableFuture<ByteArrayOutputStream> cancelled = converter.convertToPdfAsync(input());
+		CompletableFuture<ByteArrayOutputStream> last = converter.convertToPdfAsync(input());
+		Assert.assertTrue(cancelled.cancel(true));
+		Assert.assertEquals(1, converter.getQueueSize());
+
+		assertCause(TimeoutException.class, timedOut);
+		Assert.assertTrue(last.get(1, TimeUnit.SECONDS).size() > 0);
+		Assert.assertEquals(1, backend.getConversionCount());
+	}
+
+	/**
+	 * Ein laufender Auftrag wird durch {@link CompletableFuture#cancel(boolean)} unterbrochen, der Worker steht danach
+	 * sofort wieder zur Verfuegung.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancelRunning() throws Exception {
+		backend.setLatency(2, 2, TimeUnit.SECONDS);
+		converter = new AsyncDocumentConverter(pool, 1, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		CompletableFuture<ByteArrayOutputStream> running = converter.convertToPdfAsync(input());
+		awaitRunning();
+		long start = System.nanoTime();
+		Assert.assertTrue(running.cancel(true));
+		while (pool.getActiveCount() > 0) {
+			Thread.sleep(1);
+		}
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		backend.setLatency(0, 0, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(converter.convertToPdfAsync(input()).get(1, TimeUnit.SECONDS).size() > 0);
+		Assert.assertEquals(1, backend.getConversionCount());
+	}
+
+	/**
+	 * Fehler der Konvertierung werden ueber das Future gemeldet, der Worker arbeitet weiter.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		backend.setFailureRate(1);
+		converter = new AsyncDocumentConverter(pool, 1, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		assertCause(IllegalStateException.class, converter.convertToPdfAsync(input()));
+		backend.setFailureRate(0);
+		Assert.assertTrue(converter.convertToPdfAsync(input()).get().size() > 0);
+	}
+
+	/**
+	 * Nach dem Beenden werden wartende Auftraege abgebrochen, ihre Eingabe geschlossen und neue Auftraege abgelehnt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testShutdown() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 1, 10, AsyncDocumentConverter.OverloadPolicy.CALLER_RUNS);
+		CompletableFuture<ByteArrayOutputStream> running = converter.convertToPdfAsync(input());
+		awaitRunning();
+		final boolean[] closed = { false };
+		CompletableFuture<ByteArrayOutputStream> pending = converter.convertToPdfAsync(new ByteArrayInputStream(new byte[] { 4 }) {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		});
+		converter.shutdown();
+		Assert.assertTrue(converter.isShutdown());
+		Assert.assertTrue(pending.isCancelled());
+		Assert.assertTrue(closed[0]);
+		assertCause(RejectedExecutionException.class, converter.convertToPdfAsync(input()));
+		try {
+			running.get(1, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			// durch das Beenden unterbrochen
+		}
+	}
+
+	/**
+	 * Bei ausgeschoepftem Limit werden nur Batch-Auftraege abgelehnt. Auftraege, die auf das Limit warten, bleiben in
+	 * der Warteschlange und zaehlen fuer die Schwelle.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testShedBulk() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 2, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		converter.setLimiter(new AdaptiveConcurrencyLimiter(1, 1, 1));
+		converter.setShedThreshold(2);
+		Assert.assertEquals(1, converter.getLimit());
+		CompletableFuture<ByteArrayOutputStream> running = converter.convertToPdfAsync(input());
+		Thread.sleep(20);
+		CompletableFuture<ByteArrayOutputStream> waiting = converter.convertToPdfAsync(input());
+		CompletableFuture<ByteArrayOutputStream> queued = converter.convertToPdfAsync(input(), Priority.BULK);
+		Thread.sleep(20);
+		Assert.assertFalse(queued.isDone());
+		Assert.assertEquals(2, converter.getQueueSize());
+
+		CompletableFuture<ByteArrayOutputStream> shed = converter.convertToPdfAsync(input(), Priority.BULK);
+		CompletableFuture<ByteArrayOutputStream> interactive = converter.convertToPdfAsync(input(), Priority.INTERACTIVE);
+		assertCause(RejectedExecutionException.class, shed);
+		for (CompletableFuture<ByteArrayOutputStream> future : Arrays.asList(running, waiting, queued, interactive)) {
+			Assert.assertTrue(future.get(2, TimeUnit.SECONDS).size() > 0);
+		}
+		Assert.assertEquals(1, backend.getMaxObservedConcurrency());
+	}
+
+	/**
+	 * Wartet ein Auftrag auf das Limit, belegt er keinen Worker: ein spaeter eingereihter interaktiver Auftrag wird vor
+	 * einem wartenden Batch-Auftrag ausgefuehrt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPriorityWhileLimited() throws Exception {
+		converter = new AsyncDocumentConverter(pool, 2, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		converter.setLimiter(new AdaptiveConcurrencyLimiter(1, 1, 1));
+		CompletableFuture<ByteArrayOutputStream> running = converter.convertToPdfAsync(input());
+		Thread.sleep(20);
+		CompletableFuture<ByteArrayOutputStream> bulk = converter.convertToPdfAsync(input(), Priority.BULK);
+		Thread.sleep(20);
+		Assert.assertEquals(1, converter.getQueueSize(Priority.BULK));
+		CompletableFuture<ByteArrayOutputStream> interactive = converter.convertToPdfAsync(input(), Priority.INTERACTIVE);
+
+		running.get(1, TimeUnit.SECONDS);
+		interactive.get(1, TimeUnit.SECONDS);
+		Assert.assertFalse(bulk.isDone());
+		Assert.assertTrue(bulk.get(1, TimeUnit.SECONDS).size() > 0);
+		Assert.assertEquals(1, backend.getMaxObservedConcurrency());
+	}
+
+	/**
+	 * Fehlerhafte Dokumente und abgebrochene Auftraege senken das Limit nicht, Verbindungsfehler schon.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLimiterBackoff() throws Exception {
+		backend.setLatency(0, 0, TimeUnit.MILLISECONDS);
+		converter = new AsyncDocumentConverter(pool, 4, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4);
+		limiter.setBackoffRatio(0.5);
+		converter.setLimiter(limiter);
+
+		backend.setFailureRate(1);
+		for (int i = 0; i < 5; i++) {
+			assertCause(IllegalStateException.class, converter.convertToPdfAsync(input()));
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+
+		backend.setFailureRate(0);
+		backend.setLatency(2, 2, TimeUnit.SECONDS);
+		CompletableFuture<ByteArrayOutputStream> cancelled = converter.convertToPdfAsync(input());
+		awaitRunning();
+		cancelled.cancel(true);
+		while (limiter.getInFlight() > 0) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+
+		backend.setLatency(0, 0, TimeUnit.MILLISECONDS);
+		backend.setAvailable(false);
+		assertCause(ConnectException.class, converter.convertToPdfAsync(input()));
+		Assert.assertEquals(2, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+
+	/**
+	 * Ein ueberlastetes {@link FakeConverterBackend} senkt das Limit.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFakeOverloadBackoff() throws Exception {
+		backend.setMaxConcurrency(1);
+		pool.setMaxConversionsPerConnection(4);
+		converter = new AsyncDocumentConverter(pool, 4, 10, AsyncDocumentConverter.OverloadPolicy.REJECT);
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4);
+		limiter.setBackoffRatio(0.5);
+		converter.setLimiter(limiter);
+
+		List<CompletableFuture<ByteArrayOutputStream>> results = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			results.add(converter.convertToPdfAsync(input()));
+		}
+		int overloaded = 0;
+		for (CompletableFuture<ByteArrayOutputStream> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause().toString(), e.getCause() instanceof ConnectException);
+				overloaded++;
+			}
+		}
+		Assert.assertTrue(overloaded > 0);
+		Assert.assertEquals(overloaded, backend.getFailureCount());
+		Assert.assertTrue(String.valueOf(limiter.getLimit()), limiter.getLimit() < 4);
+	}
+
+	private void awaitRunning() throws InterruptedException {
+		while (pool.getActiveCount() == 0) {
+			Thread.sleep(1);
+		}
+	}
+
+	private static ByteArrayInputStream input() {
+		return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+	}
+
+	private static void assertCause(Class<? extends Throwable> expected, CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get();
+			Assert.fail(expected.getSimpleName() + " expected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests fuer den Cache der Konvertierungsergebnisse.
+ */
+public class ConversionCacheTest {
+
+	/**
+	 * Gleiche Dokumente werden nur einmal konvertiert, auch bei gleichzeitigen Aufrufen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInFlight() throws Exception {
+		final ConversionCache cache = new ConversionCache(1024 * 1024);
+		final AtomicInteger conversions = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> cache.get(new byte[] { 1, 2, 3 }, input -> {
+					conversions.incrementAndGet();
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+					return new byte[] { 4, 5 };
+				})));
+			}
+			started.await();
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<byte[]> result : results) {
+				Assert.assertArrayEquals(new byte[] { 4, 5 }, result.get());
+			}
+			Assert.assertEquals(1, conversions.get());
+			Assert.assertArrayEquals(new byte[] { 4, 5 }, cache.get(new byte[] { 1, 2, 3 }, input -> null));
+			Assert.assertEquals(1, cache.getMissCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Der Speicher-Cache ist groessenbeschraenkt, das Verzeichnis ueberlebt das Leeren des Speichers.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTiers() throws Exception {
+		ConversionCache cache = new ConversionCache(10);
+		Path dir = Files.createTempDirectory("conversion-cache");
+		cache.setDiskCache(dir, 15);
+		try {
+			cache.get(new byte[] { 1 }, input -> new byte[6]);
+			Thread.sleep(20);
+			cache.get(new byte[] { 2 }, input -> new byte[6]);
+			Thread.sleep(20);
+			// nur das juengste Ergebnis im Speicher, beide im Verzeichnis
+			cache.clearMemory();
+			Assert.assertEquals(6, cache.get(new byte[] { 1 }, input -> new byte[0]).length);
+			Assert.assertEquals(2, cache.getMissCount());
+			Thread.sleep(20);
+
+			cache.get(new byte[] { 3 }, input -> new byte[6]);
+			try (Stream<Path> files = Files.list(dir)) {
+				Assert.assertEquals(2, files.count());
+			}
+			cache.clearMemory();
+			// das am laengsten nicht verwendete Ergebnis wurde aus dem Verzeichnis entfernt
+			Assert.assertEquals(0, cache.get(new byte[] { 2 }, input -> new byte[0]).length);
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Kann ein Ergebnis nicht im Verzeichnis abgelegt werden, bleibt keine temporaere Datei zurueck.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedWrite() throws Exception {
+		ConversionCache cache = new ConversionCache(1024);
+		Path dir = Files.createTempDirectory("conversion-cache");
+		// ein nicht leeres Verzeichnis an Stelle des Ergebnisses verhindert das Ablegen
+		Path blocked = Files.createDirectory(dir.resolve(ConversionCache.digest(new byte[] { 1 }) + ".pdf"));
+		Path blocker = Files.createFile(blocked.resolve("blocker"));
+		try {
+			cache.setDiskCache(dir, 1024 * 1024);
+			Assert.assertEquals(6, cache.get(new byte[] { 1 }, input -> new byte[6]).length);
+			try (Stream<Path> files = Files.list(dir)) {
+				Assert.assertEquals(1, files.count());
+			}
+		} finally {
+			Files.delete(blocker);
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+}
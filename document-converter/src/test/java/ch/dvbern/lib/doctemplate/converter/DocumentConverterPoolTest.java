@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests fuer den {@link DocumentConverterPool} mit {@link FakeConverterBackend}s.
+ */
+public class DocumentConverterPoolTest {
+
+	/**
+	 * Die Konvertierungen werden auf alle Server verteilt, jeder Server konvertiert nur ein Dokument gleichzeitig.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLeastLoaded() throws Exception {
+		FakeConverterBackend[] backends = new FakeConverterBackend[3];
+		for (int i = 0; i < backends.length; i++) {
+			backends[i] = new FakeConverterBackend("fake" + i);
+			backends[i].setLatency(5, 10, TimeUnit.MILLISECONDS);
+			backends[i].setMaxConcurrency(1);
+		}
+		final DocumentConverterPool pool = new DocumentConverterPool(backends);
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int i = 0; i < 60; i++) {
+				final byte[] input = { (byte) i };
+				results.add(executor.submit(() -> pool.convertToPdf(new ByteArrayInputStream(input)).size()));
+			}
+			for (Future<Integer> result : results) {
+				Assert.assertTrue(result.get() > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		long total = 0;
+		for (FakeConverterBackend backend : backends) {
+			Assert.assertTrue(backend.getConversionCount() > 0);
+			Assert.assertEquals(1, backend.getMaxObservedConcurrency());
+			total += backend.getConversionCount();
+		}
+		Assert.assertEquals(60, total);
+		Assert.assertEquals(0, pool.getActiveCount());
+	}
+
+	/**
+	 * Ein nicht erreichbarer Server wird uebersprungen und nach der Wartezeit wieder verwendet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		FakeConverterBackend down = new FakeConverterBackend("down");
+		FakeConverterBackend up = new FakeConverterBackend("up");
+		down.setAvailable(false);
+		DocumentConverterPool pool = new DocumentConverterPool(down, up);
+		pool.setRetryDelay(50, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 5; i++) {
+			pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }));
+		}
+		Assert.assertEquals(0, down.getConversionCount());
+		Assert.assertEquals(5, up.getConversionCount());
+
+		up.setAvailable(false);
+		try {
+			pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }));
+			Assert.fail("no server available");
+		} catch (ConnectException e) {
+			// erwartet
+		}
+
+		down.setAvailable(true);
+		Thread.sleep(60);
+		pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }));
+		Assert.assertEquals(1, down.getConversionCount());
+	}
+
+	/**
+	 * Sind alle Server ausgelastet, wird nur bis zum Checkout-Timeout auf einen freien Server gewartet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCheckoutTimeout() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		FakeConverterBackend backend = new FakeConverterBackend("busy") {
+
+			@Override
+			public void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ConnectException("interrupted");
+				}
+				super.convertToPdf(odt, pdf);
+			}
+		};
+		final DocumentConverterPool pool = new DocumentConverterPool(backend);
+		pool.setCheckoutTimeout(50, TimeUnit.MILLISECONDS);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> running = executor.submit(() -> pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 })));
+			while (pool.getActiveCount() == 0) {
+				Thread.sleep(1);
+			}
+			long start = System.nanoTime();
+			try {
+				pool.convertToPdf(new ByteArrayInputStream(new byte[] { 2 }));
+				Assert.fail("server busy");
+			} catch (ConnectException e) {
+				// erwartet
+			}
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			Assert.assertTrue("waited " + waited + " ms", waited >= 40);
+			// der erste Auftrag belegt den Server noch
+			Assert.assertFalse(running.isDone());
+			Assert.assertEquals(1, pool.getActiveCount());
+
+			release.countDown();
+			running.get();
+			Assert.assertEquals(1, backend.getConversionCount());
+			Assert.assertEquals(0, pool.getActiveCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Eine haengende Konvertierung wird nach dem Konvertierungs-Timeout abgebrochen, der Server wird verworfen und erst
+	 * nach der Wartezeit wieder verwendet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConversionTimeout() throws Exception {
+		FakeConverterBackend hanging = new FakeConverterBackend("hanging");
+		FakeConverterBackend healthy = new FakeConverterBackend("healthy");
+		hanging.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		DocumentConverterPool pool = new DocumentConverterPool(hanging, healthy);
+		pool.setConversionTimeout(20, TimeUnit.MILLISECONDS);
+		pool.setRetryDelay(1, TimeUnit.MINUTES);
+		try {
+			pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }));
+			Assert.fail("conversion should time out");
+		} catch (ConnectException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+		}
+		Assert.assertFalse(hanging.isConnected());
+		Assert.assertEquals(0, pool.getActiveCount());
+
+		hanging.setLatency(0, 0, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 3; i++) {
+			pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }));
+		}
+		Assert.assertEquals(0, hanging.getConversionCount());
+		Assert.assertEquals(3, healthy.getConversionCount());
+	}
+
+	/**
+	 * Auch mit Cache wird ein nicht erreichbarer Server als {@link ConnectException} gemeldet und nicht als
+	 * unlesbares Eingabedokument.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectExceptionWithCache() throws Exception {
+		FakeConverterBackend down = new FakeConverterBackend("down");
+		down.setAvailable(false);
+		DocumentConverterPool pool = new DocumentConverterPool(down);
+		pool.setCache(new ConversionCache(1024 * 1024));
+		try {
+			pool.convertToPdf(new ByteArrayInputStream(new byte[] { 1 }), new ByteArrayOutputStream());
+			Assert.fail("no server available");
+		} catch (ConnectException e) {
+			// erwartet
+		}
+		Path dir = Files.createTempDirectory("pool-test");
+		try {
+			Path source = Files.write(dir.resolve("test.odt"), new byte[] { 1 });
+			pool.convertToPdf(source, dir.resolve("test.pdf"));
+			Assert.fail("no server available");
+		} catch (ConnectException e) {
+			// erwartet
+		} finally {
+			Files.deleteIfExists(dir.resolve("test.odt"));
+			Files.deleteIfExists(dir.resolve("test.pdf"));
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Konvertierung in einen Stream und von Datei zu Datei, mit und ohne Cache.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testTargets() throws Exception {
+		FakeConverterBackend backend = new FakeConverterBackend("fake");
+		DocumentConverterPool pool = new DocumentConverterPool(backend);
+		byte[] odt = "odt".getBytes(StandardCharsets.UTF_8);
+		byte[] expected = pool.convertToPdf(new ByteArrayInputStream(odt)).toByteArray();
+
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		pool.convertToPdf(new ByteArrayInputStream(odt), target);
+		Assert.assertArrayEquals(expected, target.toByteArray());
+
+		Path dir = Files.createTempDirectory("pool-test");
+		try {
+			Path source = Files.write(dir.resolve("test.odt"), odt);
+			Path pdf = dir.resolve("test.pdf");
+			pool.convertToPdf(source, pdf);
+			Assert.assertArrayEquals(expected, Files.readAllBytes(pdf));
+
+			pool.setCache(new ConversionCache(1024 * 1024));
+			Files.delete(pdf);
+			pool.convertToPdf(source, pdf);
+			pool.convertToPdf(source, pdf);
+			Assert.assertArrayEquals(expected, Files.readAllBytes(pdf));
+			Assert.assertEquals(4, backend.getConversionCount());
+		} finally {
+			for (String name : new String[] { "test.odt", "test.pdf" }) {
+				Files.deleteIfExists(dir.resolve(name));
+			}
+			Files.delete(dir);
+		}
+	}
+}
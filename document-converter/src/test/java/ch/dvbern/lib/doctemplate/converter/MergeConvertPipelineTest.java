@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests fuer die {@link MergeConvertPipeline} mit {@link FakeConverterBackend}s.
+ */
+public class MergeConvertPipelineTest {
+
+	/**
+	 * Alle Datensaetze werden konvertiert bzw. als Fehler gemeldet, der Puffer zwischen den Stufen bleibt beschraenkt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcess() throws Exception {
+		FakeConverterBackend first = new FakeConverterBackend("fake1");
+		FakeConverterBackend second = new FakeConverterBackend("fake2");
+		first.setLatency(5, 10, TimeUnit.MILLISECONDS);
+		second.setLatency(5, 10, TimeUnit.MILLISECONDS);
+		DocumentConverterPool pool = new DocumentConverterPool(first, second);
+
+		AtomicInteger pending = new AtomicInteger();
+		AtomicInteger maxPending = new AtomicInteger();
+		MergeConvertPipeline<Integer> pipeline = new MergeConvertPipeline<>(pool, (item, odt) -> {
+			if (item.intValue() == 7) {
+				throw new IllegalArgumentException("merge failed");
+			}
+			odt.write(("document " + item).getBytes(StandardCharsets.UTF_8));
+			maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+		});
+		pipeline.setMergeThreads(3);
+		pipeline.setBufferSize(2);
+
+		List<Integer> items = new ArrayList<>();
+		for (int i = 0; i < 30; i++) {
+			items.add(Integer.valueOf(i));
+		}
+		Map<Integer, String> results = new ConcurrentHashMap<>();
+		Map<Integer, Exception> failures = new ConcurrentHashMap<>();
+		int converted = pipeline.process(items, new MergeConvertPipeline.Callback<Integer>() {
+
+			@Override
+			public void converted(Integer item, ByteArrayOutputStream pdf) {
+				pending.decrementAndGet();
+				results.put(item, new String(pdf.toByteArray(), StandardCharsets.US_ASCII));
+			}
+
+			@Override
+			public void failed(Integer item, Exception e) {
+				failures.put(item, e);
+			}
+		});
+
+		Assert.assertEquals(29, converted);
+		Assert.assertEquals(29, results.size());
+		Assert.assertEquals(1, failures.size());
+		Assert.assertTrue(failures.get(Integer.valueOf(7)) instanceof IllegalArgumentException);
+		Assert.assertEquals(29, first.getConversionCount() + second.getConversionCount());
+		// reservierte Plaetze im Puffer + je ein Dokument pro Konvertierungs-Thread
+		Assert.assertTrue(String.valueOf(maxPending.get()), maxPending.get() <= 2 + 2);
+
+		FakeConverterBackend reference = new FakeConverterBackend("reference");
+		reference.connect();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		reference.convertToPdf(new ByteArrayInputStream("document 12".getBytes(StandardCharsets.UTF_8)), expected);
+		Assert.assertEquals(new String(expected.toByteArray(), StandardCharsets.US_ASCII), results.get(Integer.valueOf(12)));
+	}
+
+	/**
+	 * Ist der Puffer voll, warten die Merges nicht in einem Thread des gemeinsamen Pools: interaktive Auftraege im selben
+	 * Pool werden sofort ausgefuehrt.
+	 *
+	 * @throws Exception
+	 */
+	@Test(timeout = 20000)
+	public void testSharedMergeExecutor() throws Exception {
+		CountDownLatch converting = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		FakeConverterBackend backend = new FakeConverterBackend("fake") {
+
+			@Override
+			public void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException {
+				converting.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ConnectException("interrupted");
+				}
+				super.convertToPdf(odt, pdf);
+			}
+		};
+		AtomicInteger merged = new AtomicInteger();
+		PriorityExecutor merges = new PriorityExecutor(2, 10, "test-merge");
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		try {
+			MergeConvertPipeline<Integer> pipeline = new MergeConvertPipeline<>(new DocumentConverterPool(backend), (item, odt) -> {
+				odt.write(item.intValue());
+				merged.incrementAndGet();
+			});
+			pipeline.setMergeExecutor(merges);
+			pipeline.setMergeThreads(2);
+			pipeline.setConvertThreads(1);
+			pipeline.setBufferSize(1);
+			List<Integer> items = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				items.add(Integer.valueOf(i));
+			}
+			Future<Integer> run = runner.submit(() -> pipeline.process(items, new MergeConvertPipeline.Callback<Integer>() {
+
+				@Override
+				public void converted(Integer item, ByteArrayOutputStream pdf) {
+					// nichts
+				}
+
+				@Override
+				public void failed(Integer item, Exception e) {
+					// nichts
+				}
+			}));
+			// Dokument 0 haengt in der Konvertierung, Dokument 1 belegt den Puffer
+			converting.await();
+			while (merged.get() < 2) {
+				Thread.sleep(1);
+			}
+			for (int i = 0; i < 3; i++) {
+				// blockierten die wartenden Merges den Pool, liefe der Auftrag erst nach der Freigabe
+				merges.submit(Priority.INTERACTIVE, () -> null).get(10, TimeUnit.SECONDS);
+				Assert.assertFalse(run.isDone());
+				Assert.assertEquals(2, merged.get());
+			}
+			release.countDown();
+			Assert.assertEquals(10, run.get().intValue());
+		} finally {
+			runner.shutdownNow();
+			merges.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wird der gemeinsame Pool mit eingereihten Merges beendet, bricht der Lauf ab, statt auf die verworfenen Merges zu
+	 * warten.
+	 *
+	 * @throws Exception
+	 */
+	@Test(timeout = 10000)
+	public void testMergeExecutorShutdown() throws Exception {
+		PriorityExecutor merges = new PriorityExecutor(1, 10, "test-merge");
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		try {
+			MergeConvertPipeline<Integer> pipeline = new MergeConvertPipeline<>(new DocumentConverterPool(new FakeConverterBackend("fake")),
+					(item, odt) -> {
+						if (item.intValue() == 0) {
+							started.countDown();
+							awaitUninterruptibly(release);
+						}
+						odt.write(item.intValue());
+					});
+			pipeline.setMergeExecutor(merges);
+			pipeline.setMergeThreads(2);
+			Future<Integer> run = runner.submit(() -> pipeline.process(Arrays.asList(0, 1), new MergeConvertPipeline.Callback<Integer>() {
+
+				@Override
+				public void converted(Integer item, ByteArrayOutputStream pdf) {
+					// nichts
+				}
+
+				@Override
+				public void failed(Integer item, Exception e) {
+					// nichts
+				}
+			}));
+			started.await();
+			while (merges.getQueue().isEmpty()) {
+				Thread.sleep(1);
+			}
+			// verwirft den Merge von 1
+			merges.shutdownNow();
+			release.countDown();
+			try {
+				run.get();
+				Assert.fail("RejectedExecutionException expected");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause().toString(), e.getCause() instanceof RejectedExecutionException);
+			}
+		} finally {
+			runner.shutdownNow();
+		}
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ein {@link Error} beim Mergen oder Konvertieren blockiert den Lauf nicht: alle anderen Datensaetze werden
+	 * konvertiert, danach endet der Lauf mit dem Fehler.
+	 *
+	 * @throws Exception
+	 */
+	@Test(timeout = 10000)
+	public void testErrors() throws Exception {
+		FakeConverterBackend fake = new FakeConverterBackend("fake");
+		ConverterBackend failing = new ConverterBackend() {
+
+			@Override
+			public String getName() {
+				return fake.getName();
+			}
+
+			@Override
+			public void connect() throws ConnectException {
+				fake.connect();
+			}
+
+			@Override
+			public boolean isConnected() {
+				return fake.isConnected();
+			}
+
+			@Override
+			public void disconnect() {
+				fake.disconnect();
+			}
+
+			@Override
+			public void convertToPdf(InputStream odt, OutputStream pdf) throws ConnectException {
+				try {
+					odt.mark(1);
+					int first = odt.read();
+					odt.reset();
+					if (first == 'e') {
+						throw new NoClassDefFoundError("simulated");
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				fake.convertToPdf(odt, pdf);
+			}
+		};
+		MergeConvertPipeline<Integer> pipeline = new MergeConvertPipeline<>(new DocumentConverterPool(failing), (item, odt) -> {
+			if (item.intValue() == 3) {
+				throw new AssertionError("merge error");
+			}
+			odt.write((item.intValue() == 5 ? "error" : "document " + item).getBytes(StandardCharsets.UTF_8));
+		});
+		pipeline.setMergeThreads(2);
+		pipeline.setBufferSize(1);
+		List<Integer> items = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			items.add(Integer.valueOf(i));
+		}
+		AtomicInteger converted = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		try {
+			pipeline.process(items, new MergeConvertPipeline.Callback<Integer>() {
+
+				@Override
+				public void converted(Integer item, ByteArrayOutputStream pdf) {
+					converted.incrementAndGet();
+				}
+
+				@Override
+				public void failed(Integer item, Exception e) {
+					failed.incrementAndGet();
+				}
+			});
+			Assert.fail("error expected");
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof Error);
+		}
+		Assert.assertEquals(18, converted.get());
+		Assert.assertEquals(0, failed.get());
+	}
+
+	/**
+	 * Ueber einen ueberlasteten {@link AsyncDocumentConverter} werden Batch-Auftraege zurueckgestellt, aber nicht
+	 * verworfen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeferred() throws Exception {
+		FakeConverterBackend backend = new FakeConverterBackend("fake");
+		backend.setLatency(5, 5, TimeUnit.MILLISECONDS);
+		AsyncDocumentConverter converter = new AsyncDocumentConverter(new DocumentConverterPool(backend), 1, 1,
+				AsyncDocumentConverter.OverloadPolicy.REJECT);
+		PriorityExecutor merges = new PriorityExecutor(2, 1, "test-merge");
+		try {
+			MergeConvertPipeline<Integer> pipeline = new MergeConvertPipeline<>(converter,
+					(item, odt) -> odt.write(item.intValue()));
+			pipeline.setMergeExecutor(merges);
+			pipeline.setConvertThreads(3);
+			List<Integer> items = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				items.add(Integer.valueOf(i));
+			}
+			AtomicInteger failed = new AtomicInteger();
+			int converted = pipeline.process(items, new MergeConvertPipeline.Callback<Integer>() {
+
+				@Override
+				public void converted(Integer item, ByteArrayOutputStream pdf) {
+					// nichts
+				}
+
+				@Override
+				public void failed(Integer item, Exception e) {
+					failed.incrementAndGet();
+				}
+			});
+			Assert.assertEquals(20, converted);
+			Assert.assertEquals(0, failed.get());
+			Assert.assertEquals(20, backend.getConversionCount());
+			Assert.assertFalse(merges.isShutdown());
+		} finally {
+			merges.shutdownNow();
+			converter.shutdown();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.converter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests fuer die {@link PriorityJobQueue}.
+ */
+public class PriorityJobQueueTest {
+
+	/**
+	 * Entnahme gewichtet reihum, Kapazitaet pro Prioritaet.
+	 */
+	@Test
+	public void testWeights() {
+		PriorityJobQueue queue = new PriorityJobQueue(10);
+		queue.setWeight(Priority.INTERACTIVE, 2);
+		queue.setWeight(Priority.NORMAL, 1);
+		queue.setWeight(Priority.BULK, 1);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(queue.offer(new Job(Priority.BULK)));
+		}
+		Assert.assertFalse(queue.offer(new Job(Priority.BULK)));
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(queue.offer(new Job(Priority.INTERACTIVE)));
+			Assert.assertTrue(queue.offer(new Job(Priority.NORMAL)));
+		}
+		Assert.assertEquals(18, queue.size());
+		Assert.assertEquals(12, queue.remainingCapacity());
+
+		StringBuilder order = new StringBuilder();
+		Runnable job;
+		while ((job = queue.poll()) != null) {
+			order.append(((Job) job).getPriority().name().charAt(0));
+		}
+		Assert.assertEquals("IINBIINBNBNBBBBBBB", order.toString());
+	}
+
+	/**
+	 * Zu lange wartende Auftraege werden vorgezogen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMaxWait() throws Exception {
+		PriorityJobQueue queue = new PriorityJobQueue(10);
+		queue.setMaxWait(20, TimeUnit.MILLISECONDS);
+		Job bulk = new Job(Priority.BULK);
+		queue.put(bulk);
+		Thread.sleep(30);
+		for (int i = 0; i < 5; i++) {
+			queue.put(new Job(Priority.INTERACTIVE));
+		}
+		Assert.assertSame(bulk, queue.take());
+		Assert.assertTrue(queue.remove(queue.peek()));
+		Assert.assertEquals(4, queue.size(Priority.INTERACTIVE));
+	}
+
+	private static final class Job implements Runnable, PriorityJobQueue.Prioritized {
+
+		private final Priority priority;
+
+		Job(Priority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public Priority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void run() {
+			// nichts
+		}
+	}
+}
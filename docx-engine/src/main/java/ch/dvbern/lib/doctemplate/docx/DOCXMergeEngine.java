@@ -36,12 +36,15 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import ch.dvbern.lib.doctemplate.common.AbstractMergeEngine;
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.Image;
+import ch.dvbern.lib.doctemplate.common.ImageRegistry;
 import ch.dvbern.lib.doctemplate.common.Image.Format;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
 import ch.dvbern.lib.doctemplate.common.XmlBasedFieldMergeElement;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
+import ch.dvbern.lib.doctemplate.util.OrderedZipWriter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
@@ -146,7 +149,8 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try (ZipOutputStream zipout = new ZipOutputStream(baos); ZipInputStream zipin = new ZipInputStream(input)) {
+		try (ZipOutputStream zipout = new ZipOutputStream(baos); ZipInputStream zipin = new ZipInputStream(input);
+				OrderedZipWriter writer = new OrderedZipWriter(zipout, getPartExecutor())) {
 			ZipEntry ze;
 
 			ByteArrayOutputStream rels = new ByteArrayOutputStream();
@@ -157,8 +161,8 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 				// In Header und Footer ebenfalls Variablen ersetzen
 				if (zeName != null //
 						&& (zeName.startsWith(HEADER_XML_FILE_NAME) || zeName.startsWith(FOOTER_XML_FILE_NAME))) {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					mergeContent(mergeSource, zipin, zipout);
+					BasicMergeElement bme = parseContent(zipin);
+					writer.render(zeName, (out, previousParts) -> renderContent(bme, mergeSource, out, previousParts));
 				} else if (CONTENT_XML_FILE_NAME.equals(zeName)) {
 					transfer(zipin, content);
 				} else if (RELS_XML_FILE_NAME.equals(zeName)) {
@@ -170,22 +174,22 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 					// wir nehmen die hoechste Nummer aus dem Ordner media
 					int idx = Integer.parseInt(zeName.substring(IMAGE_PREFIX.length(), zeName.indexOf('.', IMAGE_PREFIX.length())));
 					this.maxImgIdx = idx > this.maxImgIdx ? idx : this.maxImgIdx;
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					writer.copy(zeName, zipin);
 				} else {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					writer.copy(zeName, zipin);
 				}
 			}
 			this.imageHandler = new DocxImageHandler(this.maxImgIdx, this.maxRId);
-			updateContent(content, zipout, mergeSource);
+			updateContent(content, writer, mergeSource);
+			// alle Teile gerendert, erst jetzt sind alle Bilder registriert
+			writer.finish();
 			updateRels(rels, zipout);
 			updateContentTypes(contentTypes, zipout);
 			// Bilder einfuegen
 			if (this.images != null) {
 				for (Map.Entry<String, DocxImage> me : this.images.entrySet()) {
 					zipout.putNextEntry(new ZipEntry(me.getKey()));
-					zipout.write(me.getValue().getBytes());
+					me.getValue().writeTo(zipout);
 				}
 			}
 			zipin.close();
@@ -213,11 +217,11 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		}
 	}
 
-	private void updateContent(ByteArrayOutputStream content, ZipOutputStream zipout, MergeSource mergeSource) throws IOException, DocTemplateException {
+	private void updateContent(ByteArrayOutputStream content, OrderedZipWriter writer, MergeSource mergeSource) throws IOException, DocTemplateException {
 
 		if (content.size() > 0) {
-			zipout.putNextEntry(new ZipEntry(CONTENT_XML_FILE_NAME));
-			mergeContent(mergeSource, new ByteArrayInputStream(content.toByteArray()), zipout);
+			BasicMergeElement bme = parseContent(new ByteArrayInputStream(content.toByteArray()));
+			writer.render(CONTENT_XML_FILE_NAME, (out, previousParts) -> renderContent(bme, mergeSource, out, previousParts));
 		}
 	}
 
@@ -226,7 +230,7 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		if (rels.size() > 0) {
 			zipout.putNextEntry(new ZipEntry(RELS_XML_FILE_NAME));
 			String xml = new String(rels.toByteArray(), UTF8);
-			if (this.images != null && this.images.size() > 0) {
+			if (this.images != null && !this.images.isEmpty()) {
 				StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Relationships>".length()));
 				for (DocxImage image : this.images.values()) {
 					image.setId(++this.maxRId);
@@ -262,7 +266,7 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		if (contentTypes.size() > 0) {
 			zipout.putNextEntry(new ZipEntry(CONTENT_TYPES_FILE_NAME));
 			String xml = new String(contentTypes.toByteArray(), UTF8);
-			if (this.images != null && this.images.size() > 0) {
+			if (this.images != null && !this.images.isEmpty()) {
 				StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Types>".length()));
 				for (Image image : this.images.values()) {
 					if (formatSet.add(image.getFormat()) && xml.indexOf("image/" + image.getFormat().name().toLowerCase()) < 0) {
@@ -350,7 +354,7 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 
 	private class FieldMergeElement extends XmlBasedFieldMergeElement<DocxImage> {
 
-		public FieldMergeElement(String name, String key, Map<String, DocxImage> images) {
+		public FieldMergeElement(String name, String key, ImageRegistry<DocxImage> images) {
 			super(name, key, images, DOCXMergeEngine.this.imageHandler);
 		}
 
@@ -383,7 +387,7 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	@Override
 	protected XmlBasedFieldMergeElement<DocxImage> getFieldMergeElement(String key, ImageHandler<DocxImage> imageHdlr) {
 
-		return new FieldMergeElement(this.name, translate(key), this.images);
+		return new FieldMergeElement(this.name, translate(key), getImageRegistry());
 	}
 
 	@Override
@@ -15,6 +15,10 @@
 
 package ch.dvbern.lib.doctemplate.docx;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
 import ch.dvbern.lib.doctemplate.common.Image;
 
 public class DocxImage extends Image {
@@ -26,6 +30,22 @@ public class DocxImage extends Image {
 		super(bytes, width, height, format);
 	}
 
+	public DocxImage(byte[] bytes, int width, int height, Format format, boolean immutable) {
+		super(bytes, width, height, format, immutable);
+	}
+
+	public DocxImage(ByteBuffer buffer, int width, int height, Format format) {
+		super(buffer, width, height, format);
+	}
+
+	public DocxImage(Path file, int width, int height, Format format) throws IOException {
+		super(file, width, height, format);
+	}
+
+	public DocxImage(Source source, int width, int height, Format format) {
+		super(source, width, height, format);
+	}
+
 	public int getIndex() {
 
 		return this.index;
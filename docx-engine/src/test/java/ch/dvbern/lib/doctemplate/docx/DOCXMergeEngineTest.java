@@ -20,10 +20,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -148,6 +156,121 @@ public class DOCXMergeEngineTest {
 
 	}
 
+	/**
+	 * Kopf-, Fusszeilen und Inhalt parallel gerendert ergeben dasselbe Dokument in derselben Eintragsreihenfolge.
+	 */
+	@Test
+	public void testParallelParts() throws Exception {
+
+		DOCXMergeEngine sequential = new DOCXMergeEngine("Test5");
+		byte[] expected;
+		try (InputStream is = this.getClass().getResourceAsStream("test3.docx")) {
+			expected = sequential.getDocument(is, new RootMergeSource(true, true));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			DOCXMergeEngine parallel = new DOCXMergeEngine("Test5");
+			parallel.setPartExecutor(executor);
+			byte[] result;
+			try (InputStream is = this.getClass().getResourceAsStream("test3.docx")) {
+				result = parallel.getDocument(is, new RootMergeSource(true, true));
+			}
+			List<String> expectedNames = getEntryNames(expected);
+			Assert.assertEquals(expectedNames, getEntryNames(result));
+			for (String name : expectedNames) {
+				Assert.assertEquals(name, getContent(new ByteArrayInputStream(expected), name), getContent(new ByteArrayInputStream(result), name));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Grosse Iterationen abschnittsweise parallel gerendert ergeben dasselbe Dokument wie sequentiell gerendert, auch
+	 * fuer <code>hasNext</code>, Sortierung, indizierte Keys und die Reihenfolge der Bilder.
+	 */
+	@Test
+	public void testChunkedIterations() throws Exception {
+
+		byte[] expected;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+			expected = new DOCXMergeEngine("Test6").getDocument(is, new LargeRootMergeSource());
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			DOCXMergeEngine chunked = new DOCXMergeEngine("Test6");
+			chunked.setIterationChunking(pool, 16);
+			byte[] result;
+			try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+				result = chunked.getDocument(is, new LargeRootMergeSource());
+			}
+			List<String> expectedNames = getEntryNames(expected);
+			Assert.assertEquals(expectedNames, getEntryNames(result));
+			for (String name : expectedNames) {
+				Assert.assertEquals(name, getContent(new ByteArrayInputStream(expected), name), getContent(new ByteArrayInputStream(result), name));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Ein durch eine Datei hinterlegtes Bild ergibt dasselbe Dokument wie das byte array.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPathImages() throws Exception {
+
+		Path dir = Files.createTempDirectory("images");
+		try {
+			Files.write(dir.resolve("test.image.png"), getBytes("test.image.png"));
+			Files.write(dir.resolve("test.image.jpg"), getBytes("test.image.jpg"));
+			byte[] expected, result;
+			try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+				expected = new DOCXMergeEngine("Test7").getDocument(is, new RootMergeSource(true, true));
+			}
+			try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+				result = new DOCXMergeEngine("Test7").getDocument(is, new RootMergeSource(true, true, dir));
+			}
+			Assert.assertEquals(getEntries(expected), getEntries(result));
+		} finally {
+			Files.delete(dir.resolve("test.image.png"));
+			Files.delete(dir.resolve("test.image.jpg"));
+			Files.delete(dir);
+		}
+	}
+
+	private static Map<String, String> getEntries(byte[] document) throws IOException {
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(document))) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[1024];
+				int numRead;
+				while ((numRead = zipin.read(buf)) != -1) {
+					baos.write(buf, 0, numRead);
+				}
+				entries.put(ze.getName(), new String(baos.toByteArray(), StandardCharsets.ISO_8859_1));
+			}
+		}
+		return entries;
+	}
+
+	private static List<String> getEntryNames(byte[] docx) throws IOException {
+
+		List<String> names = new ArrayList<>();
+		try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(docx))) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				names.add(ze.getName());
+			}
+		}
+		return names;
+	}
+
 	private static String getContent(InputStream input, final String zipEntryName) {
 
 		try (ZipInputStream zipin = new ZipInputStream(input)) {
@@ -218,6 +341,7 @@ public class DOCXMergeEngineTest {
 	private class RootMergeSource implements MergeSource {
 
 		private final boolean condition, loop;
+		private final Path imageDir;
 
 		/**
 		 * @param condition
@@ -225,8 +349,27 @@ public class DOCXMergeEngineTest {
 		 */
 		public RootMergeSource(boolean condition, boolean loop) {
 
+			this(condition, loop, null);
+		}
+
+		/**
+		 * @param condition
+		 * @param loop
+		 * @param imageDir Verzeichnis, aus dem die Bilder als Datei geladen werden, oder <code>null</code>
+		 */
+		public RootMergeSource(boolean condition, boolean loop, Path imageDir) {
+
 			this.condition = condition;
 			this.loop = loop;
+			this.imageDir = imageDir;
+		}
+
+		private DocxImage image(String filename, int width, int height, Image.Format format) throws IOException {
+
+			if (this.imageDir != null) {
+				return new DocxImage(this.imageDir.resolve(filename), width, height, format);
+			}
+			return new DocxImage(getBytes(filename), width, height, format);
 		}
 
 		/*
@@ -243,14 +386,14 @@ public class DOCXMergeEngineTest {
 			}
 			if ("TestImage".equals(key)) {
 				try {
-					return new DocxImage(getBytes("test.image.png"), 362, 74, Image.Format.PNG);
+					return image("test.image.png", 362, 74, Image.Format.PNG);
 				} catch (IOException e) {
 					throw new DocTemplateException("invalid image source", e);
 				}
 			}
 			if ("TestImage2".equals(key)) {
 				try {
-					return new DocxImage(getBytes("test.image.jpg"), 200, 251, Image.Format.JPEG);
+					return image("test.image.jpg", 200, 251, Image.Format.JPEG);
 				} catch (IOException e) {
 					throw new DocTemplateException("invalid image source", e);
 				}
@@ -316,6 +459,47 @@ public class DOCXMergeEngineTest {
 		}
 	}
 
+	/**
+	 * Liefert eine Liste mit 200 Eintraegen, von denen zwei Bilder enthalten (das spaetere Bild zuerst in der Liste).
+	 */
+	private class LargeRootMergeSource extends RootMergeSource {
+
+		LargeRootMergeSource() {
+
+			super(true, true);
+		}
+
+		@Override
+		public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+			if ("testloop".equals(key)) {
+				List<MergeSource> l = new ArrayList<>();
+				Date d = new Date(1225272612227l);
+				for (int i = 0; i < 200; i++) {
+					final String image = i == 20 ? "test.image.jpg" : i == 150 ? "test.image.png" : null;
+					l.add(new DetailMergeSource("Row" + i, "Col2." + i, "Col3." + i, String.valueOf(i % 7), new Date(d.getTime() + i * 1000000l),
+							new Long(i), new Double(i * 1.5)) {
+
+						@Override
+						public Object getData(MergeContext ctx1, String key1) throws DocTemplateException {
+
+							if (image != null && "Col2".equals(key1)) {
+								try {
+									return new DocxImage(getBytes(image), 20, 20, image.endsWith("png") ? Image.Format.PNG : Image.Format.JPEG);
+								} catch (IOException e) {
+									throw new DocTemplateException("invalid image source", e);
+								}
+							}
+							return super.getData(ctx1, key1);
+						}
+					});
+				}
+				return l;
+			}
+			return super.whileStatement(ctx, key);
+		}
+	}
+
 	private class DetailMergeSource implements MergeSource {
 
 		private final String col1, col2, col3, col4;
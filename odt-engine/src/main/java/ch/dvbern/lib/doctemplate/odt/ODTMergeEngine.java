@@ -30,10 +30,12 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import ch.dvbern.lib.doctemplate.common.AbstractMergeEngine;
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.Image;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
+import ch.dvbern.lib.doctemplate.util.OrderedZipWriter;
 
 /**
  * Merged eine ODT-Vorlage mit Informationen, die Aufgrund der Bezeichnungen, die innerhalb der Vorlage als MERGE-Fields
@@ -101,35 +103,49 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try {
+		getDocument(input, mergeSource, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>. Der
+	 * Stream wird nicht geschlossen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(InputStream input, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		ZipOutputStream zipout = new ZipOutputStream(output);
+		// bei einem Fehler werden bereits gestartete Teile abgebrochen
+		try (OrderedZipWriter writer = new OrderedZipWriter(zipout, getPartExecutor())) {
 			ZipEntry ze;
-			ZipOutputStream zipout = new ZipOutputStream(baos);
 			ZipInputStream zipin = new ZipInputStream(input);
 			ByteArrayOutputStream manifest = new ByteArrayOutputStream();
 			while ((ze = zipin.getNextEntry()) != null) {
 				String zeName = ze.getName();
 				// In styles.xml kann der Header and Footer gefunden werden.
 				if (CONTENT_XML_FILE_NAME.equals(zeName) || STYLES_XML_FILE_NAME.equals(zeName)) {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					mergeContent(mergeSource, zipin, zipout);
+					BasicMergeElement bme = parseContent(zipin);
+					writer.render(zeName, (out, previousParts) -> renderContent(bme, mergeSource, out, previousParts));
 				} else if (MANIFEST_FILE_NAME.equals(zeName)) {
 					transfer(zipin, manifest);
 				} else {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					writer.copy(zeName, zipin);
 				}
 			}
+			// alle Teile gerendert, erst jetzt sind alle Bilder registriert
+			writer.finish();
 			addManifest(manifest, zipout);
 			// Bilder einfuegen
 			for (Map.Entry<String, Image> me : images.entrySet()) {
 				zipout.putNextEntry(new ZipEntry(me.getKey()));
-				zipout.write(me.getValue().getBytes());
+				me.getValue().writeTo(zipout);
 			}
 			zipin.close();
-			zipout.close();
-			byte[] result = baos.toByteArray();
-			baos.close();
-			return result;
+			zipout.finish();
 		} catch (IOException e) {
 			throw new DocTemplateException(e);
 		}
@@ -149,7 +165,7 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 		if (manifest.size() > 0) {
 			zipout.putNextEntry(new ZipEntry(MANIFEST_FILE_NAME));
 			byte[] manifestBytes = manifest.toByteArray();
-			if (images != null && images.size() > 0) {
+			if (images != null && !images.isEmpty()) {
 				StringBuilder manifestBuilder = new StringBuilder(new String(manifestBytes, UTF8));
 				for (Map.Entry<String, Image> img : images.entrySet()) {
 					int p = manifestBuilder.indexOf(MANIFEST_END_TAG);
@@ -19,13 +19,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -124,6 +132,93 @@ public class ODTMergeEngineTest {
 		semaphore.acquire(100);
 	}
 
+	/**
+	 * Ein durch eine Datei hinterlegtes Bild ergibt dasselbe Dokument wie das byte array.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPathImages() throws Exception {
+
+		Path dir = Files.createTempDirectory("images");
+		try {
+			Files.write(dir.resolve("test.image.png"), getBytes("test.image.png"));
+			Files.write(dir.resolve("test.image.jpg"), getBytes("test.image.jpg"));
+			byte[] expected, result;
+			try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+				expected = new ODTMergeEngine("Test3").getDocument(is, new RootMergeSource(true, true));
+			}
+			try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+				result = new ODTMergeEngine("Test3").getDocument(is, new RootMergeSource(true, true, dir));
+			}
+			Assert.assertEquals(getEntries(expected), getEntries(result));
+		} finally {
+			Files.delete(dir.resolve("test.image.png"));
+			Files.delete(dir.resolve("test.image.jpg"));
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Gleichzeitig gerenderte Dokumentteile ergeben dasselbe Dokument wie sequentiell gerendert, auch wenn ein spaeterer
+	 * Teil (styles.xml) ein neues Bild vor dem ersten Teil erreicht.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelParts() throws Exception {
+
+		byte[] template = createTemplateWithStyleImages();
+		byte[] expected = new ODTMergeEngine("Test4").getDocument(new ByteArrayInputStream(template), new SlowImageMergeSource());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ODTMergeEngine parallel = new ODTMergeEngine("Test4");
+			parallel.setPartExecutor(executor);
+			byte[] result = parallel.getDocument(new ByteArrayInputStream(template), new SlowImageMergeSource());
+			Assert.assertEquals(getEntries(expected), getEntries(result));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return test1.odt, dessen styles.xml die Felder von content.xml enthaelt, jedoch nur mit dem zweiten Bild
+	 */
+	private byte[] createTemplateWithStyleImages() throws IOException {
+
+		Map<String, String> entries = getEntries(getBytes("test1.odt"));
+		String styles = entries.get("content.xml")
+				.replace("FIELD_TestImage\"", "FIELD_TestImage2\"")
+				.replace("FIELD_TestImage_FMT", "FIELD_TestImage2_FMT");
+		entries.put("styles.xml", styles);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream zipout = new ZipOutputStream(baos)) {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				zipout.putNextEntry(new ZipEntry(entry.getKey()));
+				zipout.write(entry.getValue().getBytes(StandardCharsets.ISO_8859_1));
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private static Map<String, String> getEntries(byte[] document) throws IOException {
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(document))) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[1024];
+				int numRead;
+				while ((numRead = zipin.read(buf)) != -1) {
+					baos.write(buf, 0, numRead);
+				}
+				entries.put(ze.getName(), new String(baos.toByteArray(), StandardCharsets.ISO_8859_1));
+			}
+		}
+		return entries;
+	}
+
 	private class MultithreadingTest extends Thread {
 
 		private final int number;
@@ -171,6 +266,7 @@ public class ODTMergeEngineTest {
 	private class RootMergeSource implements MergeSource {
 
 		private final boolean condition, loop;
+		private final Path imageDir;
 
 		/**
 		 * @param condition
@@ -178,8 +274,27 @@ public class ODTMergeEngineTest {
 		 */
 		public RootMergeSource(boolean condition, boolean loop) {
 
+			this(condition, loop, null);
+		}
+
+		/**
+		 * @param condition
+		 * @param loop
+		 * @param imageDir Verzeichnis, aus dem die Bilder als Datei geladen werden, oder <code>null</code>
+		 */
+		public RootMergeSource(boolean condition, boolean loop, Path imageDir) {
+
 			this.condition = condition;
 			this.loop = loop;
+			this.imageDir = imageDir;
+		}
+
+		private Image image(String filename, int width, int height, Image.Format format) throws IOException {
+
+			if (this.imageDir != null) {
+				return new Image(this.imageDir.resolve(filename), width, height, format);
+			}
+			return new Image(getBytes(filename), width, height, format);
 		}
 
 		/*
@@ -195,14 +310,14 @@ public class ODTMergeEngineTest {
 			}
 			if ("TestImage".equals(key)) {
 				try {
-					return new Image(getBytes("test.image.png"), 362, 74, Image.Format.PNG);
+					return image("test.image.png", 362, 74, Image.Format.PNG);
 				} catch (IOException e) {
 					throw new DocTemplateException("invalid image source", e);
 				}
 			}
 			if ("TestImage2".equals(key)) {
 				try {
-					return new Image(getBytes("test.image.jpg"), 200, 251, Image.Format.JPEG);
+					return image("test.image.jpg", 200, 251, Image.Format.JPEG);
 				} catch (IOException e) {
 					throw new DocTemplateException("invalid image source", e);
 				}
@@ -248,6 +363,31 @@ public class ODTMergeEngineTest {
 		}
 	}
 
+	/**
+	 * Verzoegert das erste Bild, damit ein spaeterer Dokumentteil das zweite Bild zuerst erreicht.
+	 */
+	private class SlowImageMergeSource extends RootMergeSource {
+
+		SlowImageMergeSource() {
+
+			super(true, true);
+		}
+
+		@Override
+		public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+			if ("TestImage".equals(key)) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DocTemplateException(e);
+				}
+			}
+			return super.getData(ctx, key);
+		}
+	}
+
 	private class DetailMergeSource implements MergeSource {
 
 		private final String col1, col2, col3, col4;
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.pdf;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Vorbereitete PDF-Vorlage: die Bytes der Vorlage und die mit {@link PDFMergeEngine#compile(java.io.InputStream, java.util.Map)}
+ * einmalig ausgewerteten Formularfelder (uebersetzte Keys, Formate, Positionen). Eine kompilierte Vorlage ist
+ * unveraenderlich und kann fuer beliebig viele, auch parallele Merges wiederverwendet werden.
+ */
+public final class CompiledPDFTemplate {
+
+	private final byte[] content;
+	private final List<Field> fields;
+
+	CompiledPDFTemplate(byte[] content, List<Field> fields) {
+
+		this.content = content;
+		this.fields = Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * @return Bytes der Vorlage, duerfen nicht veraendert werden
+	 */
+	byte[] getContent() {
+
+		return this.content;
+	}
+
+	List<Field> getFields() {
+
+		return this.fields;
+	}
+
+	/**
+	 * Ausgewertetes Formularfeld der Vorlage.
+	 */
+	static final class Field {
+
+		private final String name;
+		private final String key;
+		private final String formatSuffix;
+		private final float[] positions;
+
+		/**
+		 * @param name Name des Formularfelds
+		 * @param key Key fuer die MergeSource (uebersetzt, ohne Suffixe)
+		 * @param formatSuffix Format oder <code>null</code>
+		 * @param positions Positionen gemaess {@link com.lowagie.text.pdf.AcroFields#getFieldPositions(String)}
+		 */
+		Field(String name, String key, String formatSuffix, float[] positions) {
+
+			this.name = name;
+			this.key = key;
+			this.formatSuffix = formatSuffix;
+			this.positions = positions;
+		}
+
+		String getName() {
+
+			return this.name;
+		}
+
+		String getKey() {
+
+			return this.key;
+		}
+
+		String getFormatSuffix() {
+
+			return this.formatSuffix;
+		}
+
+		float[] getPositions() {
+
+			return this.positions;
+		}
+
+		int getPage() {
+
+			return (int) this.positions[0];
+		}
+	}
+}
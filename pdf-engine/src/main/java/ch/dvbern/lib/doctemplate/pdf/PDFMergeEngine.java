@@ -15,17 +15,26 @@
 package ch.dvbern.lib.doctemplate.pdf;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.lowagie.text.Document;
 import com.lowagie.text.Rectangle;
 import com.lowagie.text.pdf.AcroFields;
+import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.PdfContentByte;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
 import com.lowagie.text.pdf.PdfStamper;
 
 import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
@@ -49,6 +58,7 @@ public class PDFMergeEngine {
 
 	private final String name;
 	private Map<String, String> keyTranslationTable = null;
+	private final List<BaseFont> substitutionFonts = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Initialisierung der Engine mit einem kennzeichnenden Namen.
@@ -60,6 +70,43 @@ public class PDFMergeEngine {
 		this.name = name;
 	}
 
+	/**
+	 * Registriert eine Ersatzschrift fuer Zeichen, die in der Schrift eines Formularfelds fehlen. Die Schrift wird nur
+	 * einmal geladen und fuer alle Merges verwendet.
+	 *
+	 * @param fontName Name oder Pfad der Schrift gemaess {@link BaseFont#createFont(String, String, boolean)}
+	 * @param encoding Encoding, z.B. {@link BaseFont#IDENTITY_H}
+	 * @param embedded <code>true</code>, wenn die Schrift eingebettet werden soll
+	 * @throws DocTemplateException falls die Schrift nicht geladen werden kann
+	 */
+	public void addSubstitutionFont(String fontName, String encoding, boolean embedded) throws DocTemplateException {
+
+		try {
+			this.substitutionFonts.add(PDFResourceCache.getFont(fontName, encoding, embedded));
+		} catch (Exception e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * Setzt die maximale Groesse des von allen PDF-Merges gemeinsam genutzten Caches fuer dekodierte Bilder
+	 * (Standard 16 MB). Ist der Cache bereits groesser, werden die am laengsten nicht verwendeten Bilder verdraengt.
+	 *
+	 * @param maxSize maximale Groesse der dekodierten Bilddaten in Bytes, <code>0</code> schaltet den Cache aus
+	 */
+	public static void setImageCacheSize(long maxSize) {
+
+		PDFResourceCache.setMaxImageCacheSize(maxSize);
+	}
+
+	/**
+	 * Leert den von allen PDF-Merges gemeinsam genutzten Cache fuer dekodierte Bilder.
+	 */
+	public static void clearImageCache() {
+
+		PDFResourceCache.clearImages();
+	}
+
 	/**
 	 * Merged aus der Vorlage <code>reader</code> ein Dokument und gibt dieses als byte[] zurueck. Die Platzhalter
 	 * innerhalb der Vorlage werden mit Hilfe der <code>mergeSource</code> ermittelt und abgefuellt.
@@ -87,51 +134,167 @@ public class PDFMergeEngine {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
-		FlattenMergeSource flattenMergeSource = new FlattenMergeSource(mergeSource);
-		MergeContext ctx = new MergeContext(flattenMergeSource);
-
+		// einmalige Verwendung: die Vorlage nur einmal lesen, Formularfelder direkt aus dem Stamper auswerten
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		PdfReader pdfTemplate;
-		ByteArrayOutputStream out;
 		try {
 			pdfTemplate = new PdfReader(input);
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+		merge(pdfTemplate, null, mergeSource, new PDFMergeOptions(), out);
+		return out.toByteArray();
+	}
 
-			out = new ByteArrayOutputStream();
-			PdfStamper stamper = new PdfStamper(pdfTemplate, out);
+	/**
+	 * Liest die Vorlage <code>input</code> und wertet deren Formularfelder aus. Die kompilierte Vorlage kann fuer
+	 * beliebig viele Merges wiederverwendet werden.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @return kompilierte Vorlage
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public CompiledPDFTemplate compile(InputStream input, Map<String, String> keyTranslationTable) throws DocTemplateException {
 
-			stamper.setFormFlattening(true);
-			AcroFields fields = stamper.getAcroFields();
-			for (Object o : fields.getFields().entrySet()) {
-				@SuppressWarnings("rawtypes")
-				String key = ((Map.Entry) o).getKey().toString();
-
-				// PdfForm-Zeichenuebersetzung (* -> .)
-				String translated = translate(key);
-
-				// Alternative-Suffix vom key entfernen
-				String ohneAltSuffix = translated;
-				int i = ohneAltSuffix.indexOf(ALTERNATE_SUFFIX);
-				if (i > 0) {
-					ohneAltSuffix = ohneAltSuffix.substring(0, i);
-				}
+		log.debug(name + ": PDF Template lesen");
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = input.read(buf)) != -1) {
+				baos.write(buf, 0, read);
+			}
+			byte[] content = baos.toByteArray();
 
-				// Format-Suffix aus key extrahieren
-				String ohneFormatSuffix = ohneAltSuffix, formatSuffix = null;
-				i = ohneFormatSuffix.indexOf(FORMAT_SUFFIX);
-				if (i > 0) {
-					formatSuffix = ohneFormatSuffix.substring(i + FORMAT_SUFFIX.length());
-					ohneFormatSuffix = ohneFormatSuffix.substring(0, i);
-				}
+			PdfReader pdfTemplate = new PdfReader(content);
+			List<CompiledPDFTemplate.Field> fields = readFields(pdfTemplate.getAcroFields(), keyTranslationTable);
+			pdfTemplate.close();
+			return new CompiledPDFTemplate(content, fields);
+		} catch (Exception e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	private static List<CompiledPDFTemplate.Field> readFields(AcroFields acroFields, Map<String, String> keyTranslationTable) {
+
+		List<CompiledPDFTemplate.Field> fields = new ArrayList<>();
+		for (Object o : acroFields.getFields().keySet()) {
+			String key = o.toString();
+
+			// PdfForm-Zeichenuebersetzung (* -> .)
+			String translated = translate(key, keyTranslationTable);
+
+			// Alternative-Suffix vom key entfernen
+			String ohneAltSuffix = translated;
+			int i = ohneAltSuffix.indexOf(ALTERNATE_SUFFIX);
+			if (i > 0) {
+				ohneAltSuffix = ohneAltSuffix.substring(0, i);
+			}
+
+			// Format-Suffix aus key extrahieren
+			String ohneFormatSuffix = ohneAltSuffix, formatSuffix = null;
+			i = ohneFormatSuffix.indexOf(FORMAT_SUFFIX);
+			if (i > 0) {
+				formatSuffix = ohneFormatSuffix.substring(i + FORMAT_SUFFIX.length());
+				ohneFormatSuffix = ohneFormatSuffix.substring(0, i);
+			}
+
+			fields.add(new CompiledPDFTemplate.Field(key, ohneFormatSuffix, formatSuffix, acroFields.getFieldPositions(key)));
+		}
+		return fields;
+	}
+
+	/**
+	 * Merged aus der kompilierten Vorlage ein Dokument und gibt dieses als byte[] zurueck.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(CompiledPDFTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		getDocument(template, mergeSource, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Merged aus der kompilierten Vorlage ein Dokument und schreibt dieses nach <code>output</code>. Der Stream wird
+	 * nicht geschlossen.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(CompiledPDFTemplate template, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		getDocument(template, mergeSource, new PDFMergeOptions(), output);
+	}
+
+	/**
+	 * Merged aus der kompilierten Vorlage ein Dokument mit den angegebenen Optionen (Flatten, Kompression) und schreibt
+	 * dieses nach <code>output</code>. Der Stream wird nicht geschlossen.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param options Optionen fuer das Ergebnisdokument
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(CompiledPDFTemplate template, MergeSource mergeSource, PDFMergeOptions options, OutputStream output)
+			throws DocTemplateException {
 
-				Object data = flattenMergeSource.getData(ctx, ohneFormatSuffix);
+		PdfReader pdfTemplate;
+		try {
+			pdfTemplate = new PdfReader(template.getContent());
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+		merge(pdfTemplate, template.getFields(), mergeSource, options, output);
+	}
+
+	/**
+	 * Fuellt die Formularfelder der gelesenen Vorlage ab und schreibt das Ergebnis nach <code>output</code>.
+	 *
+	 * @param pdfTemplate gelesene Vorlage, wird geschlossen
+	 * @param templateFields ausgewertete Formularfelder, <code>null</code> um sie aus der Vorlage zu lesen
+	 */
+	private void merge(PdfReader pdfTemplate, List<CompiledPDFTemplate.Field> templateFields, MergeSource mergeSource,
+			PDFMergeOptions options, OutputStream output) throws DocTemplateException {
+
+		FlattenMergeSource flattenMergeSource = new FlattenMergeSource(mergeSource);
+		MergeContext ctx = new MergeContext(flattenMergeSource);
+
+		try {
+			PdfStamper stamper = new PdfStamper(pdfTemplate, new NonClosingOutputStream(output));
+
+			stamper.setFormFlattening(options.isFlattening());
+			for (String fieldName : options.getPartialFlattening()) {
+				stamper.partialFormFlattening(fieldName);
+			}
+			if (options.isFullCompression()) {
+				stamper.setFullCompression();
+			}
+			stamper.getWriter().setCompressionLevel(options.getCompressionLevel());
+			AcroFields fields = stamper.getAcroFields();
+			if (!substitutionFonts.isEmpty()) {
+				fields.setSubstitutionFonts(new ArrayList<>(substitutionFonts));
+			}
+			List<CompiledPDFTemplate.Field> mergeFields = templateFields;
+			if (mergeFields == null) {
+				mergeFields = readFields(fields, this.keyTranslationTable);
+			}
+			for (CompiledPDFTemplate.Field field : mergeFields) {
+				Object data = flattenMergeSource.getData(ctx, field.getKey());
 				if (data instanceof Image) {
-					Image img = (Image) data;
-					float[] imgPosition = stamper.getAcroFields().getFieldPositions(key);
-					int page = Float.valueOf(imgPosition[0]).intValue();
-					PdfContentByte canvas = stamper.getOverContent(page);
-					insertImage(img, canvas, imgPosition);
+					PdfContentByte canvas = stamper.getOverContent(field.getPage());
+					insertImage((Image) data, canvas, field.getPositions());
 				} else {
-					String s = FormatHelper.getDataAsString(data, formatSuffix);
-					stamper.getAcroFields().setField(key, s);
+					String s = FormatHelper.getDataAsString(data, field.getFormatSuffix());
+					fields.setField(field.getName(), s);
 				}
 			}
 			stamper.close();
@@ -141,12 +304,78 @@ public class PDFMergeEngine {
 		} catch (Exception e) {
 			throw new DocTemplateException(e);
 		}
-		return out.toByteArray();
+	}
+
+	/**
+	 * Merged aus der kompilierten Vorlage fuer jede <code>mergeSource</code> ein Dokument und haengt dessen Seiten an ein
+	 * gemeinsames PDF an (z.B. fuer Druck und Archivierung). Gleiche Ressourcen (Schriften, Formular-XObjects) werden
+	 * nur einmal geschrieben. Fertige Seiten werden laufend nach <code>output</code> geschrieben, der Stream wird nicht
+	 * geschlossen.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSources Quellen fuer die einzelnen Dokumente, mindestens eine
+	 * @param output Ziel fuer das Gesamtdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(CompiledPDFTemplate template, Iterable<? extends MergeSource> mergeSources, OutputStream output)
+			throws DocTemplateException {
+
+		getDocuments(template, mergeSources, new PDFMergeOptions(), output);
+	}
+
+	/**
+	 * Wie {@link #getDocuments(CompiledPDFTemplate, Iterable, OutputStream)} mit den angegebenen Optionen. Die
+	 * Formulare der einzelnen Dokumente werden immer geflattet, die Kompression gilt fuer das Gesamtdokument.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSources Quellen fuer die einzelnen Dokumente, mindestens eine
+	 * @param options Optionen fuer das Gesamtdokument
+	 * @param output Ziel fuer das Gesamtdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(CompiledPDFTemplate template, Iterable<? extends MergeSource> mergeSources, PDFMergeOptions options,
+			OutputStream output) throws DocTemplateException {
+
+		try {
+			Document document = new Document();
+			PdfSmartCopy copy = new PdfSmartCopy(document, new NonClosingOutputStream(output));
+			if (options.isFullCompression()) {
+				copy.setFullCompression();
+			}
+			copy.setCompressionLevel(options.getCompressionLevel());
+			document.open();
+			// Streams werden unveraendert kopiert und deshalb schon in den einzelnen Dokumenten komprimiert
+			PDFMergeOptions documentOptions = new PDFMergeOptions();
+			documentOptions.setCompressionLevel(options.getCompressionLevel());
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			int count = 0;
+			for (MergeSource mergeSource : mergeSources) {
+				buffer.reset();
+				getDocument(template, mergeSource, documentOptions, buffer);
+				PdfReader reader = new PdfReader(buffer.toByteArray());
+				for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+					copy.addPage(copy.getImportedPage(reader, page));
+				}
+				// Seiten schreiben und Reader freigeben
+				copy.freeReader(reader);
+				reader.close();
+				count++;
+			}
+			if (count == 0) {
+				throw new DocTemplateException("error.pdf.batch.empty");
+			}
+			document.close();
+			log.debug(name + ": " + count + " Dokumente zusammengefuegt");
+		} catch (DocTemplateException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DocTemplateException(e);
+		}
 	}
 
 	private void insertImage(Image img, PdfContentByte canvas, float[] imgPosition) throws Exception {
 
-		com.lowagie.text.Image image = com.lowagie.text.Image.getInstance(img.getBytes());
+		com.lowagie.text.Image image = PDFResourceCache.getImage(img);
 
 		float fieldLx = imgPosition[1];
 		float fieldLy = imgPosition[2];
@@ -160,7 +389,7 @@ public class PDFMergeEngine {
 		canvas.addImage(image, rect.getWidth(), 0, 0, rect.getHeight(), absPosWidth, absPosHeight);
 	}
 
-	private String translate(String key) {
+	private static String translate(String key, Map<String, String> keyTranslationTable) {
 
 		String result = key.replace('*', '.');
 		if (keyTranslationTable != null) {
@@ -171,6 +400,29 @@ public class PDFMergeEngine {
 		return result;
 	}
 
+	/**
+	 * PdfStamper schliesst beim Abschluss den Ziel-Stream, dieser gehoert aber dem Aufrufer.
+	 */
+	private static final class NonClosingOutputStream extends FilterOutputStream {
+
+		NonClosingOutputStream(OutputStream out) {
+
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			this.out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			flush();
+		}
+	}
+
 	/**
 	 * MergeSource Implementierung fuer einen direkten Zugriff in hierarchische MergeSource-Strukturen mit
 	 * Mehrfachvorkommen.
@@ -180,6 +432,10 @@ public class PDFMergeEngine {
 	public class FlattenMergeSource implements MergeSource {
 
 		private final MergeSource nestedMergeSource;
+		/** Listen pro Pfad (z.B. <code>positionen</code>), damit jede Liste pro Dokument nur einmal aufgebaut wird */
+		private final Map<String, List<MergeSource>> iterations = new HashMap<>();
+		/** Listenelemente pro Pfad (z.B. <code>positionen_[3].</code>) */
+		private final Map<String, MergeSource> elements = new HashMap<>();
 
 		/**
 		 * @param nestedMergeSource initiale MergeSource
@@ -201,9 +457,16 @@ public class PDFMergeEngine {
 
 			MergeSource currentSource = nestedMergeSource;
 			String s = key;
+			// Position von s innerhalb von key
+			int offset = 0;
 			int indexPos = s.indexOf("_[");
 			while (indexPos > 0) {
-				List<MergeSource> l = currentSource.whileStatement(ctx, s.substring(0, indexPos));
+				String path = key.substring(0, offset + indexPos);
+				List<MergeSource> l = iterations.get(path);
+				if (l == null && !iterations.containsKey(path)) {
+					l = currentSource.whileStatement(ctx, s.substring(0, indexPos));
+					iterations.put(path, l);
+				}
 				int endPos = s.indexOf("].", indexPos);
 				Integer i = null;
 				try {
@@ -214,8 +477,15 @@ public class PDFMergeEngine {
 					log.warn(name + ": invalid iteration index (" + s.substring(indexPos + 2, endPos) + ")");
 				}
 				if (l != null && i != null && l.size() > i.intValue()) {
+					String elementPath = key.substring(0, offset + endPos + 2);
+					MergeSource element = elements.get(elementPath);
+					if (element == null) {
+						element = beanMergeSourceWithEmptyPrefix(l.get(i));
+						elements.put(elementPath, element);
+					}
 					s = s.substring(endPos + 2);
-					currentSource = beanMergeSourceWithEmptyPrefix(l.get(i));
+					offset += endPos + 2;
+					currentSource = element;
 				}
 				indexPos = s.indexOf("_[", indexPos + 1);
 			}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.pdf;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.lowagie.text.pdf.PdfStream;
+
+/**
+ * Optionen fuer einen PDF-Merge. Die Vorgaben entsprechen dem bisherigen Verhalten: alle Formularfelder werden
+ * geflattet, Streams mit der Standard-Kompression geschrieben. Fuer interaktive Vorschauen kann auf das Flatten
+ * verzichtet werden, fuer die Archivierung kann die volle Kompression gewaehlt werden.
+ */
+public class PDFMergeOptions {
+
+	private boolean flattening = true;
+	private final Set<String> partialFlattening = new LinkedHashSet<>();
+	private boolean fullCompression = false;
+	private int compressionLevel = PdfStream.DEFAULT_COMPRESSION;
+
+	/**
+	 * @return <code>true</code>, wenn Formularfelder geflattet werden (Vorgabe)
+	 */
+	public boolean isFlattening() {
+
+		return flattening;
+	}
+
+	/**
+	 * @param flattening <code>false</code>, wenn die Formularfelder ausfuellbar bleiben sollen
+	 */
+	public void setFlattening(boolean flattening) {
+
+		this.flattening = flattening;
+	}
+
+	/**
+	 * @return Formularfelder, die geflattet werden; leer fuer alle
+	 */
+	public Set<String> getPartialFlattening() {
+
+		return Collections.unmodifiableSet(partialFlattening);
+	}
+
+	/**
+	 * Flattet nur die angegebenen Formularfelder, alle anderen bleiben ausfuellbar. Wirkt nur mit
+	 * {@link #isFlattening()}.
+	 *
+	 * @param fieldName Name des Formularfelds in der Vorlage
+	 */
+	public void addPartialFlattening(String fieldName) {
+
+		this.partialFlattening.add(fieldName);
+	}
+
+	/**
+	 * @return <code>true</code>, wenn Objekte und Querverweise komprimiert in Object- und XRef-Streams geschrieben werden
+	 */
+	public boolean isFullCompression() {
+
+		return fullCompression;
+	}
+
+	/**
+	 * Volle Kompression (Object- und XRef-Streams, PDF 1.5): kleinere Dokumente, etwas hoeherer Aufwand.
+	 *
+	 * @param fullCompression <code>true</code> fuer volle Kompression
+	 */
+	public void setFullCompression(boolean fullCompression) {
+
+		this.fullCompression = fullCompression;
+	}
+
+	/**
+	 * @return Kompressionsstufe fuer Streams
+	 */
+	public int getCompressionLevel() {
+
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel Kompressionsstufe fuer Streams von {@link PdfStream#NO_COMPRESSION} bis
+	 *            {@link PdfStream#BEST_COMPRESSION}, Vorgabe {@link PdfStream#DEFAULT_COMPRESSION}
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+
+		this.compressionLevel = compressionLevel;
+	}
+}
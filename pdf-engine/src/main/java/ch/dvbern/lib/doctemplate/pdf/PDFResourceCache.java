@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.pdf;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.BaseFont;
+
+import ch.dvbern.lib.doctemplate.common.Image;
+
+/**
+ * Von allen Merges gemeinsam genutzte, bereits dekodierte Ressourcen: Bilder werden anhand ihres
+ * {@link Image#getDigest()} in einem LRU-Cache gehalten, damit Logos und Unterschriften nicht fuer jedes Dokument neu
+ * dekodiert werden. Der Cache ist durch die Groesse der dekodierten Bilddaten beschraenkt. Schriften fuer
+ * Formularfelder werden nur einmal geladen.
+ */
+final class PDFResourceCache {
+
+	/** Standardgroesse des Bildcaches in Bytes */
+	static final long DEFAULT_IMAGE_CACHE_SIZE = 16L * 1024 * 1024;
+
+	private static final Map<String, CachedImage> IMAGES = new LinkedHashMap<>(16, 0.75f, true);
+	private static long maxImageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+	private static long imageCacheSize = 0;
+
+	private static final ConcurrentMap<List<Object>, BaseFont> FONTS = new ConcurrentHashMap<>();
+
+	private PDFResourceCache() {
+		// statische Hilfsklasse
+	}
+
+	/**
+	 * @param img Bild
+	 * @return eigene Instanz des dekodierten Bildes, darf veraendert (skaliert, positioniert) werden
+	 * @throws DocumentException
+	 * @throws IOException
+	 */
+	static com.lowagie.text.Image getImage(Image img) throws DocumentException, IOException {
+
+		String key = img.getDigest();
+		CachedImage cached;
+		synchronized (IMAGES) {
+			cached = IMAGES.get(key);
+		}
+		com.lowagie.text.Image decoded;
+		if (cached != null) {
+			decoded = cached.image;
+		} else {
+			decoded = com.lowagie.text.Image.getInstance(img.getBytes());
+			put(key, new CachedImage(decoded, sizeOf(decoded, img)));
+		}
+		// Kopie teilt die dekodierten Daten, Skalierung und Position sind pro Instanz
+		return com.lowagie.text.Image.getInstance(decoded);
+	}
+
+	private static void put(String key, CachedImage cached) {
+
+		synchronized (IMAGES) {
+			if (cached.size > maxImageCacheSize) {
+				return;
+			}
+			CachedImage previous = IMAGES.put(key, cached);
+			if (previous != null) {
+				imageCacheSize -= previous.size;
+			}
+			imageCacheSize += cached.size;
+			evict();
+		}
+	}
+
+	private static void evict() {
+
+		Iterator<CachedImage> it = IMAGES.values().iterator();
+		while (imageCacheSize > maxImageCacheSize && it.hasNext()) {
+			imageCacheSize -= it.next().size;
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return Groesse der dekodierten Daten inkl. Transparenzmaske, ersatzweise die Groesse des Bildinhalts
+	 */
+	private static long sizeOf(com.lowagie.text.Image decoded, Image img) {
+
+		long size = 0;
+		for (com.lowagie.text.Image i = decoded; i != null; i = i.getImageMask()) {
+			byte[] raw = i.getRawData();
+			if (raw != null) {
+				size += raw.length;
+			}
+		}
+		return size > 0 ? size : Math.max(img.getLength(), 0);
+	}
+
+	/**
+	 * Setzt die maximale Groesse des Bildcaches und verdraengt bei Bedarf die am laengsten nicht verwendeten Bilder.
+	 *
+	 * @param maxSize maximale Groesse der dekodierten Bilddaten in Bytes, <code>0</code> schaltet den Cache aus
+	 */
+	static void setMaxImageCacheSize(long maxSize) {
+
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+		}
+		synchronized (IMAGES) {
+			maxImageCacheSize = maxSize;
+			evict();
+		}
+	}
+
+	/**
+	 * @return maximale Groesse des Bildcaches in Bytes
+	 */
+	static long getMaxImageCacheSize() {
+
+		synchronized (IMAGES) {
+			return maxImageCacheSize;
+		}
+	}
+
+	/**
+	 * Leert den Bildcache.
+	 */
+	static void clearImages() {
+
+		synchronized (IMAGES) {
+			IMAGES.clear();
+			imageCacheSize = 0;
+		}
+	}
+
+	/**
+	 * @param fontName Name oder Pfad der Schrift gemaess {@link BaseFont#createFont(String, String, boolean)}
+	 * @param encoding Encoding
+	 * @param embedded <code>true</code>, wenn die Schrift eingebettet werden soll
+	 * @return geladene Schrift
+	 * @throws DocumentException
+	 * @throws IOException
+	 */
+	static BaseFont getFont(String fontName, String encoding, boolean embedded) throws DocumentException, IOException {
+
+		List<Object> key = Arrays.<Object> asList(fontName, encoding, Boolean.valueOf(embedded));
+		BaseFont font = FONTS.get(key);
+		if (font == null) {
+			font = BaseFont.createFont(fontName, encoding, embedded);
+			BaseFont previous = FONTS.putIfAbsent(key, font);
+			if (previous != null) {
+				font = previous;
+			}
+		}
+		return font;
+	}
+
+	/**
+	 * @return Anzahl zwischengespeicherter Bilder
+	 */
+	static int imageCount() {
+
+		synchronized (IMAGES) {
+			return IMAGES.size();
+		}
+	}
+
+	/**
+	 * @return Groesse der zwischengespeicherten Bilddaten in Bytes
+	 */
+	static long imageCacheSize() {
+
+		synchronized (IMAGES) {
+			return imageCacheSize;
+		}
+	}
+
+	private static final class CachedImage {
+
+		private final com.lowagie.text.Image image;
+		private final long size;
+
+		CachedImage(com.lowagie.text.Image image, long size) {
+
+			this.image = image;
+			this.size = size;
+		}
+	}
+}
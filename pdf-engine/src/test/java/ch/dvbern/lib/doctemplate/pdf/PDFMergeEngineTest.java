@@ -32,6 +32,9 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfReader;
+
 import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.Image;
@@ -53,6 +56,16 @@ public class PDFMergeEngineTest {
 		Locale.setDefault(new Locale("de", "CH"));
 	}
 
+	/**
+	 * Jeder Test beginnt mit einem leeren Bildcache in Standardgroesse.
+	 */
+	@Before
+	public void resetImageCache() {
+
+		PDFMergeEngine.setImageCacheSize(PDFResourceCache.DEFAULT_IMAGE_CACHE_SIZE);
+		PDFMergeEngine.clearImageCache();
+	}
+
 	/**
 	 * Test 1: Textbaustein wird nicht ausgeblendet, Liste leer.
 	 *
@@ -148,6 +161,201 @@ public class PDFMergeEngineTest {
 		Assert.assertTrue(isEqualPdf(s, "test3.result.pdf"));
 	}
 
+	/**
+	 * Test 3 mit einmal kompilierter Vorlage: alle Merges liefern ein vollstaendiges, geflattetes Dokument.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test3Compiled() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test3Compiled");
+
+		InputStream is = this.getClass().getResourceAsStream("test3.pdf");
+		CompiledPDFTemplate template = pdfME.compile(is, null);
+		is.close();
+		int pages = new PdfReader(getBytes("test3.pdf")).getNumberOfPages();
+
+		for (int i = 0; i < 3; i++) {
+			PdfReader result = new PdfReader(pdfME.getDocument(template, new BeanMergeSource(new SomeJavaBean(), "bean.")));
+			Assert.assertEquals(pages, result.getNumberOfPages());
+			Assert.assertTrue(result.getAcroFields().getFields().isEmpty());
+			result.close();
+		}
+	}
+
+	/**
+	 * Test 3 ohne kompilierte Vorlage: die Vorlage wird nur einmal gelesen und ergibt ein vollstaendiges, geflattetes
+	 * Dokument.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test3Uncompiled() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test3Uncompiled");
+		int pages = new PdfReader(getBytes("test3.pdf")).getNumberOfPages();
+
+		InputStream is = this.getClass().getResourceAsStream("test3.pdf");
+		PdfReader result = new PdfReader(pdfME.getDocument(is, new BeanMergeSource(new SomeJavaBean(), "bean.")));
+		is.close();
+		Assert.assertEquals(pages, result.getNumberOfPages());
+		Assert.assertTrue(result.getAcroFields().getFields().isEmpty());
+		result.close();
+	}
+
+	/**
+	 * Test 3 als Batch: die Seiten aller Dokumente landen in einem PDF, gemeinsame Ressourcen nur einmal.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test3Batch() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test3Batch");
+
+		InputStream is = this.getClass().getResourceAsStream("test3.pdf");
+		CompiledPDFTemplate template = pdfME.compile(is, null);
+		is.close();
+		int pages = new PdfReader(getBytes("test3.pdf")).getNumberOfPages();
+		int single = pdfME.getDocument(template, new BeanMergeSource(new SomeJavaBean(), "bean.")).length;
+
+		List<MergeSource> sources = new ArrayList<MergeSource>();
+		for (int i = 0; i < 10; i++) {
+			sources.add(new BeanMergeSource(new SomeJavaBean(), "bean."));
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		pdfME.getDocuments(template, sources, baos);
+
+		PdfReader result = new PdfReader(baos.toByteArray());
+		Assert.assertEquals(10 * pages, result.getNumberOfPages());
+		Assert.assertTrue(baos.size() < 10 * single);
+		result.close();
+	}
+
+	/**
+	 * Indexierte Keys: jede Liste wird pro Dokument nur einmal aufgebaut.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFlattenMergeSource() throws Exception {
+
+		final int[] calls = { 0 };
+		MergeSource root = new RootMergeSource(true, true) {
+
+			@Override
+			public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+				calls[0]++;
+				return super.whileStatement(ctx, key);
+			}
+		};
+		PDFMergeEngine.FlattenMergeSource ms = new PDFMergeEngine("TestFlatten").new FlattenMergeSource(root);
+		MergeContext ctx = new MergeContext(ms);
+		for (int row = 0; row < 3; row++) {
+			Assert.assertEquals(new String[] { "One.1", "Two.1", "Three.1" }[row], ms.getData(ctx, "testloop_[" + row + "].Col1"));
+			Assert.assertEquals(new String[] { "One.2", "Two.2", "Three.2" }[row], ms.getData(ctx, "testloop_[" + row + "].Col2"));
+		}
+		Assert.assertNull(ms.getData(ctx, "testloop_[3].Col1"));
+		Assert.assertEquals("Meister", ms.getData(ctx, "QST_name"));
+		Assert.assertEquals(1, calls[0]);
+	}
+
+	/**
+	 * Test 1 mehrfach: Bilder werden einmal dekodiert und wiederverwendet, Ersatzschriften werden uebernommen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test1Images() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test1Images");
+		pdfME.addSubstitutionFont(BaseFont.HELVETICA, BaseFont.WINANSI, false);
+
+		InputStream is = this.getClass().getResourceAsStream("test1.pdf");
+		CompiledPDFTemplate template = pdfME.compile(is, null);
+		is.close();
+
+		int size = -1;
+		for (int i = 0; i < 3; i++) {
+			byte[] result = pdfME.getDocument(template, new RootMergeSource(true, true));
+			if (size >= 0) {
+				Assert.assertEquals(size, result.length);
+			}
+			size = result.length;
+		}
+		Assert.assertEquals(2, PDFResourceCache.imageCount());
+	}
+
+	/**
+	 * Bilder mit gleichem Inhalt werden nur einmal dekodiert; der Cache ist durch die Groesse der dekodierten Daten
+	 * beschraenkt und laesst sich leeren.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testImageCache() throws Exception {
+
+		byte[] png = getBytes("test.image.png");
+		com.lowagie.text.Image first = PDFResourceCache.getImage(new Image(png, 362, 74, Image.Format.PNG));
+		com.lowagie.text.Image second = PDFResourceCache.getImage(new Image(png, 362, 74, Image.Format.PNG));
+		Assert.assertNotSame(first, second);
+		Assert.assertSame(first.getRawData(), second.getRawData());
+		Assert.assertEquals(1, PDFResourceCache.imageCount());
+		long pngSize = PDFResourceCache.imageCacheSize();
+		Assert.assertTrue(pngSize >= first.getRawData().length);
+
+		PDFResourceCache.getImage(new Image(getBytes("test.image.jpg"), 362, 74, Image.Format.JPEG));
+		Assert.assertEquals(2, PDFResourceCache.imageCount());
+
+		// nur noch Platz fuer das zuletzt verwendete Bild
+		PDFMergeEngine.setImageCacheSize(PDFResourceCache.imageCacheSize() - 1);
+		Assert.assertEquals(1, PDFResourceCache.imageCount());
+		com.lowagie.text.Image third = PDFResourceCache.getImage(new Image(png, 362, 74, Image.Format.PNG));
+		Assert.assertNotSame(first.getRawData(), third.getRawData());
+
+		PDFMergeEngine.clearImageCache();
+		Assert.assertEquals(0, PDFResourceCache.imageCount());
+		Assert.assertEquals(0, PDFResourceCache.imageCacheSize());
+
+		// zu grosse Bilder werden nicht zwischengespeichert
+		PDFMergeEngine.setImageCacheSize(pngSize - 1);
+		PDFResourceCache.getImage(new Image(png, 362, 74, Image.Format.PNG));
+		Assert.assertEquals(0, PDFResourceCache.imageCount());
+	}
+
+	/**
+	 * Test 3 mit Optionen: ohne Flatten bleiben die Formularfelder erhalten, mit voller Kompression wird das Dokument
+	 * kleiner.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test3Options() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test3Options");
+
+		InputStream is = this.getClass().getResourceAsStream("test3.pdf");
+		CompiledPDFTemplate template = pdfME.compile(is, null);
+		is.close();
+		int fields = new PdfReader(getBytes("test3.pdf")).getAcroFields().getFields().size();
+
+		PDFMergeOptions options = new PDFMergeOptions();
+		options.setFlattening(false);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		pdfME.getDocument(template, new BeanMergeSource(new SomeJavaBean(), "bean."), options, baos);
+		Assert.assertEquals(fields, new PdfReader(baos.toByteArray()).getAcroFields().getFields().size());
+
+		byte[] standard = pdfME.getDocument(template, new BeanMergeSource(new SomeJavaBean(), "bean."));
+		options = new PDFMergeOptions();
+		options.setFullCompression(true);
+		baos.reset();
+		pdfME.getDocument(template, new BeanMergeSource(new SomeJavaBean(), "bean."), options, baos);
+		Assert.assertTrue(baos.size() < standard.length);
+		Assert.assertTrue(new PdfReader(baos.toByteArray()).getAcroFields().getFields().isEmpty());
+	}
+
 	private boolean isEqualPdf(String s, String resultFile) throws IOException {
 
 		return testSafePdf(s).equals(testSafePdf(new String(getBytes(resultFile))));
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
+
+/**
+ * Vorbereitete RTF-Vorlage: der mit {@link RTFMergeEngine#compile(java.io.Reader, java.util.Map)} aus der Vorlage
+ * aufgebaute Baum von MergeElementen. Eine kompilierte Vorlage ist unveraenderlich und kann fuer beliebig viele, auch
+ * parallele Merges wiederverwendet werden, ohne dass die Vorlage erneut geparst werden muss.
+ */
+public final class CompiledRTFTemplate {
+
+	private final BasicMergeElement root;
+
+	CompiledRTFTemplate(BasicMergeElement root) {
+
+		this.root = root;
+	}
+
+	BasicMergeElement getRoot() {
+
+		return this.root;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tabellengesteuerte RTF-Kodierung von Feldwerten: Zeilenumbrueche werden zu <code>\line</code>, CRs entfallen,
+ * Steuer- und Sonderzeichen sowie Zeichen ab 0x80 werden als <code>\'hh</code>, Zeichen ausserhalb Latin-1 als
+ * <code>\\uN?</code> geschrieben. Werte ohne solche Zeichen (der Normalfall) werden unveraendert uebernommen.
+ */
+final class RTFCharEncoder {
+
+	private static final int CHUNK_SIZE = 512;
+	/** laengste Kodierung eines Zeichens: <code>\\u-32768?</code> */
+	private static final int MAX_ESCAPE_LENGTH = 9;
+	private static final byte[] NOTHING = new byte[0];
+	/** Kodierung der Zeichen 0x00-0xFF, <code>null</code> fuer unveraenderte Zeichen */
+	private static final byte[][] ESCAPES = new byte[256][];
+
+	static {
+		for (int c = 0; c < ESCAPES.length; c++) {
+			if (c >= 0x80 || c < 0x20 || c == '\\' || c == '{' || c == '}') {
+				// Integer.toHexString: auch einstellig, wie bisher
+				ESCAPES[c] = ("\\'" + Integer.toHexString(c)).getBytes(StandardCharsets.ISO_8859_1);
+			}
+		}
+		ESCAPES['\n'] = "\\line ".getBytes(StandardCharsets.ISO_8859_1);
+		ESCAPES['\r'] = NOTHING;
+	}
+
+	private RTFCharEncoder() {
+		// statische Hilfsklasse
+	}
+
+	/**
+	 * Schreibt <code>data</code> RTF-kodiert nach <code>output</code>.
+	 *
+	 * @param data Feldwert
+	 * @param output Ziel
+	 * @throws IOException
+	 */
+	static void encode(String data, OutputStream output) throws IOException {
+
+		int length = data.length();
+		int first = indexOfEscape(data);
+		if (first < 0) {
+			output.write(data.getBytes(StandardCharsets.ISO_8859_1));
+			return;
+		}
+		byte[] buf = new byte[Math.min(CHUNK_SIZE, length + 2 * MAX_ESCAPE_LENGTH)];
+		int pos = 0;
+		for (int i = 0; i < length; i++) {
+			if (pos > buf.length - MAX_ESCAPE_LENGTH) {
+				output.write(buf, 0, pos);
+				pos = 0;
+			}
+			char c = data.charAt(i);
+			if (i < first) {
+				buf[pos++] = (byte) c;
+			} else if (c > 0xFF) {
+				pos = writeUnicode((short) c, buf, pos);
+			} else if (ESCAPES[c] != null) {
+				byte[] escape = ESCAPES[c];
+				System.arraycopy(escape, 0, buf, pos, escape.length);
+				pos += escape.length;
+			} else {
+				buf[pos++] = (byte) c;
+			}
+		}
+		output.write(buf, 0, pos);
+	}
+
+	/**
+	 * @return Index des ersten zu kodierenden Zeichens oder <code>-1</code>
+	 */
+	private static int indexOfEscape(String data) {
+
+		for (int i = 0; i < data.length(); i++) {
+			char c = data.charAt(i);
+			if (c > 0xFF || ESCAPES[c] != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int writeUnicode(short value, byte[] buf, int pos) {
+
+		buf[pos++] = '\\';
+		buf[pos++] = 'u';
+		int v = value;
+		if (v < 0) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		int start = pos;
+		do {
+			buf[pos++] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v > 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+		buf[pos++] = '?';
+		return pos;
+	}
+}
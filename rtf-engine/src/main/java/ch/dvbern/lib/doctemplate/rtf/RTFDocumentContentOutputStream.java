@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Schreibt von einem RTF-Dokument nur den Inhalt zwischen den Textmarken DOCUMENT_CONTENT_BEGIN und
+ * DOCUMENT_CONTENT_END weiter (siehe {@link RTFMergeEngine#extractDocumentContent(String)}). Gepuffert wird nur der
+ * Dokumentkopf bis zur Anfangsmarke, der Inhalt wird direkt weitergeschrieben. Nach dem letzten Byte muss
+ * {@link #finish()} aufgerufen werden.
+ */
+class RTFDocumentContentOutputStream extends OutputStream {
+
+	// beide Marken beginnen mit '{' und enthalten kein weiteres '{'
+	private static final byte[] BEGIN = RTFMergeEngine.DOCUMENT_CONTENT_BEGIN.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] END = RTFMergeEngine.DOCUMENT_CONTENT_END.getBytes(StandardCharsets.US_ASCII);
+
+	private enum State {
+		/** vor der Anfangsmarke, wird gepuffert */
+		HEADER,
+		/** Inhalt, wird bis zur Endmarke weitergeschrieben */
+		CONTENT,
+		/** Endmarke direkt nach der Anfangsmarke: der ganze Rest wird weitergeschrieben */
+		ALL,
+		/** nach der Endmarke, wird verworfen */
+		TRAILER
+	}
+
+	private final OutputStream out;
+	private State state = State.HEADER;
+	private ByteArrayOutputStream header = new ByteArrayOutputStream();
+	private boolean beginAtStart;
+	private int matched;
+	private long count;
+
+	/**
+	 * @param out Ziel fuer den Inhalt
+	 */
+	RTFDocumentContentOutputStream(OutputStream out) {
+
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		switch (this.state) {
+		case HEADER:
+			this.header.write(b);
+			if (!this.beginAtStart) {
+				this.matched = match(BEGIN, this.matched, (byte) b);
+				if (this.matched == BEGIN.length) {
+					if (this.count + 1 > BEGIN.length) {
+						this.header = null;
+						this.state = State.CONTENT;
+						this.matched = 0;
+						this.count = 0;
+						return;
+					}
+					// wie String.indexOf: nur das erste Vorkommen zaehlt, eine Marke am Anfang wird ignoriert
+					this.beginAtStart = true;
+				}
+			}
+			this.count++;
+			break;
+		case CONTENT:
+			int previous = this.matched;
+			this.matched = match(END, previous, (byte) b);
+			if (this.matched == END.length) {
+				if (this.count + 1 > END.length) {
+					this.state = State.TRAILER;
+				} else {
+					this.out.write(END);
+					this.state = State.ALL;
+				}
+			} else if (this.matched <= previous) {
+				this.out.write(END, 0, previous);
+				if (this.matched == 0) {
+					this.out.write(b);
+				}
+			}
+			this.count++;
+			break;
+		case ALL:
+			this.out.write(b);
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (this.state == State.ALL) {
+			this.out.write(b, off, len);
+			return;
+		}
+		if (this.state == State.TRAILER) {
+			return;
+		}
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			if (this.state == State.CONTENT && this.matched == 0) {
+				// Abschnitt ohne moegliche Endmarke direkt weiterschreiben
+				int run = i;
+				while (run < end && b[run] != END[0]) {
+					run++;
+				}
+				if (run > i) {
+					this.out.write(b, i, run - i);
+					this.count += run - i;
+					i = run;
+					if (i == end) {
+						break;
+					}
+				}
+			} else if (this.state == State.ALL) {
+				this.out.write(b, i, end - i);
+				return;
+			} else if (this.state == State.TRAILER) {
+				return;
+			}
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+
+		this.out.flush();
+	}
+
+	/**
+	 * Schliesst die Ausgabe ab, ohne das Ziel zu schliessen. Wurde keine Anfangsmarke gefunden, wird das ganze Dokument
+	 * bis zur Endmarke geschrieben.
+	 *
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+
+		if (this.state == State.HEADER) {
+			byte[] document = this.header.toByteArray();
+			int pos = indexOf(document, END);
+			this.out.write(document, 0, pos > 0 ? pos : document.length);
+			this.header = null;
+			this.state = State.TRAILER;
+		} else if (this.state == State.CONTENT) {
+			this.out.write(END, 0, this.matched);
+			this.state = State.TRAILER;
+		}
+		this.out.flush();
+	}
+
+	private static int match(byte[] marker, int matched, byte b) {
+
+		if (marker[matched] == b) {
+			return matched + 1;
+		}
+		return marker[0] == b ? 1 : 0;
+	}
+
+	private static int indexOf(byte[] data, byte[] marker) {
+
+		outer: for (int i = 0; i <= data.length - marker.length; i++) {
+			for (int j = 0; j < marker.length; j++) {
+				if (data[i + j] != marker[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
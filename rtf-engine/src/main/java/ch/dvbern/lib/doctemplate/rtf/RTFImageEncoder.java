@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.dvbern.lib.doctemplate.common.Image;
+
+/**
+ * Hex-Kodierung von Bildern fuer RTF (<code>{\pict ...}</code>). Die Kodierung erfolgt tabellengesteuert in Bloecken
+ * direkt in einen {@link OutputStream}. Bereits kodierte Bilder werden anhand ihres {@link Image#getDigest()} in einem
+ * groessenbeschraenkten LRU-Cache gehalten, damit mehrfach verwendete Bilder (Logos, Unterschriften) nur einmal kodiert
+ * werden.
+ */
+class RTFImageEncoder {
+
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final int CHUNK_SIZE = 8192;
+
+	private final long maxCacheSize;
+	private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long cacheSize = 0;
+
+	/**
+	 * @param maxCacheSize maximale Groesse aller zwischengespeicherten Kodierungen in Bytes
+	 */
+	RTFImageEncoder(long maxCacheSize) {
+
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * Schreibt den Bildinhalt hex-kodiert nach <code>output</code>.
+	 *
+	 * @param image zu kodierendes Bild
+	 * @param output Ziel
+	 * @throws ImageReadException das Bild konnte nicht gelesen werden, nach <code>output</code> wurde nichts geschrieben
+	 * @throws IOException Fehler beim Schreiben oder beim Lesen, nachdem bereits ein Teil geschrieben wurde
+	 */
+	void writeHex(Image image, OutputStream output) throws IOException {
+
+		String key;
+		try {
+			key = image.getDigest();
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof IOException) {
+				throw new ImageReadException((IOException) e.getCause());
+			}
+			throw e;
+		}
+		byte[] encoded;
+		synchronized (this.cache) {
+			encoded = this.cache.get(key);
+		}
+		if (encoded == null) {
+			long length = image.getLength();
+			if (length * 2 > this.maxCacheSize) {
+				// zu gross fuer den Cache: direkt kodieren, ohne Zwischenspeicher
+				try (InputStream is = open(image)) {
+					encode(is, output);
+				}
+				return;
+			}
+			CacheBuffer buffer = new CacheBuffer(length < 0 ? CHUNK_SIZE * 2 : (int) length * 2, output);
+			try (InputStream is = open(image)) {
+				encode(is, buffer);
+			} catch (IOException e) {
+				if (buffer.overflow) {
+					throw e;
+				}
+				// bisher nur im Puffer
+				throw e instanceof ImageReadException ? e : new ImageReadException(e);
+			}
+			if (buffer.overflow) {
+				return;
+			}
+			encoded = buffer.toByteArray();
+			put(key, encoded);
+		}
+		output.write(encoded);
+	}
+
+	private static InputStream open(Image image) throws ImageReadException {
+
+		try {
+			return image.openStream();
+		} catch (IOException e) {
+			throw new ImageReadException(e);
+		}
+	}
+
+	private void put(String key, byte[] encoded) {
+
+		synchronized (this.cache) {
+			byte[] previous = this.cache.put(key, encoded);
+			if (previous != null) {
+				this.cacheSize -= previous.length;
+			}
+			this.cacheSize += encoded.length;
+			Iterator<byte[]> it = this.cache.values().iterator();
+			while (this.cacheSize > this.maxCacheSize && it.hasNext()) {
+				this.cacheSize -= it.next().length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Puffer fuer die Kodierung eines Bildes unbekannter Laenge. Sobald die Kodierung die maximale Cachegroesse
+	 * ueberschreitet, wird der bisherige Inhalt nach <code>target</code> geschrieben und der Rest direkt durchgereicht.
+	 */
+	private final class CacheBuffer extends OutputStream {
+
+		private final OutputStream target;
+		private byte[] buf;
+		private int count = 0;
+		private boolean overflow = false;
+
+		CacheBuffer(int initialSize, OutputStream target) {
+
+			this.buf = new byte[initialSize];
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			if (!this.overflow && this.count + len > RTFImageEncoder.this.maxCacheSize) {
+				// ab hier gelangen Daten nach target, Fehler koennen nicht mehr ignoriert werden
+				this.overflow = true;
+				this.target.write(this.buf, 0, this.count);
+				this.buf = null;
+			}
+			if (this.overflow) {
+				this.target.write(b, off, len);
+				return;
+			}
+			if (this.count + len > this.buf.length) {
+				this.buf = Arrays.copyOf(this.buf, (int) Math.min(Math.max(this.buf.length * 2L, this.count + len), RTFImageEncoder.this.maxCacheSize));
+			}
+			System.arraycopy(b, off, this.buf, this.count, len);
+			this.count += len;
+		}
+
+		byte[] toByteArray() {
+
+			return this.count == this.buf.length ? this.buf : Arrays.copyOf(this.buf, this.count);
+		}
+	}
+
+	/**
+	 * Kodiert <code>input</code> blockweise als Kleinbuchstaben-Hex nach <code>output</code>.
+	 *
+	 * @param input Quelle
+	 * @param output Ziel
+	 * @throws ImageReadException Lesefehler, bevor etwas nach <code>output</code> geschrieben wurde
+	 * @throws IOException
+	 */
+	static void encode(InputStream input, OutputStream output) throws IOException {
+
+		byte[] in = new byte[CHUNK_SIZE];
+		byte[] out = new byte[CHUNK_SIZE * 2];
+		boolean written = false;
+		int read;
+		while ((read = read(input, in, written)) != -1) {
+			for (int i = 0, j = 0; i < read; i++) {
+				int b = in[i] & 0xFF;
+				out[j++] = HEX_DIGITS[b >>> 4];
+				out[j++] = HEX_DIGITS[b & 0x0F];
+			}
+			output.write(out, 0, read * 2);
+			written = true;
+		}
+	}
+
+	private static int read(InputStream input, byte[] buf, boolean written) throws IOException {
+
+		try {
+			return input.read(buf);
+		} catch (IOException e) {
+			throw written ? e : new ImageReadException(e);
+		}
+	}
+
+	/**
+	 * Das Bild konnte nicht gelesen werden, bevor Daten in das Ziel geschrieben wurden. Das Dokument bleibt gueltig, das
+	 * Bild fehlt.
+	 */
+	static final class ImageReadException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ImageReadException(IOException cause) {
+
+			super(cause);
+		}
+	}
+}
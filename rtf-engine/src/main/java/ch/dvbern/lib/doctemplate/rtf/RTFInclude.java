@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.OutputStream;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+
+/**
+ * Inhalt eines Subdokuments fuer
+ * {@link RTFMergeEngine#includeSubDocuments(String, java.util.Map, OutputStream)}. Der Inhalt wird erst beim
+ * Zusammensetzen und direkt in das Ergebnis geschrieben, z.B. mit
+ * {@link RTFMergeEngine#getDocumentContent(CompiledRTFTemplate, ch.dvbern.lib.doctemplate.common.MergeSource, OutputStream)}.
+ */
+public interface RTFInclude {
+
+	/**
+	 * Schreibt den Inhalt nach <code>output</code>. Der Stream darf nicht geschlossen werden.
+	 *
+	 * @param output Ziel
+	 * @throws DocTemplateException
+	 */
+	void writeTo(OutputStream output) throws DocTemplateException;
+}
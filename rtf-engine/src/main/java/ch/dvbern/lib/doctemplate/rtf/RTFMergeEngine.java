@@ -14,13 +14,18 @@
  */
 package ch.dvbern.lib.doctemplate.rtf;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.StringTokenizer;
 
@@ -39,18 +44,11 @@ import ch.dvbern.lib.doctemplate.common.StaticMergeElement;
 import ch.dvbern.lib.doctemplate.util.FormatHelper;
 import ch.dvbern.lib.doctemplate.util.LdtConstants;
 
-import net.sourceforge.rtf.RTFTemplate;
-import net.sourceforge.rtf.document.RTFDocument;
-import net.sourceforge.rtf.document.RTFElement;
-import net.sourceforge.rtf.document.RTFEndBookmark;
-import net.sourceforge.rtf.document.RTFField;
-import net.sourceforge.rtf.document.RTFStartBookmark;
-import net.sourceforge.rtf.helper.RTFTemplateBuilder;
-
 /**
  * Merged eine RTF-Vorlage mit Informationen, die Aufgrund der Bezeichnungen, die innerhalb der Vorlage als MERGE-Fields
- * enthalten sind zusammen. Die Komponente nutzt RTFTemplate (http://rtftemplate.sourceforge.net) als Basistechnologie.
- * Der Code in RTFTemplate ist in der Version 1.0.1-b13 nicht Thread-Safe!!!
+ * enthalten sind zusammen. Die Vorlage wird mit dem {@link RTFTemplateParser} in einem Durchgang zerlegt (frueher
+ * RTFTemplate, http://rtftemplate.sourceforge.net, dessen Zerlegung unveraendert nachgebildet ist). Die Engine haelt
+ * keinen Zustand zwischen Aufrufen, so dass parallele Merges moeglich sind.
  */
 public class RTFMergeEngine {
 
@@ -62,17 +60,24 @@ public class RTFMergeEngine {
 	private static final String ALTERNATE_SUFFIX = "_ALT";
 	private static final String FORMAT_SUFFIX = "_FMT";
 
-	private static final String DOCUMENT_CONTENT_BEGIN = "{\\*\\bkmkend DOCUMENT_CONTENT_BEGIN}";
-	private static final String DOCUMENT_CONTENT_END = "{\\*\\bkmkstart DOCUMENT_CONTENT_END}";
+	static final String DOCUMENT_CONTENT_BEGIN = "{\\*\\bkmkend DOCUMENT_CONTENT_BEGIN}";
+	static final String DOCUMENT_CONTENT_END = "{\\*\\bkmkstart DOCUMENT_CONTENT_END}";
+	private static final String INCLUDE_BEGIN = "{\\*\\bkmkstart DOCUMENT_INCLUDE_";
+	private static final String INCLUDE_END = "{\\*\\bkmkend DOCUMENT_INCLUDE_";
 
-	private static final String syncPoint = new String("RTFMergeEngine::syncPoint");
+	/** Kodierung des Ergebnisdokuments (bisher {@link String#getBytes()}) */
+	private static final Charset OUTPUT_CHARSET = Charset.defaultCharset();
+	private static final byte[] PICT_END = { '}', '}' };
+	private static final byte[] GROUP_END = { '}' };
+	private static final long IMAGE_CACHE_SIZE = 16L * 1024 * 1024;
+	private static final RTFImageEncoder IMAGE_ENCODER = new RTFImageEncoder(IMAGE_CACHE_SIZE);
+	private static final int TEMPLATE_CACHE_SIZE = 32;
 
 	/** Logger */
 	private static final Log log = LogFactory.getLog(RTFMergeEngine.class);
 
 	private final String name;
-	private Stack<BasicMergeElement> parseStack;
-	private Map<String, String> keyTranslationTable = null;
+	private final RTFTemplateCache templateCache = new RTFTemplateCache(TEMPLATE_CACHE_SIZE);
 
 	/**
 	 * Initialisierung der Engine mit einem kennzeichnenden Namen.
@@ -84,6 +89,25 @@ public class RTFMergeEngine {
 		this.name = name;
 	}
 
+	/**
+	 * Setzt die maximale Anzahl kompilierter Vorlagen, die diese Engine zwischenspeichert (Default 32). Bei
+	 * <code>0</code> wird jede Vorlage bei jedem Aufruf neu geparst.
+	 *
+	 * @param templateCacheSize maximale Anzahl Vorlagen im Cache
+	 */
+	public void setTemplateCacheSize(int templateCacheSize) {
+
+		this.templateCache.setMaxSize(templateCacheSize);
+	}
+
+	/**
+	 * Entfernt alle zwischengespeicherten Vorlagen.
+	 */
+	public void clearTemplateCache() {
+
+		this.templateCache.clear();
+	}
+
 	/**
 	 * Extrahiert den Inhalt eines Dokuments (ohne Header und Footer), damit dieser beispielsweise in ein Hauptdokument
 	 * eingefuegt werden kann.
@@ -93,20 +117,56 @@ public class RTFMergeEngine {
 	 */
 	public String extractDocumentContent(String originalContent) {
 
-		StringBuffer sb = new StringBuffer(new String(originalContent));
-		int pos = sb.indexOf(DOCUMENT_CONTENT_BEGIN);
-		if (pos > 0) {
-			sb.delete(0, pos + DOCUMENT_CONTENT_BEGIN.length());
+		int from = originalContent.indexOf(DOCUMENT_CONTENT_BEGIN);
+		from = from > 0 ? from + DOCUMENT_CONTENT_BEGIN.length() : 0;
+		int to = originalContent.indexOf(DOCUMENT_CONTENT_END, from);
+		return originalContent.substring(from, to > from ? to : originalContent.length());
+	}
+
+	/**
+	 * Schreibt den Inhalt eines Dokuments (ohne Header und Footer) nach <code>output</code>, siehe
+	 * {@link #extractDocumentContent(String)}. Der Stream wird nicht geschlossen.
+	 *
+	 * @param document Input-Dokument
+	 * @param output Ziel fuer den Inhalt zwischen den BEGIN/END-Bookmarks
+	 * @throws DocTemplateException
+	 */
+	public void extractDocumentContent(byte[] document, OutputStream output) throws DocTemplateException {
+
+		try {
+			RTFDocumentContentOutputStream content = new RTFDocumentContentOutputStream(output);
+			content.write(document);
+			content.finish();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
 		}
-		pos = sb.indexOf(DOCUMENT_CONTENT_END);
-		if (pos > 0) {
-			sb.setLength(pos);
+	}
+
+	/**
+	 * Merged ein Dokument und schreibt nur dessen Inhalt (ohne Header und Footer, siehe
+	 * {@link #extractDocumentContent(String)}) nach <code>output</code>. Vom Ergebnisdokument wird nur der Header
+	 * zwischengespeichert, der Stream wird nicht geschlossen.
+	 *
+	 * @param template kompilierte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer den Inhalt zwischen den BEGIN/END-Bookmarks
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocumentContent(CompiledRTFTemplate template, MergeSource mergeSource, OutputStream output)
+			throws DocTemplateException {
+
+		RTFDocumentContentOutputStream content = new RTFDocumentContentOutputStream(output);
+		getDocument(template, mergeSource, content);
+		try {
+			content.finish();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
 		}
-		return sb.toString();
 	}
 
 	/**
-	 * Fuegt Subdokumente aus <code>includesMap</code> in das Hauptdokument <code>holderTemplate</code> ein.
+	 * Fuegt Subdokumente aus <code>includesMap</code> in das Hauptdokument <code>holderTemplate</code> ein. Enthalten
+	 * Subdokumente selbst Include-Bookmarks, werden diese ebenfalls ersetzt.
 	 *
 	 * @param holderTemplate Hauptdokument
 	 * @param includesMap Subdokumente
@@ -114,22 +174,105 @@ public class RTFMergeEngine {
 	 */
 	public String includeSubDocuments(String holderTemplate, Map<String, StringBuffer> includesMap) {
 
-		StringBuffer sb = new StringBuffer(holderTemplate);
-		String INCLUDE_BEGIN = "{\\*\\bkmkstart DOCUMENT_INCLUDE_";
-		for (int start = sb.indexOf(INCLUDE_BEGIN); start > 0; start = sb.indexOf(INCLUDE_BEGIN)) {
-			int end = sb.indexOf("}", start);
-			String name = sb.substring(start + INCLUDE_BEGIN.length(), end);
+		StringBuilder sb = new StringBuilder(holderTemplate.length());
+		appendWithIncludes(holderTemplate, includesMap, sb, new HashSet<>());
+		return sb.toString();
+	}
 
-			String INCLUDE_END = "{\\*\\bkmkend DOCUMENT_INCLUDE_" + name + "}";
-			end = sb.indexOf(INCLUDE_END) + INCLUDE_END.length();
-			sb.delete(start, end);
+	private static void appendWithIncludes(String content, Map<String, StringBuffer> includesMap, StringBuilder sb, Set<String> active) {
+
+		int pos = 0;
+		for (int[] include = findInclude(content, 0); include != null; include = findInclude(content, pos)) {
+			sb.append(content, pos, include[0]);
+			String name = content.substring(include[0] + INCLUDE_BEGIN.length(), include[1]);
+			StringBuffer subDocument = includesMap.get(name);
+			if (subDocument != null) {
+				if (active.add(name)) {
+					appendWithIncludes(subDocument.toString(), includesMap, sb, active);
+					active.remove(name);
+				} else {
+					// rekursives Include nicht weiter aufloesen
+					sb.append(subDocument);
+				}
+			}
+			pos = include[2];
+		}
+		sb.append(content, pos, content.length());
+	}
 
-			StringBuffer include = includesMap.get(name);
-			if (include != null) {
-				sb.insert(start, include.toString());
+	/**
+	 * Fuegt Subdokumente in das Hauptdokument <code>holderTemplate</code> ein und schreibt das Ergebnis direkt nach
+	 * <code>output</code>. Das Hauptdokument wird einmal nach Include-Bookmarks durchsucht, die Abschnitte dazwischen und
+	 * die Subdokumente werden der Reihe nach geschrieben. Die Subdokumente werden erst beim Schreiben erzeugt und einzeln
+	 * zwischengespeichert, damit auch Dokumente mit tausenden Briefen mit beschraenktem Speicher zusammengesetzt werden
+	 * koennen. Include-Bookmarks innerhalb der Subdokumente werden wie bei
+	 * {@link #includeSubDocuments(String, Map)} ebenfalls ersetzt. Der Stream wird nicht geschlossen.
+	 *
+	 * @param holderTemplate Hauptdokument
+	 * @param includes Subdokumente nach Name des Include-Bookmarks
+	 * @param output Ziel fuer das zusammengefuegte Dokument
+	 * @throws DocTemplateException
+	 */
+	public void includeSubDocuments(String holderTemplate, Map<String, ? extends RTFInclude> includes, OutputStream output)
+			throws DocTemplateException {
+
+		try {
+			BufferedOutputStream bos = new BufferedOutputStream(output);
+			writeWithIncludes(holderTemplate, includes, bos, new HashSet<>());
+			bos.flush();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	private static void writeWithIncludes(String content, Map<String, ? extends RTFInclude> includes, OutputStream output,
+			Set<String> active) throws IOException, DocTemplateException {
+
+		int pos = 0;
+		for (int[] include = findInclude(content, 0); include != null; include = findInclude(content, pos)) {
+			output.write(content.substring(pos, include[0]).getBytes(OUTPUT_CHARSET));
+			String name = content.substring(include[0] + INCLUDE_BEGIN.length(), include[1]);
+			RTFInclude subDocument = includes.get(name);
+			if (subDocument != null) {
+				if (active.add(name)) {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					subDocument.writeTo(buffer);
+					String subContent = new String(buffer.toByteArray(), OUTPUT_CHARSET);
+					if (findInclude(subContent, 0) == null) {
+						buffer.writeTo(output);
+					} else {
+						writeWithIncludes(subContent, includes, output, active);
+					}
+					active.remove(name);
+				} else {
+					// rekursives Include nicht weiter aufloesen
+					subDocument.writeTo(output);
+				}
 			}
+			pos = include[2];
 		}
-		return sb.toString();
+		output.write(content.substring(pos).getBytes(OUTPUT_CHARSET));
+	}
+
+	/**
+	 * @return Beginn des Include-Bookmarks, Ende des Namens und Ende des Include-Bookmarks oder <code>null</code>
+	 */
+	private static int[] findInclude(String content, int fromIndex) {
+
+		int start = content.indexOf(INCLUDE_BEGIN, fromIndex);
+		if (start <= 0) {
+			return null;
+		}
+		int nameEnd = content.indexOf('}', start);
+		if (nameEnd < 0) {
+			return null;
+		}
+		String includeEnd = INCLUDE_END + content.substring(start + INCLUDE_BEGIN.length(), nameEnd) + '}';
+		int end = content.indexOf(includeEnd, nameEnd);
+		if (end < 0) {
+			return null;
+		}
+		return new int[] { start, nameEnd, end + includeEnd.length() };
 	}
 
 	/**
@@ -144,8 +287,151 @@ public class RTFMergeEngine {
 	 */
 	public byte[] getDocument(Reader reader, MergeSource mergeSource, Map<String, String> keyTranslationTable) throws DocTemplateException {
 
-		this.keyTranslationTable = keyTranslationTable;
-		return getDocument(reader, mergeSource);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		getDocument(reader, mergeSource, keyTranslationTable, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>reader</code> ein Dokument und schreibt dieses direkt nach <code>output</code>,
+	 * ohne das Ergebnis als Ganzes im Speicher aufzubauen. Der Stream wird nicht geschlossen.
+	 *
+	 * @param reader Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(Reader reader, MergeSource mergeSource, Map<String, String> keyTranslationTable, OutputStream output)
+			throws DocTemplateException {
+
+		CompiledRTFTemplate template;
+		if (this.templateCache.isEnabled()) {
+			String content = readTemplate(reader);
+			RTFTemplateCache.Key key = RTFTemplateCache.contentKey(content, keyTranslationTable);
+			template = this.templateCache.get(key);
+			if (template == null) {
+				template = compile(content, keyTranslationTable);
+				this.templateCache.put(key, template);
+			}
+		} else {
+			template = compile(reader, keyTranslationTable);
+		}
+		getDocument(template, mergeSource, output);
+	}
+
+	/**
+	 * Merged aus der unter <code>templateId</code> zwischengespeicherten Vorlage ein Dokument und gibt dieses als
+	 * byte[] zurueck. Nur wenn die Vorlage noch nicht im Cache ist, wird sie aus <code>reader</code> gelesen.
+	 *
+	 * @param templateId vom Aufrufer vergebene, eindeutige Id der Vorlage
+	 * @param reader Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(String templateId, Reader reader, MergeSource mergeSource, Map<String, String> keyTranslationTable)
+			throws DocTemplateException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		getDocument(templateId, reader, mergeSource, keyTranslationTable, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Merged aus der unter <code>templateId</code> zwischengespeicherten Vorlage ein Dokument und schreibt dieses nach
+	 * <code>output</code>. Nur wenn die Vorlage noch nicht im Cache ist, wird sie aus <code>reader</code> gelesen.
+	 *
+	 * @param templateId vom Aufrufer vergebene, eindeutige Id der Vorlage
+	 * @param reader Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(String templateId, Reader reader, MergeSource mergeSource, Map<String, String> keyTranslationTable,
+			OutputStream output) throws DocTemplateException {
+
+		RTFTemplateCache.Key key = RTFTemplateCache.idKey(templateId, keyTranslationTable);
+		CompiledRTFTemplate template = this.templateCache.get(key);
+		if (template == null) {
+			template = compile(reader, keyTranslationTable);
+			this.templateCache.put(key, template);
+		}
+		getDocument(template, mergeSource, output);
+	}
+
+	/**
+	 * Merged aus einer kompilierten Vorlage ein Dokument und gibt dieses als byte[] zurueck.
+	 *
+	 * @param template mit {@link #compile(Reader, Map)} erstellte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(CompiledRTFTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		getDocument(template, mergeSource, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Merged aus einer kompilierten Vorlage ein Dokument und schreibt dieses nach <code>output</code>. Der Stream wird
+	 * nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(Reader, Map)} erstellte Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocument(CompiledRTFTemplate template, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		try {
+			BufferedOutputStream bos = new BufferedOutputStream(output);
+			template.getRoot().getContent(new MergeContext(mergeSource), mergeSource, bos);
+			bos.flush();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * Parst die Vorlage <code>reader</code> und baut daraus den Baum von MergeElementen auf. Die kompilierte Vorlage
+	 * kann fuer beliebig viele Merges wiederverwendet werden.
+	 *
+	 * @param reader Bezugsquelle fuer die Vorlage
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @return kompilierte Vorlage
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public CompiledRTFTemplate compile(Reader reader, Map<String, String> keyTranslationTable) throws DocTemplateException {
+
+		return compile(readTemplate(reader), keyTranslationTable);
+	}
+
+	private CompiledRTFTemplate compile(String content, Map<String, String> keyTranslationTable) throws DocTemplateException {
+
+		log.debug(name + ": RTF Template parsen");
+		MergeTreeBuilder builder = new MergeTreeBuilder(keyTranslationTable);
+		RTFTemplateParser.parse(content, builder);
+		return new CompiledRTFTemplate(builder.getRoot());
+	}
+
+	private static String readTemplate(Reader reader) throws DocTemplateException {
+
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[8192];
+			int read;
+			while ((read = reader.read(buf)) != -1) {
+				sb.append(buf, 0, read);
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
 	}
 
 	/**
@@ -159,105 +445,93 @@ public class RTFMergeEngine {
 	 */
 	public byte[] getDocument(Reader reader, MergeSource mergeSource) throws DocTemplateException {
 
-		synchronized (syncPoint) {
-			try {
-				RTFTemplate rtfTemplate = RTFTemplateBuilder.newRTFTemplateBuilder().newRTFTemplate();
-				rtfTemplate.setTemplate(reader);
-
-				// Template mit MergeSourcen aufbereiten
-				log.debug(name + ": RTF Template in Substrukturen transformieren");
-				RTFDocument rtfDoc = rtfTemplate.transform();
-				BasicMergeElement bme = new BasicMergeElement();
-				parseStack = new Stack<BasicMergeElement>();
-				parseStack.push(bme);
-				log.debug(name + ": RTF Template parsen");
-				parseTemplate(rtfDoc);
-				if (parseStack.size() > 1) {
-					throw new DocTemplateException("error.rtftemplate.invalid.structure");
+		return getDocument(reader, mergeSource, null);
+	}
+
+	/**
+	 * Baut aus den Bestandteilen der Vorlage den Baum von MergeElementen auf.
+	 */
+	private class MergeTreeBuilder implements RTFTemplateParser.Handler {
+
+		private final Map<String, String> keyTranslationTable;
+		private final Stack<BasicMergeElement> parseStack = new Stack<BasicMergeElement>();
+
+		MergeTreeBuilder(Map<String, String> keyTranslationTable) {
+
+			this.keyTranslationTable = keyTranslationTable;
+			this.parseStack.push(new BasicMergeElement());
+		}
+
+		BasicMergeElement getRoot() throws DocTemplateException {
+
+			if (parseStack.size() > 1) {
+				throw new DocTemplateException("error.rtftemplate.invalid.structure");
+			}
+			return parseStack.peek();
+		}
+
+		@Override
+		public void text(String rtfCode) {
+
+			parseStack.peek().addMergeElement(new StaticMergeElement(rtfCode, OUTPUT_CHARSET));
+		}
+
+		@Override
+		public void field(String key, String rtfCode) {
+
+			parseStack.peek().addMergeElement(new FieldMergeElement(translate(key, keyTranslationTable), rtfCode));
+		}
+
+		@Override
+		public void startBookmark(String bmName, String rtfCode) {
+
+			if (bmName.startsWith(CONDITION_BEGIN)) {
+				String key = bmName.substring(CONDITION_BEGIN.length());
+				ConditionMergeElement cme = new ConditionMergeElement(name, translate(key, keyTranslationTable));
+				cme.initFuerRtf();
+				parseStack.peek().addMergeElement(cme);
+				parseStack.push(cme);
+			} else if (bmName.startsWith(ITERATION_BEGIN)) {
+				String key = bmName.substring(ITERATION_BEGIN.length());
+				IterationMergeElement ime = new IterationMergeElement(name, translate(key, keyTranslationTable));
+				ime.initFuerRtf();
+				parseStack.peek().addMergeElement(ime);
+				parseStack.push(ime);
+			} else if (bmName.startsWith(SORTFIELD_PREFIX)) {
+				String key = bmName.substring(SORTFIELD_PREFIX.length());
+				// mehrere gleiche Textmarken mit ALT-Suffix
+				// intern ohne ALT-Suffix anwenden
+				int altPos = key.indexOf(ALTERNATE_SUFFIX);
+				if (altPos > 0) {
+					key = key.substring(0, altPos);
+				}
+				Object ime = parseStack.peek();
+				if (ime instanceof IterationMergeElement) {
+					((IterationMergeElement) ime).addSortFieldKey(key);
+				} else {
+					log.warn("invalid structure: no IterationMergeElement on parse stack");
 				}
-				return bme.getContent(new MergeContext(mergeSource), mergeSource).getBytes();
-			} catch (DocTemplateException sfe) {
-				throw sfe;
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+			} else if (!bmName.startsWith(CONDITION_END) && !bmName.startsWith(ITERATION_END)) {
+				text(rtfCode);
 			}
 		}
-	}
 
-	private void parseTemplate(RTFElement rtfElement) throws DocTemplateException {
+		@Override
+		public void endBookmark(String bmName, String rtfCode) throws DocTemplateException {
 
-		for (Object o : rtfElement.getElementList()) {
-			if (o instanceof RTFElement) {
-				if (o instanceof RTFField) {
-					String key = ((RTFField) o).getName();
-					String rtfCode = ((RTFField) o).getRTFContentOfSimpleElement();
-					if (key == null || key.startsWith("$")) {
-						StaticMergeElement sme = new StaticMergeElement(rtfCode);
-						parseStack.peek().addMergeElement(sme);
-					} else {
-						FieldMergeElement fme = new FieldMergeElement(translate(key), rtfCode);
-						parseStack.peek().addMergeElement(fme);
-					}
-				} else if (o instanceof RTFStartBookmark) {
-					RTFStartBookmark bm = (RTFStartBookmark) o;
-					String bmName = bm.getName();
-					if (bmName.startsWith(CONDITION_BEGIN)) {
-						String key = bmName.substring(CONDITION_BEGIN.length());
-						ConditionMergeElement cme = new ConditionMergeElement(name, translate(key));
-						cme.initFuerRtf();
-						parseStack.peek().addMergeElement(cme);
-						parseStack.push(cme);
-					} else if (bmName.startsWith(ITERATION_BEGIN)) {
-						String key = bmName.substring(ITERATION_BEGIN.length());
-						IterationMergeElement ime = new IterationMergeElement(name, translate(key));
-						ime.initFuerRtf();
-						parseStack.peek().addMergeElement(ime);
-						parseStack.push(ime);
-					} else if (bmName.startsWith(SORTFIELD_PREFIX)) {
-						String key = bmName.substring(SORTFIELD_PREFIX.length());
-						// mehrere gleiche Textmarken mit ALT-Suffix
-						// intern ohne ALT-Suffix anwenden
-						int altPos = key.indexOf(ALTERNATE_SUFFIX);
-						if (altPos > 0) {
-							key = key.substring(0, altPos);
-						}
-						Object ime = parseStack.peek();
-						if (ime instanceof IterationMergeElement) {
-							((IterationMergeElement) ime).addSortFieldKey(key);
-						} else {
-							log.warn("invalid structure: no IterationMergeElement on parse stack");
-						}
-					} else if (!bmName.startsWith(CONDITION_END) && !bmName.startsWith(ITERATION_END)) {
-						String s = bm.getRTFContentOfSimpleElement();
-						StaticMergeElement sme = new StaticMergeElement(s);
-						parseStack.peek().addMergeElement(sme);
-					}
-				} else if (o instanceof RTFEndBookmark) {
-					RTFEndBookmark bm = (RTFEndBookmark) o;
-					String bmName = bm.getName();
-					if (bmName.startsWith(CONDITION_END) || bmName.startsWith(ITERATION_END)) {
-						if (parseStack.size() > 1) {
-							parseStack.pop();
-						} else {
-							throw new DocTemplateException("error.rtftemplate.invalid.structure");
-						}
-					} else if (!bmName.startsWith(CONDITION_BEGIN) && !bmName.startsWith(ITERATION_BEGIN) && !bmName.startsWith(SORTFIELD_PREFIX)) {
-						String s = bm.getRTFContentOfSimpleElement();
-						StaticMergeElement sme = new StaticMergeElement(s);
-						parseStack.peek().addMergeElement(sme);
-					}
+			if (bmName.startsWith(CONDITION_END) || bmName.startsWith(ITERATION_END)) {
+				if (parseStack.size() > 1) {
+					parseStack.pop();
 				} else {
-					parseTemplate((RTFElement) o);
+					throw new DocTemplateException("error.rtftemplate.invalid.structure");
 				}
-			} else {
-				String s = o.toString();
-				StaticMergeElement sme = new StaticMergeElement(s);
-				parseStack.peek().addMergeElement(sme);
+			} else if (!bmName.startsWith(CONDITION_BEGIN) && !bmName.startsWith(ITERATION_BEGIN) && !bmName.startsWith(SORTFIELD_PREFIX)) {
+				text(rtfCode);
 			}
 		}
 	}
 
-	private String translate(String key) {
+	private static String translate(String key, Map<String, String> keyTranslationTable) {
 
 		String result = key;
 		if (keyTranslationTable != null) {
@@ -271,7 +545,11 @@ public class RTFMergeEngine {
 	private class FieldMergeElement extends BasicMergeElement {
 
 		private final String key;
-		private final String rtfCode;
+		private final String keyWithoutFormatSuffix;
+		private final String formatSuffix;
+		private final byte[] rtfCode;
+		/** RTF Code vor dem Feldinhalt, falls das Feld in einer eigenen rtlch-Gruppe steht */
+		private final byte[] runPrefix;
 
 		/**
 		 * Konstruktor eines MergeElements, dessen Ausgabe dynamisch ermittelt wird
@@ -282,7 +560,27 @@ public class RTFMergeEngine {
 		public FieldMergeElement(String key, String rtfCode) {
 
 			this.key = key;
-			this.rtfCode = rtfCode;
+			this.rtfCode = rtfCode.getBytes(OUTPUT_CHARSET);
+
+			// Format-Suffix aus key extrahieren
+			int i = key.indexOf(FORMAT_SUFFIX);
+			if (i > 0) {
+				this.formatSuffix = key.substring(i + FORMAT_SUFFIX.length());
+				this.keyWithoutFormatSuffix = key.substring(0, i);
+			} else {
+				this.formatSuffix = null;
+				this.keyWithoutFormatSuffix = key;
+			}
+
+			byte[] prefix = null;
+			int rtlchPos = rtfCode.indexOf("{\\rtlch\\fcs1");
+			if (rtlchPos >= 0) {
+				int mfldPos = rtfCode.indexOf(" MERGEFIELD", rtlchPos);
+				if (mfldPos > 0 && mfldPos < rtfCode.indexOf("}", rtlchPos)) {
+					prefix = rtfCode.substring(rtlchPos, mfldPos).getBytes(OUTPUT_CHARSET);
+				}
+			}
+			this.runPrefix = prefix;
 		}
 
 		/*
@@ -295,38 +593,37 @@ public class RTFMergeEngine {
 		@Override
 		public String getContent(MergeContext ctx, MergeSource mergeSource) throws DocTemplateException {
 
-			log.debug(name + ": evaluate template source with key " + key);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			getContent(ctx, mergeSource, baos);
+			return new String(baos.toByteArray(), OUTPUT_CHARSET);
+		}
 
-			// Format-Suffix aus key extrahieren
-			String keyWithoutFormatSuffix = key, formatSuffix = null;
-			int i = key.indexOf(FORMAT_SUFFIX);
-			if (i > 0) {
-				formatSuffix = key.substring(i + FORMAT_SUFFIX.length());
-				keyWithoutFormatSuffix = key.substring(0, i);
-			}
+		@Override
+		public void getContent(MergeContext ctx, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+			log.debug(name + ": evaluate template source with key " + key);
 
 			Object data = mergeSource.getData(ctx, keyWithoutFormatSuffix);
 			if (data instanceof Image) {
-				return getImageAsRTF((Image) data, formatSuffix);
+				writeImageAsRTF((Image) data, formatSuffix, output);
+				return;
 			}
-			if (data != null) {
-				String dataAsString = FormatHelper.getDataAsString(data, StringUtils.isEmpty(formatSuffix) ? getDefaultFormatter(data) : formatSuffix);
-				dataAsString = convertRtfEncodings(dataAsString);
-				int rtlchPos = rtfCode.indexOf("{\\rtlch\\fcs1");
-				if (rtlchPos >= 0) {
-					int mfldPos = rtfCode.indexOf(" MERGEFIELD", rtlchPos);
-					if (mfldPos > 0 && mfldPos < rtfCode.indexOf("}", rtlchPos)) {
-						StringBuffer replacement = new StringBuffer();
-						replacement.append(rtfCode.substring(rtlchPos, mfldPos));
-						replacement.append(dataAsString);
-						replacement.append("}");
-						return replacement.toString();
+			try {
+				if (data != null) {
+					String dataAsString = FormatHelper.getDataAsString(data, StringUtils.isEmpty(formatSuffix) ? getDefaultFormatter(data) : formatSuffix);
+					if (runPrefix != null) {
+						output.write(runPrefix);
+						RTFCharEncoder.encode(dataAsString, output);
+						output.write(GROUP_END);
+					} else {
+						RTFCharEncoder.encode(dataAsString, output);
 					}
+				} else {
+					log.warn(name + ": no template source with key " + key);
+					output.write(rtfCode);
 				}
-				return dataAsString;
-			} else {
-				log.warn(name + ": no template source with key " + key);
-				return rtfCode;
+			} catch (IOException e) {
+				throw new DocTemplateException(e);
 			}
 		}
 
@@ -376,19 +673,20 @@ public class RTFMergeEngine {
 			return LdtConstants.DEFAULT_FLOAT_FORMAT;
 		}
 
-		private String getImageAsRTF(Image image, String formatSuffix) throws DocTemplateException {
+		private void writeImageAsRTF(Image image, String formatSuffix, OutputStream output) throws DocTemplateException {
 
-			StringBuilder result = new StringBuilder("{\\*\\shppict {\\pict");
+			StringBuilder header = new StringBuilder("{\\*\\shppict {\\pict");
 			if (Image.Format.PNG == image.getFormat()) {
-				result.append("\\pngblip");
+				header.append("\\pngblip");
 			} else if (Image.Format.JPEG == image.getFormat()) {
-				result.append("\\jpegblip");
+				header.append("\\jpegblip");
 			} else if (Image.Format.EMF == image.getFormat()) {
-				result.append("\\emfblip");
+				header.append("\\emfblip");
 			} else {
 				throw new DocTemplateException("unknown image format: " + image.getFormat());
 			}
 			long w = image.getWidth(), h = image.getHeight();
+			boolean withContent = true;
 			try {
 				if (formatSuffix != null && formatSuffix.length() > 0) {
 					StringTokenizer st = new StringTokenizer(formatSuffix, "_");
@@ -399,50 +697,27 @@ public class RTFMergeEngine {
 						h = Integer.parseInt(st.nextToken());
 					}
 				}
-				result.append("\\picw").append(w).append("\\pich").append(h);
-				result.append("\\picwgoal").append(w * 15).append("\\pichgoal").append(h * 15);
-				result.append(" ");
-				ByteArrayInputStream bais = new ByteArrayInputStream(image.getBytes());
-				DataInputStream dis = new DataInputStream(bais);
-				while (dis.available() > 0) {
-					String s = Integer.toHexString(dis.read());
-					if (s.length() % 2 != 0) {
-						result.append("0");
-					}
-					result.append(s);
-				}
-			} catch (IOException ioe) {
-				log.warn("error reading image: " + formatSuffix, ioe);
+				header.append("\\picw").append(w).append("\\pich").append(h);
+				header.append("\\picwgoal").append(w * 15).append("\\pichgoal").append(h * 15);
+				header.append(" ");
 			} catch (NumberFormatException nfe) {
 				log.warn("invalid image format suffix: " + formatSuffix, nfe);
+				withContent = false;
 			}
-			result.append("}}");
-			return result.toString();
-		}
-
-		private String convertRtfEncodings(String data) {
-
-			// special character encodings
-			StringBuffer sb = new StringBuffer();
-			int length = data.length();
-			for (int i = 0; i < length; i++) {
-				char c = data.charAt(i);
-				if (c == '\n') {
-					sb.append("\\line "); // LF einfuegen
-				} else if (c == '\r') {
-					sb.append(""); // CRs NICHT einfuegen
-				} else if (c > 0xFF || c < 0x00) {
-					sb.append("\\u");
-					sb.append(Short.toString((short) c).toCharArray());
-					sb.append("?");
-				} else if (c >= 0x80 || c < 0x20 || c == 0x5C || c == 0x7B || c == 0x7D) {
-					sb.append("\\'");
-					sb.append(Integer.toHexString(c));
-				} else {
-					sb.append(c);
+			try {
+				output.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+				if (withContent) {
+					try {
+						IMAGE_ENCODER.writeHex(image, output);
+					} catch (RTFImageEncoder.ImageReadException ioe) {
+						// nur Lesefehler ohne geschriebene Daten, Schreibfehler fuehren zum Abbruch
+						log.warn("error reading image: " + formatSuffix, ioe);
+					}
 				}
+				output.write(PICT_END);
+			} catch (IOException e) {
+				throw new DocTemplateException(e);
 			}
-			return sb.toString();
 		}
 	}
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+/**
+ * LRU-Cache fuer kompilierte RTF-Vorlagen. Eine Vorlage wird ueber eine vom Aufrufer vergebene Id oder ueber einen
+ * Hashwert (SHA-256) ihres Inhalts identifiziert, jeweils zusammen mit der verwendeten Key-Uebersetzungstabelle.
+ */
+class RTFTemplateCache {
+
+	private final Map<Key, CompiledRTFTemplate> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private int maxSize;
+
+	/**
+	 * @param maxSize maximale Anzahl Vorlagen im Cache, <code>0</code> deaktiviert den Cache
+	 */
+	RTFTemplateCache(int maxSize) {
+
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param templateId Id der Vorlage
+	 * @param keyTranslationTable Uebersetzungstabelle, mit der die Vorlage kompiliert wurde
+	 * @return Schluessel fuer den Cache
+	 */
+	static Key idKey(String templateId, Map<String, String> keyTranslationTable) {
+
+		return new Key("id:" + templateId, keyTranslationTable);
+	}
+
+	/**
+	 * @param content Inhalt der Vorlage
+	 * @param keyTranslationTable Uebersetzungstabelle, mit der die Vorlage kompiliert wurde
+	 * @return Schluessel fuer den Cache
+	 */
+	static Key contentKey(String content, Map<String, String> keyTranslationTable) {
+
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder("sha:");
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return new Key(sb.toString(), keyTranslationTable);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @param key Schluessel
+	 * @return die zwischengespeicherte Vorlage oder <code>null</code>
+	 */
+	CompiledRTFTemplate get(Key key) {
+
+		synchronized (this.cache) {
+			return this.cache.get(key);
+		}
+	}
+
+	/**
+	 * Legt eine Vorlage ab und verdraengt bei Bedarf die am laengsten nicht verwendeten Eintraege.
+	 *
+	 * @param key Schluessel
+	 * @param template kompilierte Vorlage
+	 */
+	void put(Key key, CompiledRTFTemplate template) {
+
+		synchronized (this.cache) {
+			if (this.maxSize > 0) {
+				this.cache.put(key, template);
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * @param maxSize maximale Anzahl Vorlagen im Cache, <code>0</code> deaktiviert den Cache
+	 */
+	void setMaxSize(int maxSize) {
+
+		synchronized (this.cache) {
+			this.maxSize = maxSize;
+			evict();
+		}
+	}
+
+	/**
+	 * @return <code>false</code>, wenn der Cache deaktiviert ist
+	 */
+	boolean isEnabled() {
+
+		synchronized (this.cache) {
+			return this.maxSize > 0;
+		}
+	}
+
+	/**
+	 * @return Anzahl Vorlagen im Cache
+	 */
+	int size() {
+
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	/**
+	 * Entfernt alle Vorlagen aus dem Cache.
+	 */
+	void clear() {
+
+		synchronized (this.cache) {
+			this.cache.clear();
+		}
+	}
+
+	private void evict() {
+
+		Iterator<Key> it = this.cache.keySet().iterator();
+		while (this.cache.size() > this.maxSize && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	static final class Key {
+
+		private final String id;
+		private final Map<String, String> keyTranslationTable;
+
+		Key(String id, Map<String, String> keyTranslationTable) {
+
+			this.id = id;
+			this.keyTranslationTable = keyTranslationTable == null ? null : new HashMap<>(keyTranslationTable);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return new EqualsBuilder().append(this.id, other.id).append(this.keyTranslationTable, other.keyTranslationTable).isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+
+			return new HashCodeBuilder().append(this.id).append(this.keyTranslationTable).toHashCode();
+		}
+	}
+}
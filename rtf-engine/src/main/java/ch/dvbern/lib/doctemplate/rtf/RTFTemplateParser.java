@@ -0,0 +1,530 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+
+/**
+ * Zerlegt eine RTF-Vorlage in einem Durchgang in statischen RTF-Code, Felder (<code>{\field ...}</code>) und Textmarken
+ * (<code>{\*\bkmkstart ...}</code>, <code>{\*\bkmkend ...}</code>). Tabellenzeilen, Seitenumbrueche und
+ * Benutzereigenschaften werden nur soweit erkannt, wie sie die Aufteilung des Textes beeinflussen.
+ * <p>
+ * Die Zerlegung entspricht derjenigen von RTFTemplate 1.0.1-b13 (RTFDocumentHandler mit anschliessender Transformation
+ * ohne Kontext), auf der die Engine frueher aufgebaut war, so dass bestehende Vorlagen dieselben Ergebnisdokumente
+ * liefern. Insbesondere werden in Feldern und Textmarken Zeilenumbrueche entfernt und der Text nach der letzten
+ * schliessenden Klammer ignoriert.
+ */
+final class RTFTemplateParser {
+
+	/**
+	 * Empfaenger der erkannten Bestandteile in der Reihenfolge ihres Auftretens.
+	 */
+	interface Handler {
+
+		/**
+		 * @param rtfCode statischer RTF-Code
+		 * @throws DocTemplateException
+		 */
+		void text(String rtfCode) throws DocTemplateException;
+
+		/**
+		 * @param name Name des Feldes (z.B. MERGEFIELD)
+		 * @param rtfCode RTF-Code des ganzen Feldes
+		 * @throws DocTemplateException
+		 */
+		void field(String name, String rtfCode) throws DocTemplateException;
+
+		/**
+		 * @param name Name der Textmarke
+		 * @param rtfCode RTF-Code der Textmarke
+		 * @throws DocTemplateException
+		 */
+		void startBookmark(String name, String rtfCode) throws DocTemplateException;
+
+		/**
+		 * @param name Name der Textmarke
+		 * @param rtfCode RTF-Code der Textmarke
+		 * @throws DocTemplateException
+		 */
+		void endBookmark(String name, String rtfCode) throws DocTemplateException;
+	}
+
+	private enum Kind {
+		DOCUMENT, ROW, FIELD, USER_PROPERTY, START_BOOKMARK, END_BOOKMARK, PAGE
+	}
+
+	/**
+	 * Bestandteil des Dokuments. Der Inhalt besteht aus Textabschnitten ({@link StringBuilder}) und weiteren Elementen.
+	 * Tabellenzeilen haben keine eigene Liste, sondern schreiben in die Liste ihres Containers.
+	 */
+	private static final class Element {
+
+		private final Kind kind;
+		private final List<Object> content;
+		private Element parent;
+		private StringBuilder current;
+
+		Element(Kind kind, List<Object> content) {
+
+			this.kind = kind;
+			this.content = content;
+		}
+
+		void append(CharSequence s, int start, int end) {
+
+			text().append(s, start, end);
+		}
+
+		void append(char c) {
+
+			text().append(c);
+		}
+
+		private StringBuilder text() {
+
+			if (this.current == null) {
+				this.current = new StringBuilder();
+				this.content.add(this.current);
+			}
+			return this.current;
+		}
+
+		void add(Element element) {
+
+			this.current = null;
+			element.parent = this;
+			if (element.kind != Kind.ROW) {
+				this.content.add(element);
+			}
+		}
+
+		/**
+		 * @return den einzigen Textabschnitt oder <code>null</code>, wenn das Element weitere Elemente enthaelt
+		 */
+		StringBuilder simpleContent() {
+
+			if (this.content.size() == 1 && this.content.get(0) instanceof StringBuilder) {
+				return (StringBuilder) this.content.get(0);
+			}
+			return null;
+		}
+	}
+
+	private final CharSequence rtf;
+	private final Deque<Element> fields = new ArrayDeque<>();
+	private final Deque<Integer> fieldLevels = new ArrayDeque<>();
+	private Element document;
+	private Element currentElement;
+	/** Element, das die naechste schliessende Klammer erhaelt (Textmarke, Tabellenzeile, Benutzereigenschaft) */
+	private Element lastElement;
+	private int level;
+	private int currentLevel;
+	/** Anzahl oeffnender Klammern, die dem naechsten Element vorangestellt werden */
+	private int pendingGroups;
+	private int starSlashStart = -1, starSlashEnd;
+
+	private RTFTemplateParser(CharSequence rtf) {
+
+		this.rtf = rtf;
+	}
+
+	/**
+	 * Zerlegt die Vorlage <code>rtf</code> und meldet die Bestandteile an <code>handler</code>.
+	 *
+	 * @param rtf Vorlage
+	 * @param handler Empfaenger
+	 * @throws DocTemplateException bei einer ungueltigen Gruppenstruktur
+	 */
+	static void parse(CharSequence rtf, Handler handler) throws DocTemplateException {
+
+		RTFTemplateParser parser = new RTFTemplateParser(rtf);
+		parser.tokenize();
+		if (parser.document == null) {
+			throw new DocTemplateException("error.rtftemplate.invalid.structure");
+		}
+		StringBuilder text = new StringBuilder();
+		emit(parser.document.content, true, handler, text);
+		if (text.length() > 0) {
+			handler.text(text.toString());
+		}
+	}
+
+	private void tokenize() throws DocTemplateException {
+
+		int length = this.rtf.length();
+		int tokenStart = 0;
+		for (int i = 0; i < length; i++) {
+			char c = this.rtf.charAt(i);
+			if (c == '{') {
+				token(tokenStart, i);
+				startGroup(++this.level);
+				tokenStart = i + 1;
+			} else if (c == '}') {
+				token(tokenStart, i);
+				if (this.level == 0) {
+					throw new DocTemplateException("error.rtftemplate.invalid.structure");
+				}
+				endGroup(this.level--);
+				tokenStart = i + 1;
+			} else if (c == '\\') {
+				token(tokenStart, i);
+				tokenStart = i;
+			}
+		}
+		// Text nach der letzten Klammer wird (wie bei RTFTemplate) nicht uebernommen
+	}
+
+	private void token(int start, int end) throws DocTemplateException {
+
+		if (start >= end) {
+			return;
+		}
+		int ts = start, te = end;
+		while (ts < te && this.rtf.charAt(ts) <= ' ') {
+			ts++;
+		}
+		while (te > ts && this.rtf.charAt(te - 1) <= ' ') {
+			te--;
+		}
+		if (ts < te && this.rtf.charAt(ts) == '\\') {
+			if (equals(ts, te, "\\trowd")) {
+				startRow(start, end);
+				return;
+			}
+			if (equals(ts, te, "\\row")) {
+				endRow(start, end);
+				return;
+			}
+			if (equals(ts, te, "\\intbl")) {
+				inTable(start, end);
+				return;
+			}
+			if (equals(ts, te, "\\field")) {
+				startField(start, end);
+				return;
+			}
+			if (equals(ts, te, "\\*")) {
+				this.starSlashStart = start;
+				this.starSlashEnd = end;
+				return;
+			}
+			if (startsWith(ts, te, "\\bkmkstart")) {
+				bookmark(Kind.START_BOOKMARK, start, end);
+				return;
+			}
+			if (startsWith(ts, te, "\\bkmkend")) {
+				bookmark(Kind.END_BOOKMARK, start, end);
+				return;
+			}
+			if (equals(ts, te, "\\page")) {
+				startPage(start, end);
+				return;
+			}
+			if (startsWith(ts, te, "\\propname")) {
+				startUserProperty(start, end);
+				return;
+			}
+			if (startsWith(ts, te, "\\staticval")) {
+				endUserProperty(start, end);
+				return;
+			}
+		}
+		Element element = current();
+		flushPendingGroups(element);
+		appendStarSlash(element);
+		element.append(this.rtf, start, end);
+	}
+
+	private boolean equals(int start, int end, String keyword) {
+
+		return end - start == keyword.length() && startsWith(start, end, keyword);
+	}
+
+	private boolean startsWith(int start, int end, String keyword) {
+
+		int length = keyword.length();
+		if (end - start < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (this.rtf.charAt(start + i) != keyword.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Element current() throws DocTemplateException {
+
+		if (this.currentElement == null) {
+			throw new DocTemplateException("error.rtftemplate.invalid.structure");
+		}
+		return this.currentElement;
+	}
+
+	private void flushPendingGroups(Element element) {
+
+		for (; this.pendingGroups > 0; this.pendingGroups--) {
+			element.append('{');
+		}
+	}
+
+	private void appendStarSlash(Element element) {
+
+		if (this.starSlashStart >= 0) {
+			element.append(this.rtf, this.starSlashStart, this.starSlashEnd);
+			this.starSlashStart = -1;
+		}
+	}
+
+	private void startGroup(int groupLevel) {
+
+		this.currentLevel = groupLevel;
+		if (groupLevel == 1) {
+			this.document = new Element(Kind.DOCUMENT, new ArrayList<>());
+			this.currentElement = this.document;
+			this.document.append('{');
+		} else {
+			this.pendingGroups++;
+		}
+	}
+
+	private void endGroup(int groupLevel) throws DocTemplateException {
+
+		this.currentLevel = groupLevel;
+		flushPendingGroups(current());
+		if (this.lastElement != null) {
+			this.lastElement.append('}');
+			this.lastElement = null;
+			return;
+		}
+		current().append('}');
+		if (!this.fieldLevels.isEmpty() && this.fieldLevels.peek().intValue() == groupLevel) {
+			this.fields.pop();
+			this.fieldLevels.pop();
+			if (this.currentElement.kind == Kind.FIELD) {
+				this.currentElement = this.currentElement.parent;
+			}
+		}
+	}
+
+	private void startRow(int start, int end) throws DocTemplateException {
+
+		Element element = current();
+		Element row = element;
+		if (element.kind != Kind.ROW) {
+			row = new Element(Kind.ROW, element.content);
+		}
+		flushPendingGroups(row);
+		row.append(this.rtf, start, end);
+		if (row != element) {
+			element.add(row);
+		}
+		this.currentElement = row;
+	}
+
+	private void endRow(int start, int end) throws DocTemplateException {
+
+		Element element = current();
+		flushPendingGroups(element);
+		this.lastElement = element;
+		element.append(this.rtf, start, end);
+		this.currentElement = element.parent;
+	}
+
+	private void inTable(int start, int end) throws DocTemplateException {
+
+		Element element = current();
+		if (element.kind == Kind.DOCUMENT) {
+			// der laufende Textabschnitt wird zum ersten Abschnitt der neuen Zeile
+			Element row = new Element(Kind.ROW, element.content);
+			row.current = element.current;
+			if (row.current == null) {
+				row.append(this.rtf, start, start);
+			}
+			element.add(row);
+			this.currentElement = row;
+			element = row;
+		}
+		element.append(this.rtf, start, end);
+	}
+
+	private void startField(int start, int end) throws DocTemplateException {
+
+		Element field = new Element(Kind.FIELD, new ArrayList<>());
+		flushPendingGroups(field);
+		field.append(this.rtf, start, end);
+		current().add(field);
+		this.currentElement = field;
+		this.fields.push(field);
+		this.fieldLevels.push(Integer.valueOf(this.currentLevel));
+	}
+
+	private void bookmark(Kind kind, int start, int end) throws DocTemplateException {
+
+		Element bookmark = new Element(kind, new ArrayList<>(1));
+		flushPendingGroups(bookmark);
+		appendStarSlash(bookmark);
+		bookmark.append(this.rtf, start, end);
+		current().add(bookmark);
+		this.lastElement = bookmark;
+	}
+
+	private void startPage(int start, int end) throws DocTemplateException {
+
+		Element page = new Element(Kind.PAGE, new ArrayList<>(1));
+		page.append(this.rtf, start, end);
+		current().add(page);
+	}
+
+	private void startUserProperty(int start, int end) throws DocTemplateException {
+
+		Element userProperty = new Element(Kind.USER_PROPERTY, new ArrayList<>());
+		flushPendingGroups(userProperty);
+		userProperty.append(this.rtf, start, end);
+		current().add(userProperty);
+		this.currentElement = userProperty;
+	}
+
+	private void endUserProperty(int start, int end) throws DocTemplateException {
+
+		Element userProperty = current();
+		if (userProperty.kind != Kind.USER_PROPERTY) {
+			throw new DocTemplateException("error.rtftemplate.invalid.structure");
+		}
+		flushPendingGroups(userProperty);
+		userProperty.append(this.rtf, start, end);
+		this.lastElement = userProperty;
+		this.currentElement = userProperty.parent;
+	}
+
+	private static void emit(List<Object> content, boolean root, Handler handler, StringBuilder text) throws DocTemplateException {
+
+		for (Object o : content) {
+			if (o instanceof StringBuilder) {
+				StringBuilder sb = (StringBuilder) o;
+				if (root && sb.length() == 2) {
+					// Bereinigung von RTFTemplate: alleinstehendes CRLF wird zu CR
+					int lf = sb.indexOf("\n");
+					if (lf >= 0 && sb.indexOf("\r") >= 0) {
+						sb.deleteCharAt(lf);
+					}
+				}
+				text.append(sb);
+				continue;
+			}
+			Element element = (Element) o;
+			StringBuilder simple = element.simpleContent();
+			switch (element.kind) {
+			case PAGE:
+				emit(element.content, false, handler, text);
+				break;
+			case FIELD:
+				if (simple != null) {
+					String rtfCode = removeLineBreaks(simple);
+					String name = getFieldName(rtfCode);
+					if (name == null || name.startsWith("$")) {
+						text.append(rtfCode);
+					} else {
+						flushText(handler, text);
+						handler.field(name, rtfCode);
+					}
+				} else {
+					emit(element.content, false, handler, text);
+				}
+				break;
+			case USER_PROPERTY:
+				if (simple != null) {
+					text.append(removeLineBreaks(simple));
+				} else {
+					emit(element.content, false, handler, text);
+				}
+				break;
+			case START_BOOKMARK:
+			case END_BOOKMARK:
+				String rtfCode = removeLineBreaks(simple);
+				String name = getTextBetween(rtfCode, element.kind == Kind.START_BOOKMARK ? "bkmkstart" : "bkmkend", "}");
+				if (name == null) {
+					text.append(rtfCode);
+				} else {
+					flushText(handler, text);
+					if (element.kind == Kind.START_BOOKMARK) {
+						handler.startBookmark(name, rtfCode);
+					} else {
+						handler.endBookmark(name, rtfCode);
+					}
+				}
+				break;
+			default:
+				throw new IllegalStateException("unexpected element " + element.kind);
+			}
+		}
+	}
+
+	private static void flushText(Handler handler, StringBuilder text) throws DocTemplateException {
+
+		if (text.length() > 0) {
+			handler.text(text.toString());
+			text.setLength(0);
+		}
+	}
+
+	private static String removeLineBreaks(CharSequence s) {
+
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '\r' && c != '\n') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Ermittelt den Namen eines Feldes wie RTFTemplate: MERGEFIELD, HYPERLINK oder FORMTEXT.
+	 */
+	static String getFieldName(String rtfCode) {
+
+		String name = getTextBetween(rtfCode, "MERGEFIELD", "\\");
+		if (name == null) {
+			name = getTextBetween(rtfCode, "HYPERLINK", "\\");
+			if (name != null) {
+				name = name.replace("mailto:", "");
+			} else if (rtfCode.contains("FORMTEXT")) {
+				name = getTextBetween(rtfCode, "\\ffdeftext", "}");
+			}
+		}
+		if (name != null) {
+			name = name.replace("\"", "").replace("}", "").replace("{", "").trim();
+		}
+		return name;
+	}
+
+	private static String getTextBetween(String content, String startToken, String endToken) {
+
+		int start = content.indexOf(startToken);
+		int end = content.indexOf(endToken, start);
+		if (start != -1 && end != -1) {
+			return content.substring(start + startToken.length(), end).trim();
+		}
+		return null;
+	}
+}
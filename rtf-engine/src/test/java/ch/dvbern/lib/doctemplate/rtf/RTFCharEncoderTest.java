@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Tests fuer die RTF-Kodierung von Feldwerten.
+ */
+public class RTFCharEncoderTest extends Assert {
+
+	private static String encode(String data) throws IOException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RTFCharEncoder.encode(data, baos);
+		return new String(baos.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Werte ohne Sonderzeichen werden unveraendert uebernommen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAscii() throws Exception {
+
+		String data = "Muster AG, Bahnhofstrasse 1";
+		assertEquals(data, encode(data));
+		assertEquals("", encode(""));
+	}
+
+	/**
+	 * Die Kodierung entspricht der bisherigen, auch ueber Blockgrenzen hinweg.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncode() throws Exception {
+
+		assertEquals("a\\line b\\'5c\\'7b\\'7d\\'9\\'e4\\u8364?\\u-1?", encode("a\r\nb\\{}\t\u00e4\u20ac\uffff"));
+
+		Random random = new Random(4711);
+		char[] chars = { 'a', 'Z', ' ', '\n', '\r', '\t', '\\', '{', '}', '\u00e9', '\u20ac', '\uffff', '\u7fff', '\u8000' };
+		for (int n = 0; n < 200; n++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(2000);
+			for (int i = 0; i < length; i++) {
+				sb.append(chars[random.nextInt(chars.length)]);
+			}
+			String data = sb.toString();
+			assertEquals(reference(data), encode(data));
+		}
+	}
+
+	private static String reference(String data) {
+
+		StringBuilder sb = new StringBuilder();
+		for (char c : data.toCharArray()) {
+			if (c == '\n') {
+				sb.append("\\line ");
+			} else if (c == '\r') {
+				continue;
+			} else if (c > 0xFF) {
+				sb.append("\\u").append(Short.toString((short) c)).append('?');
+			} else if (c >= 0x80 || c < 0x20 || c == 0x5C || c == 0x7B || c == 0x7D) {
+				sb.append("\\'").append(Integer.toHexString(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
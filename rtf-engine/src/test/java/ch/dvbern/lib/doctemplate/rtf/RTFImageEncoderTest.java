@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import ch.dvbern.lib.doctemplate.common.Image;
+import junit.framework.Assert;
+
+/**
+ * Tests fuer die Hex-Kodierung von Bildern.
+ */
+public class RTFImageEncoderTest extends Assert {
+
+	/**
+	 * Alle Bytewerte werden zweistellig in Kleinbuchstaben kodiert, auch ueber Blockgrenzen hinweg.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncode() throws Exception {
+
+		byte[] data = new byte[20000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RTFImageEncoder.encode(new ByteArrayInputStream(data), baos);
+
+		StringBuilder expected = new StringBuilder();
+		for (byte b : data) {
+			String s = Integer.toHexString(b & 0xFF);
+			if (s.length() % 2 != 0) {
+				expected.append("0");
+			}
+			expected.append(s);
+		}
+		assertEquals(expected.toString(), new String(baos.toByteArray(), StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Ein mehrfach verwendetes Bild wird nur einmal gelesen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCache() throws Exception {
+
+		final int[] reads = { 0 };
+		final byte[] data = { 1, 2, (byte) 0xAB };
+		Image image = new Image(() -> {
+			reads[0]++;
+			return new ByteArrayInputStream(data);
+		}, 1, 1, Image.Format.PNG);
+		RTFImageEncoder encoder = new RTFImageEncoder(1024);
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			encoder.writeHex(image, baos);
+			assertEquals("0102ab", new String(baos.toByteArray(), StandardCharsets.ISO_8859_1));
+		}
+		// einmal fuer den Digest, einmal fuer die Kodierung
+		assertEquals(2, reads[0]);
+	}
+
+	/**
+	 * Bilder, deren Kodierung den Cache ueberschreitet, werden direkt geschrieben und nicht zwischengespeichert; das
+	 * gilt auch fuer Bilder, deren Laenge erst beim Lesen feststeht.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testUncacheable() throws Exception {
+
+		final int[] reads = { 0 };
+		final byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		Image lazy = new Image(() -> {
+			reads[0]++;
+			return new ByteArrayInputStream(data);
+		}, 1, 1, Image.Format.PNG);
+		Image known = new Image(data, 1, 1, Image.Format.PNG);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		RTFImageEncoder.encode(new ByteArrayInputStream(data), expected);
+
+		RTFImageEncoder encoder = new RTFImageEncoder(150);
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			encoder.writeHex(lazy, baos);
+			encoder.writeHex(known, baos);
+			assertEquals(expected.toString("ISO-8859-1") + expected.toString("ISO-8859-1"), baos.toString("ISO-8859-1"));
+		}
+		// einmal fuer den Digest, dreimal fuer die Kodierung
+		assertEquals(4, reads[0]);
+	}
+
+	/**
+	 * Nur Lesefehler, bevor etwas geschrieben wurde, werden als {@link RTFImageEncoder.ImageReadException} gemeldet.
+	 * Schreibfehler und Lesefehler nach geschriebenen Daten bleiben gewoehnliche Fehler.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailures() throws Exception {
+
+		final byte[] data = new byte[20000];
+		Image unreadable = new Image(() -> {
+			throw new IOException("unreadable");
+		}, 1, 1, Image.Format.PNG);
+		final int[] reads = { 0 };
+		// vollstaendig fuer den Digest, danach nach dem ersten Block abgebrochen
+		Image truncated = new Image(() -> reads[0]++ == 0 ? new ByteArrayInputStream(data)
+				: new SequenceInputStream(new ByteArrayInputStream(data, 0, 8192), new InputStream() {
+
+					@Override
+					public int read() throws IOException {
+
+						throw new IOException("truncated");
+					}
+				}), 1, 1, Image.Format.PNG);
+		Image valid = new Image(data, 1, 1, Image.Format.PNG);
+		OutputStream broken = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+
+				throw new IOException("broken");
+			}
+		};
+
+		RTFImageEncoder encoder = new RTFImageEncoder(1024);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			encoder.writeHex(unreadable, baos);
+			fail();
+		} catch (RTFImageEncoder.ImageReadException e) {
+			assertEquals(0, baos.size());
+		}
+		try {
+			encoder.writeHex(truncated, baos);
+			fail();
+		} catch (RTFImageEncoder.ImageReadException e) {
+			fail("data already written");
+		} catch (IOException e) {
+			assertTrue(baos.size() > 0);
+		}
+		try {
+			encoder.writeHex(valid, broken);
+			fail();
+		} catch (RTFImageEncoder.ImageReadException e) {
+			fail("write failure");
+		} catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+	}
+}
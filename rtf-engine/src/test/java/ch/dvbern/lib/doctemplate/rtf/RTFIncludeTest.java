@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Tests fuer das Extrahieren und Einfuegen von Subdokumenten.
+ */
+public class RTFIncludeTest extends Assert {
+
+	private static final String BEGIN = "{\\*\\bkmkend DOCUMENT_CONTENT_BEGIN}";
+	private static final String END = "{\\*\\bkmkstart DOCUMENT_CONTENT_END}";
+
+	private final RTFMergeEngine engine = new RTFMergeEngine("RTFIncludeTest");
+
+	/**
+	 * Die Stream-Variante liefert denselben Inhalt wie {@link RTFMergeEngine#extractDocumentContent(String)}, auch bei
+	 * fehlenden oder unvollstaendigen Marken.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testExtract() throws Exception {
+
+		String[] documents = { "{\\rtf1 head" + BEGIN + "body {\\b x}{\\*\\bkmk" + END + "tail}", "{\\rtf1 head" + BEGIN + "body}",
+				"{\\rtf1 body" + END + "tail}", "{\\rtf1 head" + BEGIN + END + "tail}", BEGIN + "body" + END, "{\\rtf1 no marks}",
+				"{\\rtf1 head" + BEGIN + "body {\\*\\bkmkstart DOCUMENT_CONTENT_E" };
+		for (String document : documents) {
+			String expected = this.engine.extractDocumentContent(document);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			this.engine.extractDocumentContent(document.getBytes(), baos);
+			assertEquals(document, expected, new String(baos.toByteArray()));
+
+			// byteweise geschrieben
+			baos.reset();
+			RTFDocumentContentOutputStream content = new RTFDocumentContentOutputStream(baos);
+			for (byte b : document.getBytes()) {
+				content.write(b);
+			}
+			content.finish();
+			assertEquals(document, expected, new String(baos.toByteArray()));
+		}
+		assertEquals("body {\\b x}{\\*\\bkmk", this.engine.extractDocumentContent(documents[0]));
+	}
+
+	/**
+	 * Subdokumente werden an Stelle der Include-Bookmarks eingefuegt, fehlende Subdokumente entfernen das Bookmark.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testInclude() throws Exception {
+
+		String holder = "{\\rtf1 A" + include("X") + "B" + include("Y") + "C" + include("X") + "D}";
+		Map<String, StringBuffer> includes = new HashMap<>();
+		includes.put("X", new StringBuffer("x"));
+		assertEquals("{\\rtf1 AxBCxD}", this.engine.includeSubDocuments(holder, includes));
+
+		Map<String, RTFInclude> streamIncludes = new HashMap<>();
+		streamIncludes.put("X", output -> this.engine.extractDocumentContent(("{" + BEGIN + "x" + END + "}").getBytes(), output));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		this.engine.includeSubDocuments(holder, streamIncludes, baos);
+		assertEquals("{\\rtf1 AxBCxD}", new String(baos.toByteArray()));
+
+		// verschachtelte Includes, auch rekursive
+		includes.put("Y", new StringBuffer("(" + include("X") + include("Y") + ")"));
+		assertEquals("{\\rtf1 AxB(x(" + include("X") + include("Y") + "))CxD}", this.engine.includeSubDocuments(holder, includes));
+		streamIncludes.put("Y", output -> this.engine.extractDocumentContent(("{" + BEGIN + includes.get("Y") + END + "}").getBytes(), output));
+		baos.reset();
+		this.engine.includeSubDocuments(holder, streamIncludes, baos);
+		assertEquals(this.engine.includeSubDocuments(holder, includes), new String(baos.toByteArray()));
+	}
+
+	private static String include(String name) {
+
+		return "{\\*\\bkmkstart DOCUMENT_INCLUDE_" + name + "}text{\\*\\bkmkend DOCUMENT_INCLUDE_" + name + "}";
+	}
+}
@@ -246,6 +246,48 @@ public class RTFMergeEngineTest {
 		assert s.equals(new String(getBytes("test.result.9.rtf"))) : "merged rtf does not match the expected result";
 	}
 
+	/**
+	 * Test 9 mit direkter Ausgabe in einen Stream.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test9Stream() throws Exception {
+
+		RTFMergeEngine rtfME = new RTFMergeEngine("Test9Stream");
+
+		InputStream is = this.getClass().getResourceAsStream("test9.rtf");
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		rtfME.getDocument(br, new RootMergeSource(true, true), null, baos);
+		is.close();
+
+		String s = new String(baos.toByteArray());
+		assert s.equals(new String(getBytes("test.result.9.rtf"))) : "merged rtf does not match the expected result";
+	}
+
+	/**
+	 * Test 2 mit einer einmal kompilierten und mehrfach verwendeten Vorlage.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test2Compiled() throws Exception {
+
+		RTFMergeEngine rtfME = new RTFMergeEngine("Test2Compiled");
+
+		InputStream is = this.getClass().getResourceAsStream("test.rtf");
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		CompiledRTFTemplate template = rtfME.compile(br, null);
+		is.close();
+
+		String expected = new String(getBytes("test.result.2.rtf"));
+		for (int i = 0; i < 3; i++) {
+			String s = new String(rtfME.getDocument(template, new RootMergeSource(true, true)));
+			assert s.equals(expected) : "merged rtf does not match the expected result";
+		}
+	}
+
 	private byte[] getBytes(String filename) throws IOException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
+import junit.framework.Assert;
+
+/**
+ * Tests fuer den Cache kompilierter RTF-Vorlagen.
+ */
+public class RTFTemplateCacheTest extends Assert {
+
+	/**
+	 * Der am laengsten nicht verwendete Eintrag wird verdraengt.
+	 */
+	@Test
+	public void testEviction() {
+
+		RTFTemplateCache cache = new RTFTemplateCache(2);
+		CompiledRTFTemplate a = new CompiledRTFTemplate(new BasicMergeElement());
+		CompiledRTFTemplate b = new CompiledRTFTemplate(new BasicMergeElement());
+		CompiledRTFTemplate c = new CompiledRTFTemplate(new BasicMergeElement());
+		cache.put(RTFTemplateCache.idKey("a", null), a);
+		cache.put(RTFTemplateCache.idKey("b", null), b);
+		assertSame(a, cache.get(RTFTemplateCache.idKey("a", null)));
+		cache.put(RTFTemplateCache.idKey("c", null), c);
+
+		assertEquals(2, cache.size());
+		assertSame(a, cache.get(RTFTemplateCache.idKey("a", null)));
+		assertNull(cache.get(RTFTemplateCache.idKey("b", null)));
+		assertSame(c, cache.get(RTFTemplateCache.idKey("c", null)));
+	}
+
+	/**
+	 * Gleicher Inhalt mit unterschiedlicher Uebersetzungstabelle ergibt unterschiedliche Eintraege.
+	 */
+	@Test
+	public void testKey() {
+
+		assertEquals(RTFTemplateCache.contentKey("{\\rtf1}", null), RTFTemplateCache.contentKey("{\\rtf1}", null));
+		assertFalse(RTFTemplateCache.contentKey("{\\rtf1}", null).equals(RTFTemplateCache.contentKey("{\\rtf1 }", null)));
+		assertFalse(RTFTemplateCache.contentKey("{\\rtf1}", null)
+			.equals(RTFTemplateCache.contentKey("{\\rtf1}", Collections.singletonMap("A", "B"))));
+		assertFalse(RTFTemplateCache.idKey("x", null).equals(RTFTemplateCache.contentKey("x", null)));
+	}
+}
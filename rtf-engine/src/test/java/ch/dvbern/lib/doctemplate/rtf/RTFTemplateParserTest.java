@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.rtf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Tests fuer die Zerlegung von RTF-Vorlagen.
+ */
+public class RTFTemplateParserTest extends Assert {
+
+	private static List<String> parse(String rtf) throws Exception {
+
+		final List<String> result = new ArrayList<>();
+		RTFTemplateParser.parse(rtf, new RTFTemplateParser.Handler() {
+
+			@Override
+			public void text(String rtfCode) {
+				result.add("T:" + rtfCode);
+			}
+
+			@Override
+			public void field(String name, String rtfCode) {
+				result.add("F:" + name + ":" + rtfCode);
+			}
+
+			@Override
+			public void startBookmark(String name, String rtfCode) {
+				result.add("S:" + name + ":" + rtfCode);
+			}
+
+			@Override
+			public void endBookmark(String name, String rtfCode) {
+				result.add("E:" + name + ":" + rtfCode);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Felder und Textmarken werden erkannt, Zeilenumbrueche darin entfernt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFieldsAndBookmarks() throws Exception {
+
+		List<String> parts = parse("{\\rtf1 a{\\*\\bkmkstart IF_X}{\\field{\\*\\fldinst {\r\n MERGEFIELD Name \\\\* MERGEFORMAT }}"
+			+ "{\\fldrslt x}}{\\*\\bkmkend ENDIF_X}b}");
+		assertEquals(5, parts.size());
+		assertEquals("T:{\\rtf1 a", parts.get(0));
+		assertEquals("S:IF_X:{\\*\\bkmkstart IF_X}", parts.get(1));
+		assertEquals("F:Name:{\\field{\\*\\fldinst { MERGEFIELD Name \\\\* MERGEFORMAT }}{\\fldrslt x}}", parts.get(2));
+		assertEquals("E:ENDIF_X:{\\*\\bkmkend ENDIF_X}", parts.get(3));
+		assertEquals("T:b}", parts.get(4));
+	}
+
+	/**
+	 * Alleinstehendes CRLF zwischen zwei Elementen wird zu CR, Text nach der letzten Klammer entfaellt.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testLineBreaks() throws Exception {
+
+		List<String> parts = parse("{\\rtf1 {\\*\\bkmkstart A}\r\n{\\*\\bkmkend A}}\r\n");
+		assertEquals(5, parts.size());
+		assertEquals("T:\r", parts.get(2));
+		assertEquals("T:}", parts.get(4));
+	}
+
+	/**
+	 * Felder mit $-Prefix bleiben statisch.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStaticField() throws Exception {
+
+		List<String> parts = parse("{\\rtf1 {\\field{\\*\\fldinst MERGEFIELD $x \\\\* M}}}");
+		assertEquals(1, parts.size());
+		assertEquals("T:{\\rtf1 {\\field{\\*\\fldinst MERGEFIELD $x \\\\* M}}}", parts.get(0));
+	}
+}
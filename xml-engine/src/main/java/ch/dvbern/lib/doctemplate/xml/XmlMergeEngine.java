@@ -237,7 +237,7 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 	@Override
 	protected XmlBasedFieldMergeElement getFieldMergeElement(String key, ImageHandler imageHandler) {
 
-		return new XmlBasedFieldMergeElement(key, key, images, imageHandler) {
+		return new XmlBasedFieldMergeElement(key, key, getImageRegistry(), imageHandler) {
 
 			@Override
 			protected String getDefaultDateFormat() {